@@ -0,0 +1,60 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package org.amplafi.hivemind.factory.mock;
+
+import java.util.Random;
+
+/**
+ * How a {@link StandInService} picks the latency of each call.
+ */
+public enum LatencyDistribution {
+    /**
+     * always {@link StandInBehavior#getMeanMillis()}.
+     */
+    FIXED {
+        @Override
+        public double sampleMillis(StandInBehavior behavior, Random random) {
+            return behavior.getMeanMillis();
+        }
+    },
+    /**
+     * evenly spread between {@link StandInBehavior#getMinMillis()} and {@link StandInBehavior#getMaxMillis()}.
+     */
+    UNIFORM {
+        @Override
+        public double sampleMillis(StandInBehavior behavior, Random random) {
+            return behavior.getMinMillis() + random.nextDouble() * (behavior.getMaxMillis() - behavior.getMinMillis());
+        }
+    },
+    /**
+     * log-normal with mean {@link StandInBehavior#getMeanMillis()} and shape {@link StandInBehavior#getSigma()}.
+     * Gives the long tail typical of real backends. The median is mean * exp(-sigma^2 / 2).
+     */
+    LOG_NORMAL {
+        @Override
+        public double sampleMillis(StandInBehavior behavior, Random random) {
+            double sigma = behavior.getSigma();
+            double median = behavior.getMeanMillis() * Math.exp(-sigma * sigma / 2);
+            return median * Math.exp(sigma * random.nextGaussian());
+        }
+    };
+
+    /**
+     * @param behavior supplies the distribution's parameters.
+     * @param random
+     * @return the latency in milliseconds, may be fractional.
+     */
+    public abstract double sampleMillis(StandInBehavior behavior, Random random);
+}
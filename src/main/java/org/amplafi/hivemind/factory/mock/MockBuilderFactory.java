@@ -161,4 +161,76 @@ public interface MockBuilderFactory
      *                                or hold to the thread-separate principle.
      */
     public void setShareMocksAcrossThreads(boolean shareMocksAcrossThreads);
+
+    /**
+     * If true, the real service behind every intercepted service is not constructed until the first
+     * call that is not answered by a mock. Services listed in {@link #getEagerServiceIds()} are still
+     * constructed immediately.
+     *
+     * @param lazyRealServices
+     */
+    public void setLazyRealServices(boolean lazyRealServices);
+
+    public boolean isLazyRealServices();
+
+    /**
+     * services (by fully-qualified service id) that are lazily constructed even if {@link #isLazyRealServices()}
+     * is false.
+     *
+     * @return the lazily constructed service ids.
+     */
+    public Set<String> getLazyServiceIds();
+
+    public void addLazyServiceIds(String... serviceIds);
+
+    /**
+     * services (by fully-qualified service id) that are always constructed immediately. Use for services
+     * whose &lt;event-listener&gt; registration must happen when the service is first referenced.
+     *
+     * @return the eagerly constructed service ids.
+     */
+    public Set<String> getEagerServiceIds();
+
+    public void addEagerServiceIds(String... serviceIds);
+
+    /**
+     * construct all real services whose construction was deferred (and so run their
+     * &lt;event-listener&gt; registration and initialization).
+     */
+    public void createDeferredServices();
+
+    /**
+     * In stub mode, interfaces that are not in {@link #getRealMockInterfaces()} (or the mockOverride set)
+     * are given a {@link NoOpStub} rather than an EasyMock mock. Stubs cost far less to create but cannot be
+     * programmed or verified.
+     *
+     * @param stubMode
+     */
+    public void setStubMode(boolean stubMode);
+
+    public boolean isStubMode();
+
+    /**
+     * @param countStubCalls if true, {@link NoOpStub}s count the calls made to them.
+     */
+    public void setCountStubCalls(boolean countStubCalls);
+
+    /**
+     * @return interfaces that get a real EasyMock mock even in stub mode.
+     */
+    public Set<Class<?>> getRealMockInterfaces();
+
+    public void addRealMockInterfaces(Class<?>... classes);
+
+    /**
+     * Interfaces with a {@link StandInDefinition} are given a {@link StandInService}, with simulated latency
+     * and errors, instead of a mock (unless in {@link #getRealMockInterfaces()}). Stand-ins only replace what
+     * would otherwise be a mock: services that do not exist in the registry or whose interface is in
+     * {@link #getMockOverride()}. Existing services are not replaced.
+     *
+     * If never called, the contributions to amplafi.standin.StandIns are used.
+     *
+     * @param standIns usually the contributions to amplafi.standin.StandIns
+     */
+    public void setStandIns(List<StandInDefinition> standIns);
 }
@@ -19,14 +19,20 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
-import java.util.ArrayList;
+import java.util.AbstractSet;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.amplafi.hivemind.annotations.NotService;
 import org.amplafi.hivemind.factory.ServiceTranslator;
@@ -58,6 +64,10 @@ import org.easymock.IMocksControl;
  * @author Patrick Moore
  */
 public class MockBuilderFactoryImpl implements MockBuilderFactory {
+    /**
+     * the stand-ins used unless {@link #setStandIns(List)} is called.
+     */
+    public static final String STAND_INS_CONFIGURATION_ID = "amplafi.standin.StandIns";
     private ServiceImplementationFactory builderFactory;
     /**
      * Whether we have to share the same mocks across all threads or hold to the thread-separate
@@ -73,6 +83,12 @@ public class MockBuilderFactoryImpl implements MockBuilderFactory {
      * handle explicitly named services
      */
     private SwitchableThreadLocal<Map<String, Object>> mockObjectsByNameMap;
+    /**
+     * the mocks handed out since the last {@link #reset()} and their state, for {@link #replay()}, {@link #verify()}
+     * and {@link #reset()}. {@link #sharedMockTracker} is used instead when sharing mocks across threads.
+     */
+    private ThreadLocal<MockTracker> mockTracker;
+    private final MockTracker sharedMockTracker = new MockTracker();
 
     /**
      * these are the classes that even if they exist in the underlying
@@ -80,6 +96,47 @@ public class MockBuilderFactoryImpl implements MockBuilderFactory {
      */
     private SwitchableThreadLocal<Set<Class<?>>> mockOverride;
     private SwitchableThreadLocal<Set<Class<?>>> dontMockOverride;
+    /**
+     * compiled, immutable form of {@link #mockOverride} and {@link #dontMockOverride}.
+     * A thread's snapshot is rebuilt only when that thread's override sets have been replaced or changed.
+     * {@link #sharedOverrideSnapshot} is used instead when sharing mocks across threads so that reading it is a
+     * volatile read and not a lock; it is rebuilt only when {@link #sharedOverrideEpoch} has moved on.
+     */
+    private ThreadLocal<OverrideSnapshot> overrideSnapshot;
+    private volatile OverrideSnapshot sharedOverrideSnapshot;
+    /**
+     * bumped every time an override set is changed or replaced. The shared {@link OverrideSnapshot} is stale
+     * once stamped with an older epoch. Thread-local snapshots do not use it, so that a change made by one
+     * thread does not invalidate every other thread's snapshot.
+     */
+    private final AtomicInteger sharedOverrideEpoch = new AtomicInteger();
+    /**
+     * each service interface gets a small integer id so that the override sets can be compiled into {@link BitSet}s.
+     */
+    private final ConcurrentMap<Class<?>, Integer> interfaceIds = new ConcurrentHashMap<Class<?>, Integer>();
+    private final AtomicInteger nextInterfaceId = new AtomicInteger();
+    /**
+     * if true, real services are only constructed when first needed.
+     */
+    private boolean lazyRealServices;
+    private final Set<String> lazyServiceIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> eagerServiceIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /**
+     * {@link MockSwitcher}s whose real service was deferred. Switchers whose real service has been constructed
+     * since are not removed (that would be a linear search each time) but skipped when the queue is drained.
+     */
+    private final ConcurrentLinkedQueue<MockSwitcher> deferredSwitchers = new ConcurrentLinkedQueue<MockSwitcher>();
+    /**
+     * if true, interfaces that do not need a real mock get a {@link NoOpStub} instead.
+     */
+    private boolean stubMode;
+    private boolean countStubCalls;
+    /**
+     * interfaces that always get a real EasyMock mock in stub mode.
+     */
+    private final Set<Class<?>> realMockInterfaces = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
+    private final Map<Class<?>, StandInDefinition> standIns = new ConcurrentHashMap<Class<?>, StandInDefinition>();
+    private volatile boolean standInsSet;
     private Log log;
     private ServicesSetter servicesSetter;
 
@@ -94,16 +151,17 @@ public class MockBuilderFactoryImpl implements MockBuilderFactory {
         mockOverride = new SwitchableThreadLocal<Set<Class<?>>>(this.shareMocksAcrossThreads) {
             @Override
             protected Set<Class<?>> initialValue() {
-                return Collections.synchronizedSet(new HashSet<Class<?>>());
+                return new OverrideSet(null);
             }
         };
 
         dontMockOverride = new SwitchableThreadLocal<Set<Class<?>>>(this.shareMocksAcrossThreads) {
             @Override
             protected Set<Class<?>> initialValue() {
-                return Collections.synchronizedSet(new HashSet<Class<?>>());
+                return new OverrideSet(null);
             }
         };
+        overrideSnapshot = new ThreadLocal<OverrideSnapshot>();
 
         mockObjectsMap = new SwitchableThreadLocal<Map<Class<?>, Object>>(this.shareMocksAcrossThreads) {
             @Override
@@ -117,6 +175,12 @@ public class MockBuilderFactoryImpl implements MockBuilderFactory {
                 return new ConcurrentHashMap<String, Object>();
             }
         };
+        mockTracker = new ThreadLocal<MockTracker>() {
+            @Override
+            protected MockTracker initialValue() {
+                return new MockTracker();
+            }
+        };
     }
 
     public void setShareMocksAcrossThreads(boolean shareMocksAcrossThreads) {
@@ -126,6 +190,91 @@ public class MockBuilderFactoryImpl implements MockBuilderFactory {
         dontMockOverride.setMode(shareMocksAcrossThreads);
         mockObjectsMap.setMode(shareMocksAcrossThreads);
         mockObjectsByNameMap.setMode(shareMocksAcrossThreads);
+        overrideChanged();
+    }
+
+    public void setLazyRealServices(boolean lazyRealServices) {
+        this.lazyRealServices = lazyRealServices;
+    }
+
+    public boolean isLazyRealServices() {
+        return lazyRealServices;
+    }
+
+    public Set<String> getLazyServiceIds() {
+        return lazyServiceIds;
+    }
+
+    public void addLazyServiceIds(String... serviceIds) {
+        CollectionUtils.addAll(lazyServiceIds, serviceIds);
+    }
+
+    public Set<String> getEagerServiceIds() {
+        return eagerServiceIds;
+    }
+
+    public void addEagerServiceIds(String... serviceIds) {
+        CollectionUtils.addAll(eagerServiceIds, serviceIds);
+    }
+
+    /**
+     * @param serviceId
+     * @return true if the real service should not be constructed until needed.
+     */
+    boolean isLazy(String serviceId) {
+        return !eagerServiceIds.contains(serviceId)
+            && (lazyRealServices || lazyServiceIds.contains(serviceId));
+    }
+
+    public void createDeferredServices() {
+        for(MockSwitcher switcher = deferredSwitchers.poll(); switcher != null; switcher = deferredSwitchers.poll()) {
+            if ( !switcher.isRealServiceCreated()) {
+                switcher.getRealService();
+            }
+        }
+    }
+
+    public void setStubMode(boolean stubMode) {
+        this.stubMode = stubMode;
+    }
+
+    public boolean isStubMode() {
+        return stubMode;
+    }
+
+    public void setCountStubCalls(boolean countStubCalls) {
+        this.countStubCalls = countStubCalls;
+    }
+
+    public boolean isCountStubCalls() {
+        return countStubCalls;
+    }
+
+    public Set<Class<?>> getRealMockInterfaces() {
+        return realMockInterfaces;
+    }
+
+    public void addRealMockInterfaces(Class<?>... classes) {
+        CollectionUtils.addAll(realMockInterfaces, classes);
+    }
+
+    public void setStandIns(List<StandInDefinition> standIns) {
+        this.standInsSet = true;
+        this.standIns.clear();
+        if ( standIns != null ) {
+            for(StandInDefinition standIn: standIns) {
+                this.standIns.put(standIn.getServiceInterface(), standIn);
+            }
+        }
+    }
+
+    /**
+     * @param interfaceClass
+     * @return true if interfaceClass must be an EasyMock mock rather than a {@link NoOpStub}.
+     */
+    private boolean isRealMockNeeded(Class<?> interfaceClass) {
+        return !stubMode || realMockInterfaces.contains(interfaceClass)
+            || getOverrideSnapshot().isMocked(interfaceIds.get(interfaceClass));
     }
 
     /**
@@ -154,7 +303,8 @@ public class MockBuilderFactoryImpl implements MockBuilderFactory {
      * @param mockOverride
      */
     public void setMockOverride(Set<Class<?>> mockOverride) {
-        this.mockOverride.set(mockOverride);
+        this.mockOverride.set(mockOverride == null ? null : new OverrideSet(mockOverride));
+        overrideChanged();
     }
 
     public Set<Class<?>> getMockOverride() {
@@ -181,7 +331,8 @@ public class MockBuilderFactoryImpl implements MockBuilderFactory {
      * @param dontMockOverride
      */
     public void setDontMockOverride(Set<Class<?>> dontMockOverride) {
-        this.dontMockOverride.set(dontMockOverride);
+        this.dontMockOverride.set(dontMockOverride == null ? null : new OverrideSet(dontMockOverride));
+        overrideChanged();
     }
 
     /**
@@ -214,21 +365,17 @@ public class MockBuilderFactoryImpl implements MockBuilderFactory {
         for(Class<?>serviceInterface : serviceInterfaces) {
             Object mock = getMockMap().get(serviceInterface);
             if ( mock != null ) {
-                EasyMock.replay(mock);
+                getMockTracker().replay(mock);
             }
         }
     }
+    /**
+     * replay every mock handed out since the last {@link #reset()} that is still being recorded, including mocks
+     * handed to services when they were constructed. Mocks must be replayed through this factory ( not
+     * EasyMock directly ) for it to know they are already replayed.
+     */
     public void replay() {
-        Collection<Object> mocks = getMocks();
-        for(Object mock : mocks) {
-            if ( mock != null ) {
-                try {
-                    EasyMock.replay(mock);
-                } catch( IllegalStateException e) {
-                    // should be way to detect in replay mode already
-                }
-            }
-        }
+        getMockTracker().replay();
     }
 
     /**
@@ -238,35 +385,20 @@ public class MockBuilderFactoryImpl implements MockBuilderFactory {
     public void verify(Class<?>... serviceInterfaces) {
         for(Class<?>serviceInterface : serviceInterfaces) {
             Object mock = getMockMap().get(serviceInterface);
-            if ( mock != null ) {
+            if ( mock != null && !NoOpStub.isStub(mock)) {
                 EasyMock.verify(mock);
             }
         }
     }
 
-    public void verify() {
-        Collection<Object> mocks = getMocks();
-        for(Object mock : mocks) {
-            if ( mock != null ) {
-                try {
-                    EasyMock.verify(mock);
-                } catch(IllegalStateException e) {
-                    // happens when do a verify of a object that was
-                    // created on the fly.
-                }
-            }
-        }
-    }
-
     /**
-     * @return
+     * verify every mock replayed since the last {@link #reset()}. Mocks still being recorded ( i.e. created on the
+     * fly ) are skipped.
      */
-    private Collection<Object> getMocks() {
-        ArrayList<Object> mocks = new ArrayList<Object>();
-        mocks.addAll(getMockMap().values());
-        mocks.addAll(this.mockObjectsByNameMap.get().values());
-        return mocks;
+    public void verify() {
+        getMockTracker().verify();
     }
+
     /**
      * replay the EasyMock at the serviceInterface.
      * @param serviceInterfaces
@@ -275,26 +407,26 @@ public class MockBuilderFactoryImpl implements MockBuilderFactory {
         for(Class<?>serviceInterface : serviceInterfaces) {
             Object mock = getMockMap().get(serviceInterface);
             if ( mock != null ) {
-                EasyMock.reset(mock);
+                getMockTracker().reset(mock);
             }
         }
     }
 
     /**
-     * reset all mocks and clear the dontMockOverride and the
-     * mockOverride sets for this thread.
+     * reset all mocks handed out since the last reset and clear the dontMockOverride and the
+     * mockOverride sets for this thread. Afterwards only the mocks held by constructed services are tracked.
      *
      */
     public void reset() {
-        Collection<Object> mocks = getMocks();
-        for(Object mock : mocks) {
-            if ( mock != null ) {
-                EasyMock.reset(mock);
-            }
-        }
+        getMockTracker().reset();
 
-        dontMockOverride.get().clear();
-        mockOverride.get().clear();
+        if ( dontMockOverride.get() != null ) {
+            dontMockOverride.get().clear();
+        }
+        if ( mockOverride.get() != null ) {
+            mockOverride.get().clear();
+        }
+        overrideChanged();
     }
     @SuppressWarnings("unchecked")
     public Object createCoreServiceImplementation(
@@ -303,9 +435,9 @@ public class MockBuilderFactoryImpl implements MockBuilderFactory {
         Object createdObject;
         if ( factoryParameters.getFirstParameter() == null ) {
             // no construction information so create a mock
-            createdObject = getThreadsMock(interfaceClass);
+            createdObject = getInjectedMock(interfaceClass);
         } else {
-            createdObject = createCoreServiceImplementation(builderFactory, factoryParameters);
+            createdObject = createCoreServiceImplementation(builderFactory, factoryParameters, factoryParameters.getServiceId());
         }
         return createdObject;
     }
@@ -347,31 +479,121 @@ public class MockBuilderFactoryImpl implements MockBuilderFactory {
      * @return either a mock or the realService.
      */
     <T> T getServiceToUse(Class<? extends T> interfaceClass, T realService, boolean mockByDefault) {
+        OverrideDecision decision = getOverrideSnapshot().getDecision(interfaceIds.get(interfaceClass));
+        return getServiceToUse(interfaceClass, decision, realService, mockByDefault);
+    }
+
+    <T> T getServiceToUse(Class<? extends T> interfaceClass, OverrideDecision decision, T realService, boolean mockByDefault) {
         T underlyingObject;
-        Set<Class<?>> mockoverrideForThread = mockOverride.get();
-		if ( mockoverrideForThread.contains(interfaceClass) ) {
+        switch(decision) {
+        case MOCK:
             underlyingObject = getThreadsMock(interfaceClass);
-        } else if ( dontMockOverride.get().contains(interfaceClass)) {
-            underlyingObject = realService;
-        } else if ( realService == null && mockByDefault){
-            underlyingObject = getThreadsMock(interfaceClass);
-        } else {
-            // otherwise whatever the real object is ( which may be a mock ).
+            break;
+        case DONT_MOCK:
             underlyingObject = realService;
+            break;
+        default:
+            if ( realService == null && mockByDefault){
+                underlyingObject = getThreadsMock(interfaceClass);
+            } else {
+                // otherwise whatever the real object is ( which may be a mock ).
+                underlyingObject = realService;
+            }
         }
         return underlyingObject;
     }
 
+    /**
+     * @return the {@link OverrideSnapshot} for the current context, recompiled if the override sets have changed
+     * since it was built.
+     */
+    OverrideSnapshot getOverrideSnapshot() {
+        if ( shareMocksAcrossThreads ) {
+            OverrideSnapshot snapshot = sharedOverrideSnapshot;
+            // read epoch before the sets so that a concurrent change results in a stale (and so rebuilt) snapshot.
+            int epoch = sharedOverrideEpoch.get();
+            if ( snapshot == null || snapshot.getEpoch() != epoch) {
+                Set<Class<?>> mocked = getMockOverride();
+                Set<Class<?>> notMocked = getDontMockOverride();
+                snapshot = new OverrideSnapshot(epoch, mocked, getVersion(mocked), toBitSet(mocked),
+                    notMocked, getVersion(notMocked), toBitSet(notMocked));
+                // a racing thread may publish an older snapshot; its epoch is then stale and it gets rebuilt.
+                sharedOverrideSnapshot = snapshot;
+            }
+            return snapshot;
+        } else {
+            OverrideSnapshot snapshot = overrideSnapshot.get();
+            Set<Class<?>> mocked = getMockOverride();
+            Set<Class<?>> notMocked = getDontMockOverride();
+            // each set carries its own version, so only this thread's sets (or the ones it inherited) are checked.
+            int mockedVersion = getVersion(mocked);
+            int notMockedVersion = getVersion(notMocked);
+            if ( snapshot == null || !snapshot.isFor(mocked, mockedVersion, notMocked, notMockedVersion)) {
+                snapshot = new OverrideSnapshot(-1, mocked, mockedVersion, toBitSet(mocked),
+                    notMocked, notMockedVersion, toBitSet(notMocked));
+                overrideSnapshot.set(snapshot);
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * @param classes
+     * @return the number of times classes has been changed, read before the set is compiled.
+     */
+    private static int getVersion(Set<Class<?>> classes) {
+        return classes instanceof OverrideSet? ((OverrideSet)classes).getVersion() : 0;
+    }
+
+    private MockTracker getMockTracker() {
+        return shareMocksAcrossThreads? sharedMockTracker : mockTracker.get();
+    }
+
+    private BitSet toBitSet(Set<Class<?>> classes) {
+        BitSet bits = new BitSet();
+        if ( classes instanceof OverrideSet) {
+            ((OverrideSet)classes).markBits(bits);
+        } else if ( classes != null ) {
+            for(Class<?> clazz: classes) {
+                bits.set(getInterfaceId(clazz));
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * @param interfaceClass
+     * @return the id of interfaceClass, assigning a new one if needed.
+     */
+    int getInterfaceId(Class<?> interfaceClass) {
+        Integer id = interfaceIds.get(interfaceClass);
+        if ( id == null ) {
+            interfaceIds.putIfAbsent(interfaceClass, nextInterfaceId.getAndIncrement());
+            // because another thread might beat this thread to assigning the id.
+            id = interfaceIds.get(interfaceClass);
+        }
+        return id;
+    }
+
+    /**
+     * invalidates the shared {@link OverrideSnapshot}. Thread-local snapshots notice themselves that their sets
+     * have been replaced or changed.
+     */
+    private void overrideChanged() {
+        sharedOverrideEpoch.incrementAndGet();
+    }
+
     /**
      * Method that calls the underlying applicationBuilderFactory
      * to create the real service.
      * @param applicationBuilderFactory
      * @param factoryParameters
+     * @param serviceId factoryParameters.getServiceId(), passed in so that it is only asked for once.
      * @return real service
      */
     Object createCoreServiceImplementation(
             ServiceImplementationFactory applicationBuilderFactory,
-            ServiceImplementationFactoryParameters factoryParameters) {
+            ServiceImplementationFactoryParameters factoryParameters, String serviceId) {
         Object createdObject;
         // wrap the parameters so that ModuleInterceptor
         // can always do it's thing.
@@ -380,7 +602,6 @@ public class MockBuilderFactoryImpl implements MockBuilderFactory {
         Module moduleWrapper = (Module) Proxy.newProxyInstance(loader,
                 new Class[] {Module.class},
                 new ModuleInterceptor(realModule));
-        String serviceId = factoryParameters.getServiceId();
         ServicePoint servicePoint = realModule.getServicePoint(serviceId);
         ServiceImplementationFactoryParametersImpl replacement =
             new ServiceImplementationFactoryParametersImpl(servicePoint,
@@ -396,6 +617,9 @@ public class MockBuilderFactoryImpl implements MockBuilderFactory {
     @SuppressWarnings({ "unchecked" })
     public void createInterceptor(InterceptorStack stack, Module invokingModule, List parameters) {
         Log log = stack.getServiceLog();
+        if ( !standInsSet ) {
+            loadStandIns(invokingModule, log);
+        }
 
         ServiceImplementationFactory delegate = (ServiceImplementationFactory) stack.peek();
         InvocationHandler handler = new ServiceImplementationFactoryInterceptor(log, delegate);
@@ -409,6 +633,23 @@ public class MockBuilderFactoryImpl implements MockBuilderFactory {
         stack.push(interceptor);
     }
 
+    /**
+     * used when the mock factory's descriptor does not set the stand-ins.
+     * @param module
+     * @param log
+     */
+    @SuppressWarnings("unchecked")
+    private synchronized void loadStandIns(Module module, Log log) {
+        if ( !standInsSet ) {
+            try {
+                setStandIns(module.getConfiguration(STAND_INS_CONFIGURATION_ID));
+            } catch (ApplicationRuntimeException e) {
+                log.debug("No stand-ins: "+e.getMessage());
+                standInsSet = true;
+            }
+        }
+    }
+
     /**
      * @param interfaceClass
      * @return mock object implementing interfaceClass.
@@ -416,22 +657,39 @@ public class MockBuilderFactoryImpl implements MockBuilderFactory {
     @SuppressWarnings("unchecked")
     protected <T> T getThreadsMock(Class<T> interfaceClass) {
         T mock = (T) getMockMap().get(interfaceClass);
-        if ( mock != null ) {
-            return mock;
+        if ( mock == null ) {
+            mock = createMock(interfaceClass);
+            getMockMap().put(interfaceClass, mock);
         }
-        mock = createMock(interfaceClass);
-        getMockMap().put(interfaceClass, mock);
+        getMockTracker().touch(mock);
+        return mock;
+    }
+
+    /**
+     * @param interfaceClass
+     * @return the mock handed to a service being constructed. The service keeps it, so it is tracked again after
+     * every {@link #reset()}.
+     */
+    <T> T getInjectedMock(Class<T> interfaceClass) {
+        T mock = getThreadsMock(interfaceClass);
+        getMockTracker().inject(mock);
         return mock;
     }
+
+    /**
+     * @param serviceId
+     * @param interfaceClass
+     * @return the mock handed to a service being constructed in place of the explicitly named service.
+     */
     @SuppressWarnings("unchecked")
     protected <T> T getThreadsMockByName(String serviceId, Class<T> interfaceClass) {
         Map<String, Object> map = this.mockObjectsByNameMap.get();
         T mock = (T) map.get(serviceId);
-        if ( mock != null ) {
-            return mock;
+        if ( mock == null ) {
+            mock = createMock(interfaceClass);
+            map.put(serviceId, mock);
         }
-        mock = createMock(interfaceClass);
-        map.put(serviceId, mock);
+        getMockTracker().inject(mock);
         return mock;
     }
 
@@ -442,6 +700,15 @@ public class MockBuilderFactoryImpl implements MockBuilderFactory {
      * @return
      */
     private <T> T createMock(Class<T> interfaceClass) {
+        StandInDefinition standIn = standIns.get(interfaceClass);
+        if ( standIn != null && !realMockInterfaces.contains(interfaceClass)) {
+            getLog().debug("Creating stand-in for "+interfaceClass);
+            return StandInService.newStandIn(interfaceClass, standIn, countStubCalls);
+        }
+        if ( !isRealMockNeeded(interfaceClass)) {
+            getLog().debug("Creating stub for "+interfaceClass);
+            return NoOpStub.newStub(interfaceClass, countStubCalls);
+        }
         IMocksControl mockControl = getMockControl();
         T mock;
         try {
@@ -454,11 +721,21 @@ public class MockBuilderFactoryImpl implements MockBuilderFactory {
     }
     /**
      * used to get the mock objects so they can be programmed.
+     *
+     * In stub mode, or if implementationClass has a stand-in, implementationClass is added to the real mock
+     * interfaces and any existing {@link NoOpStub} (or stand-in) is replaced. Services that already hold the
+     * stub directly keep it.
      * @param <T>
      * @param implementationClass
      * @return the implementation instance (usually a mock object)
      */
     public <T> T getImplementation(Class<T> implementationClass) {
+        if ( (stubMode || standIns.containsKey(implementationClass)) && realMockInterfaces.add(implementationClass)) {
+            Object existing = getMockMap().get(implementationClass);
+            if ( NoOpStub.isStub(existing)) {
+                getMockMap().remove(implementationClass);
+            }
+        }
         T mock = getThreadsMock(implementationClass);
         return mock;
     }
@@ -470,8 +747,7 @@ public class MockBuilderFactoryImpl implements MockBuilderFactory {
      * or is labeled with the {@link NotService} annotation.
      */
     private boolean isMockable(Class<?> serviceInterface) {
-        Set<Class<?>> dontMockOverrideSet = getDontMockOverride();
-        return (dontMockOverrideSet == null || !dontMockOverrideSet.contains(serviceInterface)) 
+        return !getOverrideSnapshot().isNotMocked(interfaceIds.get(serviceInterface))
         	&& (getServicesSetter()==null || getServicesSetter().isWireableClass(serviceInterface));
     }
     /**
@@ -479,34 +755,47 @@ public class MockBuilderFactoryImpl implements MockBuilderFactory {
      * @param mock an EasyMock or a Proxy with a MockSwitcher as the Proxy handler.
      * @return actual mock object
      */
-    @SuppressWarnings("unchecked")
     public Object getMock(final Object mock) {
-        try {
-            // check to see if this is a hivemind proxy.
-            @SuppressWarnings("unused")
-            final Field f = mock.getClass().getDeclaredField("_inner");
-            // TODO note it would be best to get the value of _inner
-            List<Class<?>> interfaces = ClassUtils.getAllInterfaces(mock.getClass());
-            Map<Class<?>, Object> mockMap = getMockMap();
-            for(Class interfaceClass: interfaces) {
-                Object threadMock = mockMap.get(interfaceClass);
-                if ( threadMock != null ) {
-                    return threadMock;
-                }
+        HivemindProxyClass proxyClass = getHivemindProxyClass(mock.getClass());
+        if ( proxyClass == NOT_HIVEMIND_PROXY) {
+            return mock;
+        }
+        Map<Class<?>, Object> mockMap = getMockMap();
+        Object threadMock = null;
+        // if the service has been constructed, _inner leads straight to the MockSwitcher and so the interface.
+        Object inner = proxyClass.getInner(mock);
+        if ( inner != null && Proxy.isProxyClass(inner.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(inner);
+            if ( handler instanceof MockSwitcher) {
+                threadMock = mockMap.get(((MockSwitcher)handler).getInterfaceClass());
             }
-        } catch (NoSuchFieldException e) {
-            // ignore -- mock was not a hivemind proxy
+        }
+        if ( threadMock == null ) {
+            threadMock = proxyClass.getMock(mockMap);
+        }
+        if ( threadMock != null ) {
+            // the caller is about to program this mock.
+            getMockTracker().touch(threadMock);
+            return threadMock;
         }
         return mock;
     }
 
+    /**
+     * @param clazz
+     * @return the cached information about clazz, {@link #NOT_HIVEMIND_PROXY} if clazz is not a hivemind proxy.
+     */
+    private static HivemindProxyClass getHivemindProxyClass(Class<?> clazz) {
+        return HIVEMIND_PROXY_CLASSES.get(clazz);
+    }
+
     /**
      *
      * @param serviceClass
      * @return if the interface is being mocked.
      */
     public boolean isBeingMocked(Class<?> serviceClass) {
-        return mockOverride.get().contains(serviceClass);
+        return getOverrideSnapshot().isMocked(interfaceIds.get(serviceClass));
     }
 
     /**
@@ -612,55 +901,56 @@ public class MockBuilderFactoryImpl implements MockBuilderFactory {
         @SuppressWarnings({  "unchecked" })
         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
             Class serviceInterface;
-            if ( "containsService".equals(method.getName())) {
+            switch(getModuleMethod(method)) {
+            case CONTAINS_SERVICE:
                 // this module always has the service if the class in question is
                 // not a java class.
                 serviceInterface = (Class) args[0];
                 return isMockable(serviceInterface) || realModule.containsService(serviceInterface);
-            } else if ( "getService".equals(method.getName())) {
+            case GET_SERVICE_BY_INTERFACE:
+                serviceInterface = (Class) args[0];
+                if ( realModule.containsService(serviceInterface) ) {
+                    return realModule.getService(serviceInterface);
+                } else if ( isMockable(serviceInterface)) {
+                    // no such service supply a proxy (unless it is a java class)
+                    return getInjectedMock(serviceInterface);
+                } else {
+                    return null;
+                }
+            case GET_SERVICE_BY_ID:
+                serviceInterface = (Class) args[1];
+                String serviceId = (String) args[0];
                 Object createdObject = null;
-                switch( args.length ) {
-                case 1:
-                    serviceInterface = (Class) args[0];
-                    if ( realModule.containsService(serviceInterface) ) {
-                        createdObject = realModule.getService(serviceInterface);
-                    } else if ( isMockable(serviceInterface)) {
-                        // no such service supply a proxy (unless it is a java class)
-                        createdObject = getThreadsMock(serviceInterface);
-                    }
-                    break;
-                case 2:
-                    serviceInterface = (Class) args[1];
-                    String serviceId = (String) args[0];
-                    // Do this look because the class may be specified too specifically. Usually this will result in an error
-                    // when actually trying to set the property. But the classcast exception that occurs at that point is more informative.
-                    StringBuilder errorMessages = new StringBuilder();
-                    for(Class<?> clazz : new Class<?>[] { serviceInterface, Object.class }) {
-                        try {
-                            createdObject = realModule.getService(serviceId, clazz);
-                            break;
-                        } catch(ApplicationRuntimeException e) {
-                            errorMessages.append("clazz = ").append(clazz).append(" serviceId=").append(serviceId).append(" error message=").append(e.getMessage());
-                        }
-                    }
-                    if ( createdObject == null) {
-                        getLog().warn("Creating mock for specifically named service. Error messages are:\n"+errorMessages);
-                        createdObject = getThreadsMockByName(serviceId, serviceInterface);
+                // Do this look because the class may be specified too specifically. Usually this will result in an error
+                // when actually trying to set the property. But the classcast exception that occurs at that point is more informative.
+                StringBuilder errorMessages = new StringBuilder();
+                for(Class<?> clazz : new Class<?>[] { serviceInterface, Object.class }) {
+                    try {
+                        createdObject = realModule.getService(serviceId, clazz);
+                        break;
+                    } catch(ApplicationRuntimeException e) {
+                        errorMessages.append("clazz = ").append(clazz).append(" serviceId=").append(serviceId).append(" error message=").append(e.getMessage());
                     }
-                    break;
-                default:
-                    createdObject = method.invoke(realModule, args);
+                }
+                if ( createdObject == null) {
+                    getLog().warn("Creating mock for specifically named service. Error messages are:\n"+errorMessages);
+                    createdObject = getThreadsMockByName(serviceId, serviceInterface);
                 }
                 return createdObject;
-            } else if ( "getTranslator".equals(method.getName())){
+            case GET_TRANSLATOR:
                 String translator = (String) args[0];
                 if ( "service".equals(translator)) {
                     return ServiceTranslator.INSTANCE;
                 } else {
                     return realModule.getTranslator(translator);
                 }
-            } else {
-                return method.invoke(realModule, args);
+            default:
+                try {
+                    return method.invoke(realModule, args);
+                } catch (InvocationTargetException e ) {
+                    // to reduce unnecessary nesting.
+                    throw e.getCause();
+                }
             }
         }
     }
@@ -674,16 +964,31 @@ public class MockBuilderFactoryImpl implements MockBuilderFactory {
          * does not have a defined object.
          */
         private final Class<?> interfaceClass;
+        private final int interfaceId;
+        private final String serviceId;
         private ServiceImplementationFactoryParameters factoryParameters;
         private ServiceImplementationFactory delegate;
+        /**
+         * the decision made for the last {@link OverrideSnapshot} seen. Reused until the snapshot changes.
+         */
+        private volatile CachedDecision cachedDecision;
+        private volatile boolean realServiceCreated;
         MockSwitcher(ServiceImplementationFactory delegate, ServiceImplementationFactoryParameters factoryParameters) {
             super();
             this.delegate = delegate;
             this.factoryParameters = factoryParameters;
             interfaceClass = factoryParameters.getServiceInterface();
-            // MUST create the underlying service so that <event-listeners> get triggered and so that the initialization happens.
-            // However using createUnderlyingService() we can control bad initialization effects (is this good?)
-            setUnderlyingService(createUnderlyingService());
+            interfaceId = getInterfaceId(interfaceClass);
+            serviceId = factoryParameters.getServiceId();
+            if ( isLazy(serviceId) ) {
+                // <event-listeners> and initialization wait until the real service is needed
+                // or createDeferredServices() is called.
+                deferredSwitchers.add(this);
+            } else {
+                // MUST create the underlying service so that <event-listeners> get triggered and so that the initialization happens.
+                // However using createUnderlyingService() we can control bad initialization effects (is this good?)
+                getRealService();
+            }
         }
 
         /**
@@ -692,14 +997,37 @@ public class MockBuilderFactoryImpl implements MockBuilderFactory {
          */
         @Override
         public Object getUnderlyingService() {
+            OverrideSnapshot snapshot = getOverrideSnapshot();
+            CachedDecision cached = this.cachedDecision;
+            if ( cached == null || cached.snapshot != snapshot) {
+                cached = new CachedDecision(snapshot, snapshot.getDecision(interfaceId));
+                this.cachedDecision = cached;
+            }
             Object underlyingObject;
-            underlyingObject = getServiceToUse(interfaceClass, getRealService(), false);
+            // a mocked service never needs the real service (which may not have been constructed).
+            Object realService = cached.decision == OverrideDecision.MOCK? null : getRealService();
+            underlyingObject = getServiceToUse(interfaceClass, cached.decision, realService, false);
             return underlyingObject;
         }
 
         public Object getRealService() {
+            if ( !realServiceCreated ) {
+                synchronized(this) {
+                    if ( !realServiceCreated ) {
+                        setUnderlyingService(createUnderlyingService());
+                        realServiceCreated = true;
+                    }
+                }
+            }
             return super.getUnderlyingService();
         }
+
+        /**
+         * @return true once the real service has been constructed; a deferred switcher is then done.
+         */
+        boolean isRealServiceCreated() {
+            return realServiceCreated;
+        }
         /**
          * @return the interfaceClass
          */
@@ -709,7 +1037,7 @@ public class MockBuilderFactoryImpl implements MockBuilderFactory {
         @Override
         protected Object createUnderlyingService() {
             try {
-                return createCoreServiceImplementation(delegate, factoryParameters);
+                return createCoreServiceImplementation(delegate, factoryParameters, serviceId);
             } catch (Exception e) {
                 return e;
             }
@@ -720,4 +1048,435 @@ public class MockBuilderFactoryImpl implements MockBuilderFactory {
             return "interface "+this.interfaceClass;
         }
     }
+
+    private static final String INNER_FIELD = "_inner";
+    private static final HivemindProxyClass NOT_HIVEMIND_PROXY = new HivemindProxyClass(null, new Class<?>[0]);
+    /**
+     * classes passed to {@link MockBuilderFactoryImpl#getMock(Object)} already examined. The information is held by
+     * the class itself so neither the proxy classes nor their class loaders are kept from being unloaded.
+     */
+    private static final ClassValue<HivemindProxyClass> HIVEMIND_PROXY_CLASSES = new ClassValue<HivemindProxyClass>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        protected HivemindProxyClass computeValue(Class<?> clazz) {
+            // hivemind proxies hold the service in _inner.
+            for(Field field: clazz.getDeclaredFields()) {
+                if ( INNER_FIELD.equals(field.getName())) {
+                    List<Class<?>> interfaces = ClassUtils.getAllInterfaces(clazz);
+                    return new HivemindProxyClass(field, interfaces.toArray(new Class<?>[interfaces.size()]));
+                }
+            }
+            return NOT_HIVEMIND_PROXY;
+        }
+    };
+
+    /**
+     * What {@link MockBuilderFactoryImpl#getMock(Object)} needs to know about a hivemind proxy class.
+     */
+    private static final class HivemindProxyClass {
+        /**
+         * the _inner field, made accessible.
+         */
+        private final Field inner;
+        private final Class<?>[] interfaces;
+        /**
+         * the interface the mock was last found under, tried first next time.
+         */
+        private volatile Class<?> mockedInterface;
+
+        HivemindProxyClass(Field inner, Class<?>[] interfaces) {
+            this.interfaces = interfaces;
+            Field accessible = inner;
+            if ( inner != null ) {
+                try {
+                    inner.setAccessible(true);
+                } catch (SecurityException e) {
+                    // fall back to looking up by interface.
+                    accessible = null;
+                }
+            }
+            this.inner = accessible;
+        }
+
+        /**
+         * @param mockMap
+         * @return the mock for one of the proxy's interfaces or null if there is none.
+         */
+        Object getMock(Map<Class<?>, Object> mockMap) {
+            Class<?> cached = mockedInterface;
+            Object mock = cached == null? null : mockMap.get(cached);
+            for(int i = 0; mock == null && i < interfaces.length; i++) {
+                mock = mockMap.get(interfaces[i]);
+                if ( mock != null ) {
+                    mockedInterface = interfaces[i];
+                }
+            }
+            return mock;
+        }
+
+        /**
+         * @param proxy
+         * @return the current _inner value or null if it cannot be read.
+         */
+        Object getInner(Object proxy) {
+            if ( inner == null ) {
+                return null;
+            }
+            try {
+                return inner.get(proxy);
+            } catch (IllegalAccessException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * The mocks handed out ( by {@link MockBuilderFactoryImpl#getThreadsMock(Class)},
+     * {@link MockBuilderFactoryImpl#getThreadsMockByName(String, Class)} or
+     * {@link MockBuilderFactoryImpl#getMock(Object)} ) since the last reset, each with the state this factory has
+     * put it in, so replaying, verifying and resetting only visit those mocks and never meet one in the wrong state.
+     * The mocks handed to services while they are constructed are also remembered: the services keep them,
+     * so they are tracked again after each reset.
+     */
+    private static final class MockTracker {
+        private final ConcurrentMap<TrackedMock, TrackedMock> touched = new ConcurrentHashMap<TrackedMock, TrackedMock>();
+        /**
+         * guarded by this.
+         */
+        private final Set<Object> injected = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+        void touch(Object mock) {
+            TrackedMock key = new TrackedMock(mock);
+            if ( !touched.containsKey(key)) {
+                get(key);
+            }
+        }
+
+        synchronized void inject(Object mock) {
+            injected.add(mock);
+            touch(mock);
+        }
+
+        synchronized void replay() {
+            for(TrackedMock tracked: touched.values()) {
+                replay(tracked);
+            }
+        }
+
+        synchronized void replay(Object mock) {
+            replay(get(new TrackedMock(mock)));
+        }
+
+        private void replay(TrackedMock tracked) {
+            if ( tracked.state == MockState.RECORD) {
+                EasyMock.replay(tracked.mock);
+                tracked.state = MockState.REPLAY;
+            }
+        }
+
+        synchronized void verify() {
+            for(TrackedMock tracked: touched.values()) {
+                if ( tracked.state == MockState.REPLAY) {
+                    EasyMock.verify(tracked.mock);
+                }
+            }
+        }
+
+        synchronized void reset(Object mock) {
+            TrackedMock tracked = get(new TrackedMock(mock));
+            if ( tracked.state != MockState.STUB) {
+                EasyMock.reset(mock);
+                tracked.state = MockState.RECORD;
+            }
+        }
+
+        /**
+         * reset the mocks touched since the last reset and forget them, except for the injected ones.
+         */
+        synchronized void reset() {
+            for(TrackedMock tracked: touched.values()) {
+                if ( tracked.state != MockState.STUB) {
+                    EasyMock.reset(tracked.mock);
+                }
+            }
+            touched.clear();
+            for(Object mock: injected) {
+                touch(mock);
+            }
+        }
+
+        /**
+         * @param key
+         * @return the tracked mock, tracking key if the mock is not tracked yet.
+         */
+        private TrackedMock get(TrackedMock key) {
+            TrackedMock tracked = touched.get(key);
+            if ( tracked == null ) {
+                // a mock not tracked yet is new or has been reset.
+                key.state = NoOpStub.isStub(key.mock)? MockState.STUB : MockState.RECORD;
+                tracked = touched.putIfAbsent(key, key);
+                if ( tracked == null ) {
+                    tracked = key;
+                }
+            }
+            return tracked;
+        }
+    }
+
+    /**
+     * The state {@link MockTracker} has put a mock in.
+     */
+    enum MockState {
+        RECORD,
+        REPLAY,
+        /**
+         * a {@link NoOpStub} (or stand-in): not an EasyMock mock so never replayed, verified or reset.
+         */
+        STUB
+    }
+
+    /**
+     * A mock keyed by identity so that the mocks' own equals()/hashCode() are never invoked.
+     */
+    private static final class TrackedMock {
+        private final Object mock;
+        /**
+         * changed only while holding the {@link MockTracker}'s lock.
+         */
+        private MockState state;
+
+        TrackedMock(Object mock) {
+            this.mock = mock;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(mock);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TrackedMock && ((TrackedMock)o).mock == mock;
+        }
+    }
+
+    /**
+     * The {@link Module} methods that {@link ModuleInterceptor} handles itself.
+     */
+    enum ModuleMethod {
+        CONTAINS_SERVICE,
+        GET_SERVICE_BY_INTERFACE,
+        GET_SERVICE_BY_ID,
+        GET_TRANSLATOR,
+        /**
+         * passed straight through to the real module.
+         */
+        OTHER
+    }
+
+    /**
+     * Classifies each {@link Module} method once, so that {@link ModuleInterceptor} does not compare
+     * method names on every call.
+     */
+    private static final ConcurrentMap<Method, ModuleMethod> MODULE_METHODS = new ConcurrentHashMap<Method, ModuleMethod>();
+    static {
+        try {
+            MODULE_METHODS.put(Module.class.getMethod("containsService", Class.class), ModuleMethod.CONTAINS_SERVICE);
+            MODULE_METHODS.put(Module.class.getMethod("getService", Class.class), ModuleMethod.GET_SERVICE_BY_INTERFACE);
+            MODULE_METHODS.put(Module.class.getMethod("getService", String.class, Class.class), ModuleMethod.GET_SERVICE_BY_ID);
+            MODULE_METHODS.put(Module.class.getMethod("getTranslator", String.class), ModuleMethod.GET_TRANSLATOR);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Module interface does not have expected methods", e);
+        }
+    }
+
+    static ModuleMethod getModuleMethod(Method method) {
+        ModuleMethod moduleMethod = MODULE_METHODS.get(method);
+        if ( moduleMethod == null ) {
+            // remember so that the next call is a single lookup as well.
+            MODULE_METHODS.putIfAbsent(method, ModuleMethod.OTHER);
+            moduleMethod = ModuleMethod.OTHER;
+        }
+        return moduleMethod;
+    }
+
+    /**
+     * How the override sets say a service interface should be handled.
+     */
+    enum OverrideDecision {
+        /**
+         * in the {@link MockBuilderFactoryImpl#mockOverride} set.
+         */
+        MOCK,
+        /**
+         * in the {@link MockBuilderFactoryImpl#dontMockOverride} set (and not in the mockOverride set).
+         */
+        DONT_MOCK,
+        /**
+         * in neither set.
+         */
+        DEFAULT
+    }
+
+    /**
+     * Immutable, compiled form of the mockOverride / dontMockOverride sets for one context (thread or all threads).
+     * Bits are indexed by {@link MockBuilderFactoryImpl#getInterfaceId(Class)}.
+     */
+    static final class OverrideSnapshot {
+        private final int epoch;
+        /**
+         * the sets compiled and their versions at the time, so that a thread-local snapshot can tell whether it is
+         * still current.
+         */
+        private final Set<Class<?>> mockedSet;
+        private final int mockedVersion;
+        private final Set<Class<?>> notMockedSet;
+        private final int notMockedVersion;
+        private final BitSet mocked;
+        private final BitSet notMocked;
+
+        OverrideSnapshot(int epoch, Set<Class<?>> mockedSet, int mockedVersion, BitSet mocked,
+            Set<Class<?>> notMockedSet, int notMockedVersion, BitSet notMocked) {
+            this.epoch = epoch;
+            this.mockedSet = mockedSet;
+            this.mockedVersion = mockedVersion;
+            this.notMockedSet = notMockedSet;
+            this.notMockedVersion = notMockedVersion;
+            this.mocked = mocked;
+            this.notMocked = notMocked;
+        }
+
+        int getEpoch() {
+            return epoch;
+        }
+
+        /**
+         * @return true if this snapshot was compiled from these sets at these versions.
+         */
+        boolean isFor(Set<Class<?>> mockedSet, int mockedVersion, Set<Class<?>> notMockedSet, int notMockedVersion) {
+            return this.mockedSet == mockedSet && this.mockedVersion == mockedVersion
+                && this.notMockedSet == notMockedSet && this.notMockedVersion == notMockedVersion;
+        }
+
+        /**
+         * @param interfaceId null if the interface has never been assigned an id (so cannot be in either set).
+         * @return true if in mockOverride set.
+         */
+        boolean isMocked(Integer interfaceId) {
+            return interfaceId != null && mocked.get(interfaceId);
+        }
+
+        boolean isNotMocked(Integer interfaceId) {
+            return interfaceId != null && notMocked.get(interfaceId);
+        }
+
+        OverrideDecision getDecision(Integer interfaceId) {
+            if ( isMocked(interfaceId)) {
+                return OverrideDecision.MOCK;
+            } else if ( isNotMocked(interfaceId)) {
+                return OverrideDecision.DONT_MOCK;
+            } else {
+                return OverrideDecision.DEFAULT;
+            }
+        }
+    }
+
+    /**
+     * pairs an {@link OverrideSnapshot} with the decision computed from it so both can be replaced atomically.
+     */
+    private static final class CachedDecision {
+        private final OverrideSnapshot snapshot;
+        private final OverrideDecision decision;
+
+        CachedDecision(OverrideSnapshot snapshot, OverrideDecision decision) {
+            this.snapshot = snapshot;
+            this.decision = decision;
+        }
+    }
+
+    /**
+     * Synchronized set that invalidates the existing {@link OverrideSnapshot}s whenever it is changed.
+     * As with {@link java.util.Collections#synchronizedSet(Set)}, callers must synchronize on the set when iterating.
+     */
+    private class OverrideSet extends AbstractSet<Class<?>> {
+        private final Set<Class<?>> classes = new HashSet<Class<?>>();
+        /**
+         * bumped on every change, while holding the set's lock.
+         */
+        private volatile int version;
+
+        OverrideSet(Collection<Class<?>> initial) {
+            if ( initial != null ) {
+                classes.addAll(initial);
+            }
+        }
+
+        @Override
+        public synchronized boolean add(Class<?> clazz) {
+            boolean changed = classes.add(clazz);
+            if ( changed ) {
+                changed();
+            }
+            return changed;
+        }
+
+        @Override
+        public synchronized boolean remove(Object o) {
+            boolean changed = classes.remove(o);
+            if ( changed ) {
+                changed();
+            }
+            return changed;
+        }
+
+        @Override
+        public synchronized boolean contains(Object o) {
+            return classes.contains(o);
+        }
+
+        @Override
+        public synchronized int size() {
+            return classes.size();
+        }
+
+        @Override
+        public synchronized void clear() {
+            if ( !classes.isEmpty()) {
+                classes.clear();
+                changed();
+            }
+        }
+
+        @Override
+        public Iterator<Class<?>> iterator() {
+            final Iterator<Class<?>> iterator = classes.iterator();
+            return new Iterator<Class<?>>() {
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+                public Class<?> next() {
+                    return iterator.next();
+                }
+                public void remove() {
+                    iterator.remove();
+                    changed();
+                }
+            };
+        }
+
+        int getVersion() {
+            return version;
+        }
+
+        private void changed() {
+            version++;
+            overrideChanged();
+        }
+
+        synchronized void markBits(BitSet bits) {
+            for(Class<?> clazz: classes) {
+                bits.set(getInterfaceId(clazz));
+            }
+        }
+    }
 }
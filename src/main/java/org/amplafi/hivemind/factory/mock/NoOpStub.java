@@ -0,0 +1,148 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package org.amplafi.hivemind.factory.mock;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A do-nothing implementation of a service interface. Every method returns the default value for its
+ * return type (null, 0, false). Used by {@link MockBuilderFactoryImpl} in stub mode for services
+ * that only need to exist to satisfy wiring. Much cheaper than an EasyMock mock, but cannot be programmed
+ * or verified.
+ */
+public class NoOpStub implements InvocationHandler {
+    private static final Map<Class<?>, Object> DEFAULT_VALUES = new HashMap<Class<?>, Object>();
+    static {
+        DEFAULT_VALUES.put(boolean.class, Boolean.FALSE);
+        DEFAULT_VALUES.put(char.class, Character.valueOf('\0'));
+        DEFAULT_VALUES.put(byte.class, Byte.valueOf((byte) 0));
+        DEFAULT_VALUES.put(short.class, Short.valueOf((short) 0));
+        DEFAULT_VALUES.put(int.class, Integer.valueOf(0));
+        DEFAULT_VALUES.put(long.class, Long.valueOf(0L));
+        DEFAULT_VALUES.put(float.class, Float.valueOf(0f));
+        DEFAULT_VALUES.put(double.class, Double.valueOf(0d));
+    }
+
+    private final Class<?> interfaceClass;
+
+    /**
+     * null if calls are not being counted.
+     */
+    private final ConcurrentMap<Method, AtomicLong> callCounts;
+
+    public NoOpStub(Class<?> interfaceClass, boolean countCalls) {
+        this.interfaceClass = interfaceClass;
+        this.callCounts = countCalls ? new ConcurrentHashMap<Method, AtomicLong>() : null;
+    }
+
+    /**
+     * @param <T>
+     * @param interfaceClass
+     * @param countCalls if true record how many times each method is called.
+     * @return a stub implementing interfaceClass
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T newStub(Class<T> interfaceClass, boolean countCalls) {
+        return (T) Proxy.newProxyInstance(interfaceClass.getClassLoader(),
+            new Class<?>[] { interfaceClass }, new NoOpStub(interfaceClass, countCalls));
+    }
+
+    /**
+     * @param object
+     * @return the {@link NoOpStub} handling object or null if object is not a stub.
+     */
+    public static NoOpStub getStub(Object object) {
+        if ( object != null && Proxy.isProxyClass(object.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(object);
+            if ( handler instanceof NoOpStub) {
+                return (NoOpStub) handler;
+            }
+        }
+        return null;
+    }
+
+    public static boolean isStub(Object object) {
+        return getStub(object) != null;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if ( method.getDeclaringClass() == Object.class) {
+            String name = method.getName();
+            if ( "equals".equals(name)) {
+                return proxy == args[0];
+            } else if ( "hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            } else if ( "toString".equals(name)) {
+                return toString();
+            }
+        }
+        if ( callCounts != null ) {
+            AtomicLong count = callCounts.get(method);
+            if ( count == null ) {
+                callCounts.putIfAbsent(method, new AtomicLong());
+                // because another thread might beat this thread to inserting the counter.
+                count = callCounts.get(method);
+            }
+            count.incrementAndGet();
+        }
+        return DEFAULT_VALUES.get(method.getReturnType());
+    }
+
+    /**
+     * @param methodName
+     * @return number of calls to all methods named methodName; always 0 if calls are not being counted.
+     */
+    public long getCallCount(String methodName) {
+        long total = 0;
+        if ( callCounts != null ) {
+            for(Map.Entry<Method, AtomicLong> entry: callCounts.entrySet()) {
+                if ( entry.getKey().getName().equals(methodName)) {
+                    total += entry.getValue().get();
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return number of calls to any method; always 0 if calls are not being counted.
+     */
+    public long getTotalCallCount() {
+        long total = 0;
+        if ( callCounts != null ) {
+            for(AtomicLong count: callCounts.values()) {
+                total += count.get();
+            }
+        }
+        return total;
+    }
+
+    public Class<?> getInterfaceClass() {
+        return interfaceClass;
+    }
+
+    @Override
+    public String toString() {
+        return "stub for "+this.interfaceClass;
+    }
+}
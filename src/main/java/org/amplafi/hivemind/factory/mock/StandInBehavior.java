@@ -0,0 +1,122 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package org.amplafi.hivemind.factory.mock;
+
+/**
+ * How a {@link StandInService} behaves when one method (or, if {@link #getMethodName()} is null, any method)
+ * is called: how long it takes, how often it fails and what it returns.
+ *
+ * Created from the &lt;method&gt; element of a amplafi.standin.StandIns contribution.
+ */
+public class StandInBehavior {
+    private String methodName;
+    private LatencyDistribution latency = LatencyDistribution.FIXED;
+    private double meanMillis;
+    private double minMillis;
+    private double maxMillis;
+    private double sigma;
+    private double errorRate;
+    private String errorMessage;
+    private String returnValue;
+
+    /**
+     * @return the method this applies to, null for all methods without their own behavior.
+     */
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public void setMethodName(String methodName) {
+        this.methodName = methodName;
+    }
+
+    public LatencyDistribution getLatency() {
+        return latency;
+    }
+
+    public void setLatency(LatencyDistribution latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * @return the latency for {@link LatencyDistribution#FIXED}, the mean for {@link LatencyDistribution#LOG_NORMAL}.
+     */
+    public double getMeanMillis() {
+        return meanMillis;
+    }
+
+    public void setMeanMillis(double meanMillis) {
+        this.meanMillis = meanMillis;
+    }
+
+    public double getMinMillis() {
+        return minMillis;
+    }
+
+    public void setMinMillis(double minMillis) {
+        this.minMillis = minMillis;
+    }
+
+    public double getMaxMillis() {
+        return maxMillis;
+    }
+
+    public void setMaxMillis(double maxMillis) {
+        this.maxMillis = maxMillis;
+    }
+
+    public double getSigma() {
+        return sigma;
+    }
+
+    public void setSigma(double sigma) {
+        this.sigma = sigma;
+    }
+
+    /**
+     * @return fraction (0.0 - 1.0) of calls that fail.
+     */
+    public double getErrorRate() {
+        return errorRate;
+    }
+
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public void setErrorMessage(String errorMessage) {
+        this.errorMessage = errorMessage;
+    }
+
+    /**
+     * @return the canned return value, converted to the method's return type. null means the type's default.
+     */
+    public String getReturnValue() {
+        return returnValue;
+    }
+
+    public void setReturnValue(String returnValue) {
+        this.returnValue = returnValue;
+    }
+
+    @Override
+    public String toString() {
+        return "method="+methodName+" latency="+latency+" errorRate="+errorRate;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package org.amplafi.hivemind.factory.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes the stand-in {@link MockBuilderFactoryImpl} creates for one service interface. The stand-in is
+ * handed out where a mock would be: for services missing from the registry or whose interface is in
+ * {@link MockBuilderFactory#getMockOverride()}. Services that exist are not replaced.
+ *
+ * Sample contribution:
+ * <pre>
+ *  &lt;contribution configuration-id="amplafi.standin.StandIns"&gt;
+ *      &lt;stand-in interface="com.example.PaymentGateway"&gt;
+ *          &lt;method latency="log-normal" mean-millis="40" sigma="0.6" error-rate="0.01"/&gt;
+ *          &lt;method name="isAvailable" latency="fixed" mean-millis="1" return="true"/&gt;
+ *      &lt;/stand-in&gt;
+ *  &lt;/contribution&gt;
+ * </pre>
+ */
+public class StandInDefinition {
+    private Class<?> serviceInterface;
+    private List<StandInBehavior> behaviors = new ArrayList<StandInBehavior>();
+
+    public Class<?> getServiceInterface() {
+        return serviceInterface;
+    }
+
+    public void setServiceInterface(Class<?> serviceInterface) {
+        this.serviceInterface = serviceInterface;
+    }
+
+    public List<StandInBehavior> getBehaviors() {
+        return behaviors;
+    }
+
+    public void addBehavior(StandInBehavior behavior) {
+        this.behaviors.add(behavior);
+    }
+
+    /**
+     * @param methodName
+     * @return the behavior for methodName, the default (unnamed) behavior, or null.
+     */
+    public StandInBehavior getBehavior(String methodName) {
+        StandInBehavior defaultBehavior = null;
+        for(StandInBehavior behavior: behaviors) {
+            if ( behavior.getMethodName() == null ) {
+                defaultBehavior = behavior;
+            } else if ( behavior.getMethodName().equals(methodName)) {
+                return behavior;
+            }
+        }
+        return defaultBehavior;
+    }
+}
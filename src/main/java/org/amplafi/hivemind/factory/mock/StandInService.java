@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package org.amplafi.hivemind.factory.mock;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.hivemind.ApplicationRuntimeException;
+
+/**
+ * A local stand-in for a (usually remote) service. Each call waits for a latency drawn from the
+ * configured {@link LatencyDistribution}, fails at the configured error rate and otherwise returns the
+ * canned value. Lets the application tier be load tested without its backends.
+ *
+ * @see StandInDefinition
+ */
+public class StandInService extends NoOpStub {
+    private static final Map<Class<?>, Class<?>> WRAPPERS = new HashMap<Class<?>, Class<?>>();
+    static {
+        WRAPPERS.put(boolean.class, Boolean.class);
+        WRAPPERS.put(byte.class, Byte.class);
+        WRAPPERS.put(short.class, Short.class);
+        WRAPPERS.put(int.class, Integer.class);
+        WRAPPERS.put(long.class, Long.class);
+        WRAPPERS.put(float.class, Float.class);
+        WRAPPERS.put(double.class, Double.class);
+    }
+
+    private final StandInDefinition definition;
+    private final ConcurrentMap<Method, MethodStandIn> methodStandIns = new ConcurrentHashMap<Method, MethodStandIn>();
+
+    public StandInService(StandInDefinition definition, boolean countCalls) {
+        super(definition.getServiceInterface(), countCalls);
+        this.definition = definition;
+    }
+
+    /**
+     * @param <T>
+     * @param interfaceClass
+     * @param definition
+     * @param countCalls
+     * @return a stand-in implementing interfaceClass
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T newStandIn(Class<T> interfaceClass, StandInDefinition definition, boolean countCalls) {
+        return (T) Proxy.newProxyInstance(interfaceClass.getClassLoader(),
+            new Class<?>[] { interfaceClass }, new StandInService(definition, countCalls));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        Object result = super.invoke(proxy, method, args);
+        if ( method.getDeclaringClass() == Object.class) {
+            return result;
+        }
+        MethodStandIn methodStandIn = getMethodStandIn(method);
+        StandInBehavior behavior = methodStandIn.behavior;
+        if ( behavior == null ) {
+            return result;
+        }
+        Random random = ThreadLocalRandom.current();
+        double latencyMillis = behavior.getLatency().sampleMillis(behavior, random);
+        if ( latencyMillis > 0 ) {
+            try {
+                TimeUnit.NANOSECONDS.sleep((long) (latencyMillis * 1000000d));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if ( behavior.getErrorRate() > 0 && random.nextDouble() < behavior.getErrorRate()) {
+            throw new ApplicationRuntimeException(behavior.getErrorMessage() != null ? behavior.getErrorMessage()
+                : "stand-in failure for "+method);
+        }
+        return methodStandIn.hasCannedValue ? methodStandIn.cannedValue : result;
+    }
+
+    private MethodStandIn getMethodStandIn(Method method) {
+        MethodStandIn methodStandIn = methodStandIns.get(method);
+        if ( methodStandIn == null ) {
+            methodStandIns.putIfAbsent(method, new MethodStandIn(definition.getBehavior(method.getName()), method.getReturnType()));
+            // because another thread might beat this thread to inserting.
+            methodStandIn = methodStandIns.get(method);
+        }
+        return methodStandIn;
+    }
+
+    /**
+     * @param value
+     * @param type
+     * @return value converted to type.
+     */
+    static Object convert(String value, Class<?> type) {
+        if ( type.isAssignableFrom(String.class)) {
+            return value;
+        } else if ( type == char.class || type == Character.class) {
+            return value.isEmpty()? null : Character.valueOf(value.charAt(0));
+        }
+        Class<?> boxed = type.isPrimitive() ? WRAPPERS.get(type) : type;
+        try {
+            // Boolean, Integer, ..., and enums all have a static valueOf(String)
+            return boxed.getMethod("valueOf", String.class).invoke(null, value.trim());
+        } catch (NoSuchMethodException e) {
+            throw new ApplicationRuntimeException("Cannot convert stand-in return value '"+value+"' to "+type, e);
+        } catch (IllegalAccessException e) {
+            throw new ApplicationRuntimeException("Cannot convert stand-in return value '"+value+"' to "+type, e);
+        } catch (InvocationTargetException e) {
+            throw new ApplicationRuntimeException("Cannot convert stand-in return value '"+value+"' to "+type, e.getCause());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "stand-in for "+getInterfaceClass();
+    }
+
+    /**
+     * the behavior for one method, with the canned value already converted.
+     */
+    private static class MethodStandIn {
+        private final StandInBehavior behavior;
+        private final boolean hasCannedValue;
+        private final Object cannedValue;
+
+        MethodStandIn(StandInBehavior behavior, Class<?> returnType) {
+            this.behavior = behavior;
+            this.hasCannedValue = behavior != null && behavior.getReturnValue() != null && returnType != void.class;
+            this.cannedValue = hasCannedValue ? convert(behavior.getReturnValue(), returnType) : null;
+        }
+    }
+}
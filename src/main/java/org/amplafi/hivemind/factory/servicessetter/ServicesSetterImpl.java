@@ -21,6 +21,8 @@ import java.util.concurrent.ConcurrentMap;
 
 import org.amplafi.hivemind.annotations.InjectService;
 import org.amplafi.hivemind.annotations.NotService;
+import org.amplafi.hivemind.util.ServiceHandle;
+import org.amplafi.hivemind.util.ServiceHandles;
 
 import com.sworddance.core.ServicesSetter;
 
@@ -51,7 +53,12 @@ public class ServicesSetterImpl implements ServicesSetter {
      */
     private ConcurrentMap<Class<?>, Set<String>> cachedAlwaysExcludedMap = new ConcurrentHashMap<Class<?>, Set<String>>();
 
-    private ConcurrentMap<Class<?>, ConcurrentMap<String, String>> serviceMap = new ConcurrentHashMap<Class<?>, ConcurrentMap<String, String>>();
+    /**
+     * class to property name to the service wired into that property ({@link ServiceHandle#NONE} if there is none by name).
+     */
+    private ConcurrentMap<Class<?>, ConcurrentMap<String, ServiceHandle<?>>> serviceMap = new ConcurrentHashMap<Class<?>, ConcurrentMap<String, ServiceHandle<?>>>();
+
+    private ServiceHandles serviceHandles;
 
     /**
      * Used to record classes that have not been found by the property type to avoid repeated attempts that will fail.
@@ -62,6 +69,7 @@ public class ServicesSetterImpl implements ServicesSetter {
 
     public void setModule(Module module) {
         this.module = module;
+        this.serviceHandles = new ServiceHandles(module);
     }
 
     @Override
@@ -127,13 +135,13 @@ public class ServicesSetterImpl implements ServicesSetter {
                 // log is special.
                 srv = LogFactory.getLog(obj.getClass());
             } else {
-                ConcurrentMap<String, String> classServiceMap = this.serviceMap.get(obj.getClass());
+                ConcurrentMap<String, ServiceHandle<?>> classServiceMap = this.serviceMap.get(obj.getClass());
                 if(classServiceMap == null) {
-                    this.serviceMap.putIfAbsent(obj.getClass(), new ConcurrentHashMap<String, String>());
+                    this.serviceMap.putIfAbsent(obj.getClass(), new ConcurrentHashMap<String, ServiceHandle<?>>());
                     classServiceMap = this.serviceMap.get(obj.getClass());
                 }
-                String serviceName = classServiceMap.get(prop);
-                if(serviceName == null) {
+                ServiceHandle<?> serviceHandle = classServiceMap.get(prop);
+                if(serviceHandle == null) {
                     InjectService service;
                     try {
                         service = findInjectService(obj, type);
@@ -144,30 +152,30 @@ public class ServicesSetterImpl implements ServicesSetter {
                     }
 
                     if(service != null) {
-                        serviceName = service.value();
+                        String serviceName = service.value();
                         if(isNotBlank(serviceName)) {
                             for(String attempt : new String[] { serviceName, serviceName + '.' + type.getPropertyName(), serviceName + '.' + StringUtils.capitalize(type.getPropertyName()) }) {
-                                srv = getService(attempt, propertyType);
+                                serviceHandle = getServiceHandle(attempt, propertyType);
+                                srv = serviceHandle == null ? null : this.serviceHandles.get(serviceHandle);
                                 if(srv != null) {
-                                    serviceName = attempt;
                                     break;
                                 }
                             }
                         }
                     }
                     if(srv != null) {
-                        classServiceMap.putIfAbsent(prop, serviceName);
+                        classServiceMap.putIfAbsent(prop, serviceHandle);
                     } else {
                         // we looked but did not find... no need to look again.
-                        classServiceMap.putIfAbsent(prop, "");
+                        classServiceMap.putIfAbsent(prop, ServiceHandle.NONE);
                     }
-                } else if(!serviceName.isEmpty()) {
-                    // we already found the service.
-                    srv = getService(serviceName, propertyType);
+                } else {
+                    // we already found the service (or that there is none by name).
+                    srv = this.serviceHandles.get(serviceHandle);
                 }
                 if(srv == null && !noServiceForType.containsKey(propertyType)) {
                     try {
-                        srv = this.module.getService(propertyType);
+                        srv = this.serviceHandles.get(this.serviceHandles.resolve(propertyType));
                     } catch(Exception e) {
                         noServiceForType.put(propertyType, e);
                         getLog().debug("Look up of class "+propertyType + " failed. The failure is caused if there is not exactly 1 service implementing the class. Further searches by this property class will be ignored.");
@@ -201,8 +209,18 @@ public class ServicesSetterImpl implements ServicesSetter {
      */
     @Override
     public <SC> SC getService(String serviceId, Class serviceClass) {
+        ServiceHandle<?> serviceHandle = getServiceHandle(serviceId, serviceClass);
+        return serviceHandle == null ? null : (SC) this.serviceHandles.get(serviceHandle);
+    }
+
+    /**
+     * @param serviceId
+     * @param serviceClass
+     * @return the handle or null (the failure is logged) if there is no such service.
+     */
+    private ServiceHandle<?> getServiceHandle(String serviceId, Class<?> serviceClass) {
         try {
-            return (SC) this.module.getService(serviceId, serviceClass);
+            return this.serviceHandles.resolve(serviceId, serviceClass);
         } catch(Exception e) {
         	getLog().error(e);
         	return null;
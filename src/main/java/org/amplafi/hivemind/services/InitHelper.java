@@ -6,11 +6,26 @@ import org.apache.hivemind.Registry;
 
 public class InitHelper {
 	
+	/**
+	 * Warms up the services (see {@link ServiceWarmUp}) then runs the app initializers.
+	 */
 	public static void startAppInitializers(Registry registry, HttpServlet servlet) {
+        warmUpServices(registry);
         AppInitializer ai = (AppInitializer) registry.getService(
                 "amplafi.init.AppInitializer", AppInitializer.class);
 
         ai.initialize(servlet);		
 	}
 
+    /**
+     * Instantiate the services contributed to amplafi.init.WarmUpServices.
+     */
+    public static void warmUpServices(Registry registry) {
+        if (registry.containsService("amplafi.init.ServiceWarmUp", ServiceWarmUp.class)) {
+            ServiceWarmUp serviceWarmUp = (ServiceWarmUp) registry.getService(
+                    "amplafi.init.ServiceWarmUp", ServiceWarmUp.class);
+            serviceWarmUp.warmUp();
+        }
+    }
+
 }
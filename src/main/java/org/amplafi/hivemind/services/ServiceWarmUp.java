@@ -0,0 +1,15 @@
+package org.amplafi.hivemind.services;
+
+/**
+ * Instantiates the services contributed to amplafi.init.WarmUpServices so that the first requests do not pay
+ * for their construction.
+ *
+ * @see InitHelper#startAppInitializers(org.apache.hivemind.Registry, javax.servlet.http.HttpServlet)
+ */
+public interface ServiceWarmUp {
+    /**
+     * Instantiate the warm-up services, independent services in parallel. Returns once all are instantiated or
+     * the time allowed is up.
+     */
+    void warmUp();
+}
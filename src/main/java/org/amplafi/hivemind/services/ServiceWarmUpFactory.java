@@ -0,0 +1,62 @@
+package org.amplafi.hivemind.services;
+
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.hivemind.ServiceImplementationFactory;
+import org.apache.hivemind.ServiceImplementationFactoryParameters;
+
+/**
+ * Factory for {@link ServiceWarmUp}; supplies the invoking module needed to force services to be instantiated.
+ */
+public class ServiceWarmUpFactory implements ServiceImplementationFactory {
+    private Log log;
+
+    private List<WarmUpService> warmUpServices;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private long timeoutMillis = 60000L;
+
+    public Object createCoreServiceImplementation(ServiceImplementationFactoryParameters params) {
+        ServiceWarmUpImpl serviceWarmUp = new ServiceWarmUpImpl();
+        serviceWarmUp.setModule(params.getInvokingModule());
+        serviceWarmUp.setLog(getLog());
+        serviceWarmUp.setWarmUpServices(getWarmUpServices());
+        serviceWarmUp.setThreads(getThreads());
+        serviceWarmUp.setTimeoutMillis(getTimeoutMillis());
+        return serviceWarmUp;
+    }
+
+    public void setLog(Log log) {
+        this.log = log;
+    }
+
+    public Log getLog() {
+        return log;
+    }
+
+    public void setWarmUpServices(List<WarmUpService> warmUpServices) {
+        this.warmUpServices = warmUpServices;
+    }
+
+    public List<WarmUpService> getWarmUpServices() {
+        return warmUpServices;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+}
@@ -0,0 +1,186 @@
+package org.amplafi.hivemind.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.hivemind.internal.Module;
+
+/**
+ * Instantiates the warm-up services on a pool of threads. A service is started as soon as the (warm-up) services it
+ * depends on are instantiated, so the warm-up takes as long as the longest dependency chain rather than the sum of
+ * all the services.
+ *
+ * Failures are logged, not thrown: the service will fail again (and be reported) when it is first used. Services
+ * that depend on each other (circular depends-on) are reported and not warmed up.
+ *
+ * After the timeout the warm-up returns: the services already being instantiated (or queued) finish in the
+ * background, the services waiting for them are left to be instantiated when first used.
+ */
+public class ServiceWarmUpImpl implements ServiceWarmUp {
+    private Module module;
+
+    private Log log;
+
+    private List<WarmUpService> warmUpServices;
+
+    private int threads;
+
+    private long timeoutMillis;
+
+    public void warmUp() {
+        if (warmUpServices == null || warmUpServices.isEmpty()) {
+            return;
+        }
+        // service id to the number of its warm-up dependencies not yet instantiated.
+        Map<String, Integer> waitingFor = new LinkedHashMap<String, Integer>();
+        // service id to the warm-up services depending on it.
+        Map<String, List<String>> dependents = new HashMap<String, List<String>>();
+        for (WarmUpService warmUpService : warmUpServices) {
+            waitingFor.put(warmUpService.getServiceId(), 0);
+        }
+        for (WarmUpService warmUpService : warmUpServices) {
+            for (String dependency : warmUpService.getDependsOn()) {
+                // dependencies that are not warm-up services get instantiated when needed.
+                if (waitingFor.containsKey(dependency)) {
+                    waitingFor.put(warmUpService.getServiceId(), waitingFor.get(warmUpService.getServiceId()) + 1);
+                    List<String> dependentIds = dependents.get(dependency);
+                    if (dependentIds == null) {
+                        dependentIds = new ArrayList<String>();
+                        dependents.put(dependency, dependentIds);
+                    }
+                    dependentIds.add(warmUpService.getServiceId());
+                }
+            }
+        }
+
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        ExecutorService executor = createExecutor();
+        try {
+            CompletionService<String> completionService = new ExecutorCompletionService<String>(executor);
+            int pending = 0;
+            for (Map.Entry<String, Integer> entry : waitingFor.entrySet()) {
+                if (entry.getValue() == 0) {
+                    completionService.submit(new Instantiate(entry.getKey()));
+                    pending++;
+                }
+            }
+            int instantiated = 0;
+            while (pending > 0) {
+                Future<String> done = completionService.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    getLog().warn("Warm up did not finish within " + timeoutMillis + "ms; " + pending
+                        + " services are still being instantiated in the background");
+                    return;
+                }
+                pending--;
+                instantiated++;
+                String serviceId = done.get();
+                List<String> dependentIds = dependents.get(serviceId);
+                if (dependentIds != null) {
+                    for (String dependentId : dependentIds) {
+                        int remaining = waitingFor.get(dependentId) - 1;
+                        waitingFor.put(dependentId, remaining);
+                        if (remaining == 0) {
+                            completionService.submit(new Instantiate(dependentId));
+                            pending++;
+                        }
+                    }
+                }
+            }
+            if (instantiated < waitingFor.size()) {
+                getLog().warn("Warm up services with circular depends-on were not instantiated: " + getWaiting(waitingFor));
+            }
+            if (getLog().isDebugEnabled()) {
+                getLog().debug("Warmed up " + instantiated + " services in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Instantiate logs its own failures so this is unexpected.
+            getLog().warn("Warm up failed", e.getCause());
+        } finally {
+            // interrupting a service in its constructor could leave it broken: let stragglers finish.
+            executor.shutdown();
+        }
+    }
+
+    private List<String> getWaiting(Map<String, Integer> waitingFor) {
+        List<String> waiting = new ArrayList<String>();
+        for (Map.Entry<String, Integer> entry : waitingFor.entrySet()) {
+            if (entry.getValue() > 0) {
+                waiting.add(entry.getKey());
+            }
+        }
+        return waiting;
+    }
+
+    private ExecutorService createExecutor() {
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        return Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "hivemind-warm-up-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setContextClassLoader(contextClassLoader);
+                return thread;
+            }
+        });
+    }
+
+    public void setModule(Module module) {
+        this.module = module;
+    }
+
+    public void setLog(Log log) {
+        this.log = log;
+    }
+
+    public Log getLog() {
+        return log;
+    }
+
+    public void setWarmUpServices(List<WarmUpService> warmUpServices) {
+        this.warmUpServices = warmUpServices;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    private class Instantiate implements Callable<String> {
+        private final String serviceId;
+
+        Instantiate(String serviceId) {
+            this.serviceId = serviceId;
+        }
+
+        public String call() {
+            try {
+                module.getServicePoint(serviceId).forceServiceInstantiation();
+            } catch (RuntimeException e) {
+                getLog().warn("Unable to warm up " + serviceId, e);
+            }
+            return serviceId;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.amplafi.hivemind.services;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A contribution to amplafi.init.WarmUpServices: a service to instantiate before the app initializers run.
+ */
+public class WarmUpService {
+    private String serviceId;
+
+    private List<String> dependsOn = new ArrayList<String>();
+
+    public String getServiceId() {
+        return serviceId;
+    }
+
+    public void setServiceId(String serviceId) {
+        this.serviceId = serviceId;
+    }
+
+    /**
+     * @return qualified ids of the (warm-up) services that must be instantiated first.
+     */
+    public List<String> getDependsOn() {
+        return dependsOn;
+    }
+
+    /**
+     * @param dependsOn comma separated qualified service ids.
+     */
+    public void setDependsOn(String dependsOn) {
+        this.dependsOn = new ArrayList<String>();
+        if (dependsOn != null) {
+            for (String serviceId : dependsOn.split(",")) {
+                if (serviceId.trim().length() > 0) {
+                    this.dependsOn.add(serviceId.trim());
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return serviceId + (dependsOn.isEmpty() ? "" : " after " + dependsOn);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+import java.io.ByteArrayInputStream;
+import java.net.URL;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hivemind.ApplicationRuntimeException;
+import org.apache.hivemind.ClassResolver;
+import org.apache.hivemind.ErrorHandler;
+import org.apache.hivemind.Resource;
+import org.apache.hivemind.parse.DescriptorParser;
+import org.apache.hivemind.parse.ModuleDescriptor;
+import org.apache.hivemind.parse.XmlResourceProcessor;
+import org.xml.sax.InputSource;
+
+/**
+ * {@link XmlResourceProcessor} that consults a {@link DescriptorCache} before parsing a descriptor and
+ * records the descriptor into the cache after parsing it. Like {@link XmlResourceProcessor}, an instance
+ * must only be used by one thread at a time.
+ *
+ * On a cache hit for a descriptor in a file or jar file the XML is not read at all.
+ */
+public class CachingXmlResourceProcessor extends XmlResourceProcessor {
+    private static final Log LOG = LogFactory.getLog(CachingXmlResourceProcessor.class);
+
+    private final DescriptorCache descriptorCache;
+
+    private DescriptorParser contentHandler;
+
+    private SAXParser saxParser;
+
+    public CachingXmlResourceProcessor(ClassResolver resolver, ErrorHandler errorHandler, DescriptorCache descriptorCache) {
+        super(resolver, errorHandler);
+        this.descriptorCache = descriptorCache;
+    }
+
+    @Override
+    public ModuleDescriptor processResource(Resource resource) {
+        URL url = resource.getResourceURL();
+        if (url == null) {
+            throw new ApplicationRuntimeException("Unable to locate " + resource + ".", resource, null, null);
+        }
+        if (contentHandler == null) {
+            contentHandler = new DescriptorParser(_errorHandler);
+        }
+        try {
+            byte[] content = null;
+            byte[] validator = DescriptorCache.getStamp(url);
+            if (validator == null) {
+                content = DescriptorCache.read(url);
+                validator = DescriptorCache.getContentHash(content);
+            }
+            contentHandler.initialize(resource, _resolver);
+            boolean replayed;
+            try {
+                replayed = descriptorCache.replay(url, validator, contentHandler);
+            } catch (DescriptorCache.CorruptEntryException e) {
+                LOG.warn(e.getMessage() + ", parsing " + resource + " again", e);
+                // start over with what was replayed thrown away.
+                contentHandler.resetParser();
+                contentHandler.initialize(resource, _resolver);
+                replayed = false;
+            }
+            if (!replayed) {
+                if (content == null) {
+                    content = DescriptorCache.read(url);
+                }
+                DescriptorCache.Recorder recorder = new DescriptorCache.Recorder(contentHandler);
+                InputSource source = new InputSource(new ByteArrayInputStream(content));
+                source.setSystemId(url.toString());
+                getSAXParser().parse(source, recorder);
+                descriptorCache.store(url, validator, recorder);
+            }
+            return contentHandler.getModuleDescriptor();
+        } catch (ApplicationRuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            saxParser = null;
+            throw new ApplicationRuntimeException("Unable to read " + resource + ": " + e.getMessage(), resource, null, e);
+        } finally {
+            contentHandler.resetParser();
+        }
+    }
+
+    private SAXParser getSAXParser() throws Exception {
+        if (saxParser == null) {
+            saxParser = SAXParserFactory.newInstance().newSAXParser();
+        } else {
+            saxParser.reset();
+        }
+        return saxParser;
+    }
+}
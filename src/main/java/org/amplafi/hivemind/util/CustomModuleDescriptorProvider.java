@@ -13,12 +13,26 @@
  */
 package org.amplafi.hivemind.util;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Enumeration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import java.util.regex.Pattern;
 import org.apache.commons.logging.Log;
@@ -27,6 +41,7 @@ import org.apache.hivemind.ApplicationRuntimeException;
 import org.apache.hivemind.ClassResolver;
 import org.apache.hivemind.ErrorHandler;
 import org.apache.hivemind.HiveMind;
+import org.apache.hivemind.Location;
 import org.apache.hivemind.ModuleDescriptorProvider;
 import org.apache.hivemind.Resource;
 import org.apache.hivemind.parse.ModuleDescriptor;
@@ -54,6 +69,11 @@ public class CustomModuleDescriptorProvider implements ModuleDescriptorProvider
 
     private static final Log LOG = LogFactory.getLog(CustomModuleDescriptorProvider.class);
 
+    /**
+     * system property; "true" to parse descriptors with {@link StaxXmlResourceProcessor} by default.
+     */
+    public static final String STAX_PROPERTY = "amplafi.hivemind.staxDescriptorParser";
+
     /**
      * The default path, within a JAR or the classpath, to the XML HiveMind module deployment
      * descriptor: <code>META-INF/hivemodule.xml</code>. Use this constant with the
@@ -72,14 +92,60 @@ public class CustomModuleDescriptorProvider implements ModuleDescriptorProvider
      */
     private List _moduleDescriptors = new ArrayList();
 
+    /**
+     * urls of all the descriptors parsed, including sub-modules.
+     */
+    private List<URL> _descriptorURLs = new ArrayList<URL>();
+
+    /**
+     * each parsed {@link ModuleDescriptor}'s sub-module descriptors.
+     */
+    private Map<ModuleDescriptor, List<ModuleDescriptor>> _subModules = new HashMap<ModuleDescriptor, List<ModuleDescriptor>>();
+
     private ClassResolver _resolver;
 
     private ErrorHandler _errorHandler;
 
     /**
-     * Parser instance used by all parsing of module descriptors.
+     * Parser instance used by each parsing thread.
+     */
+    private ThreadLocal<XmlResourceProcessor> _processor = new ThreadLocal<XmlResourceProcessor>();
+
+    /**
+     * Errors reported while a thread is parsing are deferred and replayed, in resource order, on the
+     * calling thread so that reporting stays deterministic and single threaded.
+     */
+    private DeferringErrorHandler _deferringErrorHandler;
+
+    /**
+     * Maximum number of threads parsing descriptors. 1 means parse on the calling thread.
      */
-    private XmlResourceProcessor _processor;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * null means descriptors are always parsed from XML.
+     */
+    private DescriptorCache descriptorCache = DescriptorCache.getDefault();
+
+    /**
+     * where descriptors are on the class path; loaded on first use.
+     */
+    private DescriptorIndex descriptorIndex;
+
+    /**
+     * if true descriptors are parsed once per jvm, see {@link SharedModuleDescriptors}.
+     */
+    private boolean shareDescriptors;
+
+    /**
+     * if true parse with {@link StaxXmlResourceProcessor}.
+     */
+    private boolean staxParser = Boolean.getBoolean(STAX_PROPERTY);
+
+    /**
+     * if not null only the modules needed by these service (or module) ids are provided.
+     */
+    private Set<String> pruneRoots;
 
     private boolean excludeFiles;
 
@@ -149,24 +215,26 @@ public class CustomModuleDescriptorProvider implements ModuleDescriptorProvider
 
         List<Resource> descriptors = new ArrayList<Resource>();
 
-        ClassLoader loader = resolver.getClassLoader();
-        Enumeration<URL> urls;
-
-        try
-        {
-            urls = loader.getResources(resourcePath);
-        }
-        catch (IOException ex)
-        {
-            throw new ApplicationRuntimeException("UnableToFindModules(" + resolver + ", " + ex + ")",
-                    ex);
+        DescriptorIndex index = getDescriptorIndex(resolver);
+        List<URL> urls = index.getResources(resourcePath);
+        if (urls == null) {
+            urls = new ArrayList<URL>();
+            try
+            {
+                urls.addAll(Collections.list(resolver.getClassLoader().getResources(resourcePath)));
+            }
+            catch (IOException ex)
+            {
+                throw new ApplicationRuntimeException("UnableToFindModules(" + resolver + ", " + ex + ")",
+                        ex);
+            }
+            index.record(resourcePath, urls);
         }
 
         Pattern pattern = excludePattern==null ? null : Pattern.compile(excludePattern);
 
-        while (urls.hasMoreElements())
+        for (URL descriptorURL : urls)
         {
-            URL descriptorURL = urls.nextElement();
 
             String protocol = descriptorURL.getProtocol();
 
@@ -198,50 +266,222 @@ public class CustomModuleDescriptorProvider implements ModuleDescriptorProvider
         return descriptors;
     }
 
+    private synchronized DescriptorIndex getDescriptorIndex(ClassResolver resolver)
+    {
+        if (descriptorIndex == null) {
+            descriptorIndex = DescriptorIndex.load(resolver.getClassLoader());
+        }
+        return descriptorIndex;
+    }
+
+    /**
+     * @return the index used to find descriptors, including any locations found by scanning.
+     */
+    public DescriptorIndex getDescriptorIndex()
+    {
+        return getDescriptorIndex(_resolver);
+    }
+
     public List getModuleDescriptors(ErrorHandler handler)
     {
-        _errorHandler = handler;
+        StartupProfiler.Span span = StartupProfiler.start(StartupProfiler.DESCRIPTORS, toString());
+        try {
+            return parseModuleDescriptors(handler);
+        } finally {
+            StartupProfiler.end(span);
+        }
+    }
 
-        _processor = getResourceProcessor(_resolver, handler);
+    private List parseModuleDescriptors(ErrorHandler handler)
+    {
+        _errorHandler = handler;
+        _deferringErrorHandler = new DeferringErrorHandler(handler);
 
+        List<ParsedResource> parsedResources = new ArrayList<ParsedResource>();
         for (Object element : _resources) {
-            Resource resource = (Resource) element;
+            parsedResources.add(new ParsedResource((Resource) element));
+        }
+        int threads = Math.min(parallelism, _resources.size());
+        if (threads > 1) {
+            parseConcurrently(parsedResources, threads);
+        } else {
+            for (ParsedResource parsedResource : parsedResources) {
+                parseRecursively(parsedResource);
+            }
+        }
 
-            processResource(resource);
+        // merge in the order a sequential depth-first parse would produce.
+        for (ParsedResource parsedResource : parsedResources) {
+            collect(parsedResource);
+        }
+        for (ParsedResource parsedResource : parsedResources) {
+            collectSubModules(parsedResource, _subModules);
+        }
+        if (pruneRoots != null) {
+            List<ModuleDescriptor> pruned = new ModuleDescriptorPruner(_moduleDescriptors, _subModules).prune(pruneRoots);
+            _moduleDescriptors.clear();
+            _moduleDescriptors.addAll(pruned);
+        }
+        if (StartupProfiler.isEnabled()) {
+            ProfiledInstanceBuilder.profile(_moduleDescriptors);
         }
 
-        _processor = null;
+        // the pool's threads are gone, only the calling thread may have a processor.
+        _processor.remove();
+        _deferringErrorHandler = null;
 
         _errorHandler = null;
 
         return _moduleDescriptors;
     }
 
-    private void processResource(Resource resource)
-    {
-        try
-        {
-            ModuleDescriptor md = _processor.processResource(resource);
+    private void parseRecursively(ParsedResource parsedResource) {
+        parse(parsedResource, null);
+        for (ParsedResource subModule : parsedResource.subModules) {
+            parseRecursively(subModule);
+        }
+    }
+
+    /**
+     * Parse the resources and, as soon as their parent is parsed, their sub-modules on a pool of threads.
+     * @param parsedResources
+     * @param threads
+     */
+    private void parseConcurrently(List<ParsedResource> parsedResources, int threads) {
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "hivemind-descriptor-parser-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                // xml parser implementations are found through the context class loader.
+                thread.setContextClassLoader(contextClassLoader);
+                return thread;
+            }
+        });
+        try {
+            CompletionService<ParsedResource> completionService = new ExecutorCompletionService<ParsedResource>(executor);
+            int pending = 0;
+            for (ParsedResource parsedResource : parsedResources) {
+                completionService.submit(new ParseTask(parsedResource));
+                pending++;
+            }
+            while (pending > 0) {
+                ParsedResource parsed = completionService.take().get();
+                pending--;
+                for (ParsedResource subModule : parsed.subModules) {
+                    completionService.submit(new ParseTask(subModule));
+                    pending++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ApplicationRuntimeException("Interrupted while parsing module descriptors", e);
+        } catch (ExecutionException e) {
+            // parse() reports its own errors so this is unexpected.
+            throw new ApplicationRuntimeException("Unable to parse module descriptors", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
-            _moduleDescriptors.add(md);
+    /**
+     * report the deferred errors and add the descriptors in depth-first order.
+     * @param parsedResource
+     */
+    private void collect(ParsedResource parsedResource) {
+        for (DeferredError error : parsedResource.errors) {
+            _errorHandler.error(error.log, error.message, error.location, error.cause);
+        }
+        if (parsedResource.moduleDescriptor != null) {
+            _moduleDescriptors.add(parsedResource.moduleDescriptor);
+            _descriptorURLs.add(parsedResource.resource.getResourceURL());
+        }
+        for (ParsedResource subModule : parsedResource.subModules) {
+            collect(subModule);
+        }
+    }
+
+    private void collectSubModules(ParsedResource parsedResource, Map<ModuleDescriptor, List<ModuleDescriptor>> subModules) {
+        if (parsedResource.moduleDescriptor != null) {
+            List<ModuleDescriptor> children = new ArrayList<ModuleDescriptor>();
+            for (ParsedResource subModule : parsedResource.subModules) {
+                if (subModule.moduleDescriptor != null) {
+                    children.add(subModule.moduleDescriptor);
+                }
+            }
+            subModules.put(parsedResource.moduleDescriptor, children);
+        }
+        for (ParsedResource subModule : parsedResource.subModules) {
+            collectSubModules(subModule, subModules);
+        }
+    }
 
-            // After parsing a module, parse any additional modules identified
-            // within the module (using the <sub-module> element) recursively.
-            processSubModules(md);
+    /**
+     * Parse one resource on the current thread and find its sub-modules (which are not parsed).
+     * Errors are recorded in parsedResource.
+     * @param parsedResource
+     * @param parentSpan the profiling span of the thread that asked for the parse (null for the current thread's).
+     */
+    private void parse(ParsedResource parsedResource, StartupProfiler.Span parentSpan) {
+        _deferringErrorHandler.startDeferring(parsedResource.errors);
+        StartupProfiler.Span span = StartupProfiler.start(StartupProfiler.DESCRIPTORS, String.valueOf(parsedResource.resource), parentSpan);
+        try {
+            ModuleDescriptor md = getModuleDescriptor(parsedResource);
+            parsedResource.moduleDescriptor = md;
+
+            // After parsing a module, any additional modules identified
+            // within the module (using the <sub-module> element) are parsed as well.
+            parsedResource.subModules.addAll(processSubModules(md));
         }
         catch (RuntimeException ex)
         {
-            _errorHandler.error(LOG, ex.getMessage(), HiveMind.getLocation(ex), ex);
+            _deferringErrorHandler.error(LOG, ex.getMessage(), HiveMind.getLocation(ex), ex);
+        } finally {
+            StartupProfiler.end(span);
+            _deferringErrorHandler.stopDeferring();
         }
     }
 
-    private void processSubModules(ModuleDescriptor moduleDescriptor)
+    private ModuleDescriptor getModuleDescriptor(final ParsedResource parsedResource)
     {
+        URL url = parsedResource.resource.getResourceURL();
+        if (!shareDescriptors || url == null) {
+            return processResource(parsedResource.resource);
+        }
+        return SharedModuleDescriptors.get(_resolver, url, new Callable<SharedModuleDescriptors.Parsed>() {
+            public SharedModuleDescriptors.Parsed call() {
+                int errorCount = parsedResource.errors.size();
+                ModuleDescriptor md = processResource(parsedResource.resource);
+                // this build still gets the descriptor; only later builds parse again (and report the errors).
+                return new SharedModuleDescriptors.Parsed(md, parsedResource.errors.size() == errorCount);
+            }
+        });
+    }
+
+    private ModuleDescriptor processResource(Resource resource)
+    {
+        XmlResourceProcessor processor = _processor.get();
+        if (processor == null) {
+            processor = getResourceProcessor(_resolver, _deferringErrorHandler);
+            _processor.set(processor);
+        }
+        ModuleDescriptor md = processor.processResource(resource);
+        if (md != null) {
+            // before it is shared, the registry keeps much of it for its lifetime.
+            ModuleDescriptorCompactor.compact(md);
+        }
+        return md;
+    }
+
+    private List<ParsedResource> processSubModules(ModuleDescriptor moduleDescriptor)
+    {
+        List<ParsedResource> subModuleResources = new ArrayList<ParsedResource>();
         List subModules = moduleDescriptor.getSubModules();
 
         if (subModules == null) {
             LOG.debug("No submodules in "+moduleDescriptor);
-            return;
+            return subModuleResources;
         }
         LOG.debug("Beginning processing submodules in "+moduleDescriptor);
 
@@ -260,39 +500,211 @@ public class CustomModuleDescriptorProvider implements ModuleDescriptorProvider
                 path = path.substring(classpathPos + CLASSPATH.length());
                 List<Resource> descriptorResources = getDescriptorResources(path, _resolver);
                 if ( descriptorResources== null || descriptorResources.isEmpty()) {
-                    _errorHandler.error(
+                    _deferringErrorHandler.error(
                         LOG, "classpathCannotFindsubModule:"+ path,
                         smd.getLocation(),
                         null);
                     continue;
                 } else if ( descriptorResources.size() > 1) {
-                    _errorHandler.error(LOG, "WARNING:"+path+" multiple locations found "+descriptorResources, smd.getLocation(), null);
+                    _deferringErrorHandler.error(LOG, "WARNING:"+path+" multiple locations found "+descriptorResources, smd.getLocation(), null);
                 }
                 descriptorResource = descriptorResources.get(0);
             }
 
             if (descriptorResource.getResourceURL() == null)
             {
-                _errorHandler.error(
+                _deferringErrorHandler.error(
                         LOG,
                         "subModuleDoesNotExist:" + descriptorResource,
                         smd.getLocation(),
                         null);
                 continue;
             }
-            LOG.debug("processing submodule "+descriptorResource);
-            processResource(descriptorResource);
+            LOG.debug("found submodule "+descriptorResource);
+            subModuleResources.add(new ParsedResource(descriptorResource));
         }
         LOG.debug("Completed processing submodules in "+moduleDescriptor);
+        return subModuleResources;
     }
 
     protected XmlResourceProcessor getResourceProcessor(ClassResolver resolver, ErrorHandler handler)
     {
+        if (descriptorCache != null) {
+            return new CachingXmlResourceProcessor(resolver, handler, descriptorCache);
+        } else if (staxParser) {
+            return new StaxXmlResourceProcessor(resolver, handler);
+        }
         return new XmlResourceProcessor(resolver, handler);
     }
 
+    /**
+     * @param descriptorCacheDirectory where parsed descriptors are cached between runs; null to disable
+     * caching. Defaults to the {@link DescriptorCache#CACHE_DIRECTORY_PROPERTY} system property.
+     */
+    public void setDescriptorCacheDirectory(File descriptorCacheDirectory) {
+        this.descriptorCache = descriptorCacheDirectory == null ? null : new DescriptorCache(descriptorCacheDirectory);
+    }
+
+    /**
+     * @param parallelism maximum number of threads parsing descriptors; 1 parses on the calling thread.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @param shareDescriptors if true each descriptor is parsed only once per jvm and the (read-only)
+     * {@link ModuleDescriptor} is shared with every other provider that shares descriptors. Off by default: see
+     * {@link SharedModuleDescriptors} for the costs.
+     */
+    public void setShareDescriptors(boolean shareDescriptors) {
+        this.shareDescriptors = shareDescriptors;
+    }
+
+    public boolean isShareDescriptors() {
+        return shareDescriptors;
+    }
+
+    /**
+     * @param staxParser if true descriptors are parsed with {@link StaxXmlResourceProcessor} rather than
+     * hivemind's SAX based processor. Ignored when there is a descriptor cache.
+     */
+    public void setStaxParser(boolean staxParser) {
+        this.staxParser = staxParser;
+    }
+
+    public boolean isStaxParser() {
+        return staxParser;
+    }
+
+    /**
+     * Only provide the modules needed by some services. See {@link ModuleDescriptorPruner} for how the needed
+     * modules are found.
+     * @param pruneRoots qualified service ids (or module ids); null to provide all modules.
+     */
+    public void setPruneRoots(Collection<String> pruneRoots) {
+        this.pruneRoots = pruneRoots == null ? null : new LinkedHashSet<String>(pruneRoots);
+    }
+
+    public Set<String> getPruneRoots() {
+        return pruneRoots;
+    }
+
+    /**
+     * @return the urls of the descriptors parsed by {@link #getModuleDescriptors(ErrorHandler)}, including
+     * sub-modules.
+     */
+    public List<URL> getDescriptorURLs() {
+        return _descriptorURLs;
+    }
+
+    /**
+     * @return each descriptor parsed by {@link #getModuleDescriptors(ErrorHandler)} to its sub-module descriptors.
+     */
+    public Map<ModuleDescriptor, List<ModuleDescriptor>> getSubModules() {
+        return _subModules;
+    }
+
+    /**
+     * Drop the descriptors (and the resources they were found in) once the registry is built; the registry
+     * keeps what it needs. The provider provides nothing after this.
+     */
+    public void release() {
+        _resources = new ArrayList<Resource>();
+        _moduleDescriptors = new ArrayList();
+        _subModules = new HashMap<ModuleDescriptor, List<ModuleDescriptor>>();
+        descriptorIndex = null;
+    }
+
+    /**
+     * @param resource an additional descriptor to provide.
+     */
+    public void addResource(Resource resource) {
+        _resources.add(resource);
+    }
+
     @Override
     public String toString() {
         return super.toString() + "[excludeJars="+ excludeJars+ "; excludeFiles="+excludeFiles+"; excludePattern="+excludePattern+"]";
     }
+
+    /**
+     * A descriptor resource, the result of parsing it and its sub-modules.
+     */
+    private static class ParsedResource {
+        private final Resource resource;
+        private ModuleDescriptor moduleDescriptor;
+        private final List<ParsedResource> subModules = new ArrayList<ParsedResource>();
+        private final List<DeferredError> errors = new ArrayList<DeferredError>();
+
+        ParsedResource(Resource resource) {
+            this.resource = resource;
+        }
+    }
+
+    private class ParseTask implements Callable<ParsedResource> {
+        private final ParsedResource parsedResource;
+
+        /**
+         * so that the parse is profiled as part of the registry being built, not as a separate root.
+         */
+        private final StartupProfiler.Span parentSpan = StartupProfiler.getCurrent();
+
+        ParseTask(ParsedResource parsedResource) {
+            this.parsedResource = parsedResource;
+        }
+
+        public ParsedResource call() {
+            parse(parsedResource, parentSpan);
+            return parsedResource;
+        }
+    }
+
+    private static class DeferredError {
+        private final Log log;
+        private final String message;
+        private final Location location;
+        private final Throwable cause;
+
+        DeferredError(Log log, String message, Location location, Throwable cause) {
+            this.log = log;
+            this.message = message;
+            this.location = location;
+            this.cause = cause;
+        }
+    }
+
+    /**
+     * While a thread is parsing, its errors are recorded rather than reported. Otherwise (for example
+     * when a {@link ModuleDescriptor} uses it after parsing) errors go straight to the real handler.
+     */
+    private static class DeferringErrorHandler implements ErrorHandler {
+        private final ErrorHandler delegate;
+        private final ThreadLocal<List<DeferredError>> deferred = new ThreadLocal<List<DeferredError>>();
+
+        DeferringErrorHandler(ErrorHandler delegate) {
+            this.delegate = delegate;
+        }
+
+        void startDeferring(List<DeferredError> errors) {
+            deferred.set(errors);
+        }
+
+        void stopDeferring() {
+            deferred.remove();
+        }
+
+        public void error(Log log, String message, Location location, Throwable cause) {
+            List<DeferredError> errors = deferred.get();
+            if (errors != null) {
+                errors.add(new DeferredError(log, message, location, cause));
+            } else {
+                delegate.error(log, message, location, cause);
+            }
+        }
+    }
 }
@@ -0,0 +1,461 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * On-disk cache of module descriptors. A descriptor is stored as the compact binary record of the SAX
+ * events its XML produced, keyed by the resource URL. Replaying the record into HiveMind's
+ * {@link org.apache.hivemind.parse.DescriptorParser} builds the same
+ * {@link org.apache.hivemind.parse.ModuleDescriptor} (locations included) without XML parsing.
+ *
+ * An entry is validated by the modification time and size of the file or jar holding the descriptor (see
+ * {@link #getStamp(URL)}), so a cache hit does not read the XML at all. Descriptors that are neither in a file
+ * nor in a jar file are validated by a hash of their content. Corrupt entries are deleted and the descriptor
+ * parsed again.
+ *
+ * HiveMind's descriptor classes are not serializable, which is why the events rather than the
+ * descriptors themselves are stored.
+ *
+ * Enabled by setting the {@link #CACHE_DIRECTORY_PROPERTY} system property or
+ * {@link CustomModuleDescriptorProvider#setDescriptorCacheDirectory(File)}.
+ */
+public class DescriptorCache {
+    /**
+     * system property naming the directory for cached descriptors.
+     */
+    public static final String CACHE_DIRECTORY_PROPERTY = "amplafi.hivemind.descriptorCache";
+
+    private static final Log LOG = LogFactory.getLog(DescriptorCache.class);
+
+    /**
+     * changed whenever the file format changes.
+     */
+    private static final int MAGIC = 0x484d4332;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte START_ELEMENT = 1;
+    private static final byte CHARACTERS = 2;
+    private static final byte END_ELEMENT = 3;
+    private static final byte END = 0;
+
+    private final File directory;
+
+    public DescriptorCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return the cache configured through {@link #CACHE_DIRECTORY_PROPERTY}, or null if none.
+     */
+    public static DescriptorCache getDefault() {
+        String directoryName = System.getProperty(CACHE_DIRECTORY_PROPERTY);
+        return directoryName == null || directoryName.trim().isEmpty() ? null : new DescriptorCache(new File(directoryName));
+    }
+
+    /**
+     * @param url
+     * @return the raw bytes of url.
+     * @throws IOException
+     */
+    public static byte[] read(URL url) throws IOException {
+        InputStream stream = new BufferedInputStream(url.openStream());
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+            byte[] buffer = new byte[8192];
+            for (int read = stream.read(buffer); read >= 0; read = stream.read(buffer)) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * @param url
+     * @return the modification time and size of the file or jar file holding url, or null if url is in neither.
+     */
+    public static byte[] getStamp(URL url) {
+        File file = null;
+        try {
+            if ("file".equals(url.getProtocol())) {
+                file = new File(url.toURI());
+            } else if ("jar".equals(url.getProtocol())) {
+                // only parses the url, the jar is not opened.
+                URLConnection connection = url.openConnection();
+                URL jarFileURL = connection instanceof JarURLConnection ? ((JarURLConnection) connection).getJarFileURL() : null;
+                if (jarFileURL != null && "file".equals(jarFileURL.getProtocol())) {
+                    file = new File(jarFileURL.toURI());
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        } catch (URISyntaxException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        return (file.getPath() + ":" + file.lastModified() + ":" + file.length()).getBytes(UTF8);
+    }
+
+    /**
+     * @param content
+     * @return the validator for a descriptor without a {@link #getStamp(URL)}.
+     */
+    public static byte[] getContentHash(byte[] content) {
+        return hash(content);
+    }
+
+    /**
+     * Replay the cached events of url into handler if the cache entry matches validator.
+     * @param url
+     * @param validator {@link #getStamp(URL)} or, if null, {@link #getContentHash(byte[])}.
+     * @param handler
+     * @return false if there is no valid entry (handler has not been called).
+     * @throws CorruptEntryException if the entry is corrupt. It has been deleted but handler has seen part of the
+     * events, so its state must be discarded.
+     * @throws SAXException from handler.
+     */
+    public boolean replay(URL url, byte[] validator, ContentHandler handler) throws SAXException {
+        File file = getFile(url);
+        if (!file.isFile()) {
+            return false;
+        }
+        byte[] record;
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (input.readInt() != MAGIC || !url.toString().equals(input.readUTF())) {
+                    return false;
+                }
+                byte[] storedValidator = new byte[input.readUnsignedShort()];
+                input.readFully(storedValidator);
+                if (!Arrays.equals(storedValidator, validator)) {
+                    return false;
+                }
+                int length = input.readInt();
+                if (length < 0 || length > file.length()) {
+                    throw new IOException("Bad record length " + length);
+                }
+                record = new byte[length];
+                input.readFully(record);
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            LOG.debug("Deleting unreadable descriptor cache entry " + file, e);
+            file.delete();
+            return false;
+        }
+        try {
+            new Replayer(record).replay(handler);
+        } catch (IOException e) {
+            // truncated or corrupt record. A partial replay cannot be undone so the caller must discard the handler's state.
+            file.delete();
+            throw new CorruptEntryException("Corrupt descriptor cache entry " + file, e);
+        }
+        return true;
+    }
+
+    /**
+     * @param url
+     * @param validator as passed to {@link #replay(URL, byte[], ContentHandler)}.
+     * @param recorder a recorder that has received all of url's events.
+     */
+    public void store(URL url, byte[] validator, Recorder recorder) {
+        File file = getFile(url);
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                LOG.debug("Cannot create descriptor cache directory " + directory);
+                return;
+            }
+            // write then rename so that readers never see a partial entry.
+            File temp = File.createTempFile(file.getName(), ".tmp", directory);
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                output.writeInt(MAGIC);
+                output.writeUTF(url.toString());
+                output.writeShort(validator.length);
+                output.write(validator);
+                byte[] record = recorder.toByteArray();
+                output.writeInt(record.length);
+                output.write(record);
+            } finally {
+                output.close();
+            }
+            if (!temp.renameTo(file)) {
+                // windows will not rename over an existing file.
+                file.delete();
+                if (!temp.renameTo(file)) {
+                    temp.delete();
+                }
+            }
+        } catch (IOException e) {
+            LOG.debug("Unable to write descriptor cache entry for " + url, e);
+        }
+    }
+
+    private File getFile(URL url) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : hash(url.toString().getBytes(UTF8))) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return new File(directory, name.append(".hmd").toString());
+    }
+
+    private static byte[] hash(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0 || length > input.available()) {
+            throw new IOException("Bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Thrown by {@link DescriptorCache#replay(URL, byte[], ContentHandler)} when an entry turns out to be
+     * corrupt part way through replaying it.
+     */
+    public static class CorruptEntryException extends SAXException {
+        private static final long serialVersionUID = 1L;
+
+        public CorruptEntryException(String message, Exception cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Passes SAX events on to a delegate while recording them. Element and attribute names and values are
+     * written once and referred to by index afterwards.
+     */
+    public static class Recorder extends DefaultHandler {
+        private final ContentHandler delegate;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+        private final DataOutputStream output = new DataOutputStream(bytes);
+        private final Map<String, Integer> strings = new HashMap<String, Integer>();
+        private Locator locator;
+
+        public Recorder(ContentHandler delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void setDocumentLocator(Locator locator) {
+            this.locator = locator;
+            delegate.setDocumentLocator(locator);
+        }
+
+        @Override
+        public void startDocument() throws SAXException {
+            delegate.startDocument();
+        }
+
+        @Override
+        public void endDocument() throws SAXException {
+            delegate.endDocument();
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+            try {
+                writeEvent(START_ELEMENT);
+                writeName(qName);
+                output.writeShort(attributes.getLength());
+                for (int i = 0; i < attributes.getLength(); i++) {
+                    writeName(attributes.getQName(i));
+                    writeName(attributes.getValue(i));
+                }
+            } catch (IOException e) {
+                throw new SAXException(e);
+            }
+            delegate.startElement(uri, localName, qName, attributes);
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            try {
+                writeEvent(CHARACTERS);
+                writeString(output, new String(ch, start, length));
+            } catch (IOException e) {
+                throw new SAXException(e);
+            }
+            delegate.characters(ch, start, length);
+        }
+
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+            delegate.ignorableWhitespace(ch, start, length);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            try {
+                writeEvent(END_ELEMENT);
+                writeName(qName);
+            } catch (IOException e) {
+                throw new SAXException(e);
+            }
+            delegate.endElement(uri, localName, qName);
+        }
+
+        private void writeEvent(byte event) throws IOException {
+            output.writeByte(event);
+            output.writeInt(locator == null ? -1 : locator.getLineNumber());
+            output.writeInt(locator == null ? -1 : locator.getColumnNumber());
+        }
+
+        private void writeName(String name) throws IOException {
+            Integer index = strings.get(name);
+            if (index == null) {
+                output.writeInt(-1);
+                writeString(output, name);
+                strings.put(name, strings.size());
+            } else {
+                output.writeInt(index);
+            }
+        }
+
+        byte[] toByteArray() throws IOException {
+            output.writeByte(END);
+            output.flush();
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * Feeds a recorded event stream to a {@link ContentHandler}.
+     */
+    private static class Replayer implements Locator {
+        private final DataInputStream input;
+        private final List<String> strings = new ArrayList<String>();
+        private int lineNumber;
+        private int columnNumber;
+
+        Replayer(byte[] record) {
+            this.input = new DataInputStream(new java.io.ByteArrayInputStream(record));
+        }
+
+        void replay(ContentHandler handler) throws IOException, SAXException {
+            handler.setDocumentLocator(this);
+            handler.startDocument();
+            for (byte event = input.readByte(); event != END; event = input.readByte()) {
+                lineNumber = input.readInt();
+                columnNumber = input.readInt();
+                switch (event) {
+                case START_ELEMENT:
+                    String qName = readName();
+                    int attributeCount = input.readShort();
+                    AttributesImpl attributes = new AttributesImpl();
+                    for (int i = 0; i < attributeCount; i++) {
+                        String attributeName = readName();
+                        attributes.addAttribute("", attributeName, attributeName, "CDATA", readName());
+                    }
+                    handler.startElement("", qName, qName, attributes);
+                    break;
+                case CHARACTERS:
+                    char[] characters = readString(input).toCharArray();
+                    handler.characters(characters, 0, characters.length);
+                    break;
+                case END_ELEMENT:
+                    qName = readName();
+                    handler.endElement("", qName, qName);
+                    break;
+                default:
+                    throw new IOException("Unknown event " + event);
+                }
+            }
+            handler.endDocument();
+        }
+
+        private String readName() throws IOException {
+            int index = input.readInt();
+            if (index < 0) {
+                String name = readString(input);
+                strings.add(name);
+                return name;
+            } else if (index < strings.size()) {
+                return strings.get(index);
+            } else {
+                throw new IOException("Bad name index " + index);
+            }
+        }
+
+        public String getPublicId() {
+            return null;
+        }
+
+        public String getSystemId() {
+            return null;
+        }
+
+        public int getLineNumber() {
+            return lineNumber;
+        }
+
+        public int getColumnNumber() {
+            return columnNumber;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hivemind.ClassResolver;
+import org.apache.hivemind.impl.DefaultClassResolver;
+import org.apache.hivemind.impl.DefaultErrorHandler;
+
+/**
+ * Index of where hivemind descriptors are on the classpath. Maps each resource path looked up by
+ * {@link CustomModuleDescriptorProvider} (the main descriptor path as well as every classpath:// sub-module)
+ * to the urls {@link ClassLoader#getResources(String)} returned for it.
+ *
+ * The index is written at build time by {@link #main(String[])} to {@link #INDEX_PATH} and read at runtime so
+ * that the class path does not have to be scanned. The index records a fingerprint of the class path it
+ * was built from; if the runtime class path differs the index is stale and ignored. The fingerprint only looks
+ * at the modification time of each class path entry, so a descriptor added below the top level of a class path
+ * directory does not make the index stale: rebuild, or set {@link #DISABLE_PROPERTY}.
+ *
+ * This project's pom writes the index at process-classes; an application does the same in its own build.
+ * For example, with maven:
+ * <pre>
+ * &lt;plugin&gt;
+ *     &lt;groupId&gt;org.codehaus.mojo&lt;/groupId&gt;
+ *     &lt;artifactId&gt;exec-maven-plugin&lt;/artifactId&gt;
+ *     &lt;executions&gt;
+ *         &lt;execution&gt;
+ *             &lt;id&gt;hivemodule-index&lt;/id&gt;
+ *             &lt;phase&gt;process-classes&lt;/phase&gt;
+ *             &lt;goals&gt;&lt;goal&gt;exec&lt;/goal&gt;&lt;/goals&gt;
+ *             &lt;configuration&gt;
+ *                 &lt;executable&gt;java&lt;/executable&gt;
+ *                 &lt;classpathScope&gt;runtime&lt;/classpathScope&gt;
+ *                 &lt;arguments&gt;
+ *                     &lt;argument&gt;-classpath&lt;/argument&gt;
+ *                     &lt;classpath /&gt;
+ *                     &lt;argument&gt;org.amplafi.hivemind.util.DescriptorIndex&lt;/argument&gt;
+ *                     &lt;argument&gt;${project.build.outputDirectory}&lt;/argument&gt;
+ *                 &lt;/arguments&gt;
+ *             &lt;/configuration&gt;
+ *         &lt;/execution&gt;
+ *     &lt;/executions&gt;
+ * &lt;/plugin&gt;
+ * </pre>
+ *
+ * Set the {@link #DISABLE_PROPERTY} system property to "true" to always scan.
+ */
+public class DescriptorIndex {
+    public static final String INDEX_PATH = "META-INF/hivemodule.index";
+
+    public static final String DISABLE_PROPERTY = "amplafi.hivemind.disableDescriptorIndex";
+
+    private static final Log LOG = LogFactory.getLog(DescriptorIndex.class);
+
+    private static final String FINGERPRINT = "fingerprint";
+
+    private static final String RESOURCE_PREFIX = "resource.";
+
+    private final String fingerprint;
+
+    /**
+     * resource path to urls. Either loaded from the index or recorded while scanning.
+     */
+    private final ConcurrentMap<String, List<URL>> resources = new ConcurrentHashMap<String, List<URL>>();
+
+    private final boolean loaded;
+
+    private DescriptorIndex(String fingerprint, boolean loaded) {
+        this.fingerprint = fingerprint;
+        this.loaded = loaded;
+    }
+
+    /**
+     * @param loader
+     * @return the index visible to loader. If there is no index or it is stale, an empty index that
+     * only records what is scanned.
+     */
+    public static DescriptorIndex load(ClassLoader loader) {
+        String fingerprint = fingerprint(loader);
+        if (Boolean.getBoolean(DISABLE_PROPERTY)) {
+            return new DescriptorIndex(fingerprint, false);
+        }
+        URL indexURL = loader.getResource(INDEX_PATH);
+        if (indexURL == null) {
+            LOG.debug("No " + INDEX_PATH + " found, scanning class path for hivemind descriptors");
+            return new DescriptorIndex(fingerprint, false);
+        }
+        Properties properties = new Properties();
+        try {
+            InputStream stream = indexURL.openStream();
+            try {
+                properties.load(stream);
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("Unable to read " + indexURL + ", scanning class path for hivemind descriptors", e);
+            return new DescriptorIndex(fingerprint, false);
+        }
+        if (!fingerprint.equals(properties.getProperty(FINGERPRINT))) {
+            LOG.debug(indexURL + " is stale, scanning class path for hivemind descriptors");
+            return new DescriptorIndex(fingerprint, false);
+        }
+        DescriptorIndex index = new DescriptorIndex(fingerprint, true);
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(RESOURCE_PREFIX)) {
+                List<URL> urls = new ArrayList<URL>();
+                for (String url : properties.getProperty(key).split(" ")) {
+                    if (url.length() > 0) {
+                        try {
+                            urls.add(new URL(url));
+                        } catch (IOException e) {
+                            LOG.warn(indexURL + " has bad url " + url + ", scanning class path for hivemind descriptors", e);
+                            return new DescriptorIndex(fingerprint, false);
+                        }
+                    }
+                }
+                index.resources.put(key.substring(RESOURCE_PREFIX.length()), Collections.unmodifiableList(urls));
+            }
+        }
+        LOG.debug("Using hivemind descriptor index " + indexURL);
+        return index;
+    }
+
+    /**
+     * @param resourcePath
+     * @return the indexed urls for resourcePath or null if resourcePath must be scanned for.
+     */
+    public List<URL> getResources(String resourcePath) {
+        return loaded ? resources.get(resourcePath) : null;
+    }
+
+    /**
+     * Record the result of scanning for resourcePath.
+     * @param resourcePath
+     * @param urls
+     */
+    public void record(String resourcePath, List<URL> urls) {
+        resources.put(resourcePath, Collections.unmodifiableList(new ArrayList<URL>(urls)));
+    }
+
+    /**
+     * @return true if the index was loaded rather than built from scanning.
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public void write(OutputStream outputStream) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(FINGERPRINT, fingerprint);
+        for (Map.Entry<String, List<URL>> entry : new TreeMap<String, List<URL>>(resources).entrySet()) {
+            StringBuilder urls = new StringBuilder();
+            for (URL url : entry.getValue()) {
+                urls.append(url).append(' ');
+            }
+            properties.setProperty(RESOURCE_PREFIX + entry.getKey(), urls.toString().trim());
+        }
+        properties.store(outputStream, "hivemind descriptor locations; generated by " + DescriptorIndex.class.getName());
+    }
+
+    /**
+     * The class path entries visible to loader, each with its modification time (and a jar with its size).
+     * Directories are not walked: this runs every time a provider is constructed.
+     * @param loader
+     * @return a digest of the class path.
+     */
+    static String fingerprint(ClassLoader loader) {
+        TreeSet<String> entries = new TreeSet<String>();
+        for (ClassLoader current = loader; current != null; current = current.getParent()) {
+            if (current instanceof URLClassLoader) {
+                for (URL url : ((URLClassLoader) current).getURLs()) {
+                    File file = toFile(url);
+                    entries.add(file == null ? url.toString() : describe(file));
+                }
+            }
+        }
+        for (String path : System.getProperty("java.class.path", "").split(File.pathSeparator)) {
+            if (path.length() > 0) {
+                entries.add(describe(new File(path).getAbsoluteFile()));
+            }
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (String entry : entries) {
+                digest.update(entry.getBytes("UTF-8"));
+                digest.update((byte) 0);
+            }
+            StringBuilder result = new StringBuilder();
+            for (byte b : digest.digest()) {
+                result.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String describe(File file) {
+        if (file.isFile()) {
+            return file.getPath() + ":" + file.length() + ":" + file.lastModified();
+        } else if (file.isDirectory()) {
+            return file.getPath() + ":" + file.lastModified();
+        } else {
+            return file.getPath();
+        }
+    }
+
+    private static File toFile(URL url) {
+        if (!"file".equals(url.getProtocol())) {
+            return null;
+        }
+        try {
+            return new File(url.toURI()).getAbsoluteFile();
+        } catch (URISyntaxException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Build step: scans the class path of the current jvm, parses all the hivemind descriptors (to find the
+     * classpath:// sub-modules) and writes the index.
+     *
+     * @param args output directory (normally target/classes) followed by optional resource paths to index
+     * (default {@link CustomModuleDescriptorProvider#HIVE_MODULE_XML}).
+     * @throws IOException
+     * @throws IllegalArgumentException if there is no output directory.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            throw new IllegalArgumentException("Usage: " + DescriptorIndex.class.getName() + " outputDirectory [resourcePath ...]");
+        }
+        // never read a previous (possibly stale) index.
+        System.setProperty(DISABLE_PROPERTY, "true");
+        File output = new File(args[0], INDEX_PATH);
+        // before fingerprinting: creating the directory changes the output directory's modification time.
+        output.getParentFile().mkdirs();
+        ClassResolver resolver = new DefaultClassResolver(Thread.currentThread().getContextClassLoader());
+        DescriptorIndex index = null;
+        for (int i = args.length == 1 ? 0 : 1; i < args.length; i++) {
+            String resourcePath = args.length == 1 ? CustomModuleDescriptorProvider.HIVE_MODULE_XML : args[i];
+            CustomModuleDescriptorProvider provider = new CustomModuleDescriptorProvider(resolver, resourcePath);
+            provider.getModuleDescriptors(new DefaultErrorHandler());
+            if (index == null) {
+                index = provider.getDescriptorIndex();
+            } else {
+                index.resources.putAll(provider.getDescriptorIndex().resources);
+            }
+        }
+        OutputStream stream = new FileOutputStream(output);
+        try {
+            index.write(stream);
+        } finally {
+            stream.close();
+        }
+        System.out.println("Wrote " + index.resources.size() + " hivemind descriptor locations to " + output);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hivemind.Registry;
+
+/**
+ * A read-only view of a started {@link Registry} that answers service lookups from tables built once: service
+ * id to service and service interface to the single service declaring it. The tables are never modified, so
+ * lookups are plain hash map reads without locking. Lookups the tables cannot answer (non-public services, wrong
+ * types, ambiguous interfaces) go to the registry, which reports errors as usual.
+ *
+ * The interface table only holds the interfaces the services' classes implement directly (for a hivemind proxy,
+ * the service interface): a lookup by a superinterface goes to the registry, which answers it as usual.
+ *
+ * Freeze only after startup: building the tables gets every public service and the tables do not see services
+ * added later. Getting a service creates its proxy, except for the primitive model, where the service itself is
+ * constructed: freezing constructs every primitive service.
+ */
+public class FrozenRegistry implements InvocationHandler {
+    private final Registry registry;
+
+    private final Map<String, Object> servicesById;
+
+    private final Map<Class<?>, Object> servicesByInterface;
+
+    private volatile boolean shutdown;
+
+    private FrozenRegistry(Registry registry) {
+        this.registry = registry;
+        Map<String, Object> byId = new HashMap<String, Object>();
+        Map<Class<?>, Object> byInterface = new HashMap<Class<?>, Object>();
+        Set<Class<?>> interfaces = new HashSet<Class<?>>();
+        for (Object serviceId : (List<?>) registry.getServiceIds(Object.class)) {
+            Object service;
+            try {
+                service = registry.getService((String) serviceId, Object.class);
+            } catch (RuntimeException e) {
+                // left to the registry, which reports the failure when the service is looked up.
+                continue;
+            }
+            byId.put((String) serviceId, service);
+            for (Class<?> serviceInterface : service.getClass().getInterfaces()) {
+                interfaces.add(serviceInterface);
+            }
+        }
+        for (Class<?> serviceInterface : interfaces) {
+            // hivemind's rule: exactly one visible service point declares the interface.
+            if (registry.containsService(serviceInterface)) {
+                byInterface.put(serviceInterface, registry.getService(serviceInterface));
+            }
+        }
+        this.servicesById = byId;
+        this.servicesByInterface = byInterface;
+    }
+
+    /**
+     * @param registry a started registry.
+     * @return the frozen view of registry.
+     */
+    public static Registry freeze(Registry registry) {
+        return (Registry) Proxy.newProxyInstance(Registry.class.getClassLoader(),
+            new Class[] { Registry.class }, new FrozenRegistry(registry));
+    }
+
+    /**
+     * @param registry
+     * @return the {@link FrozenRegistry} behind registry or null if registry is not frozen.
+     */
+    public static FrozenRegistry getFrozenRegistry(Registry registry) {
+        if (registry != null && Proxy.isProxyClass(registry.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(registry);
+            if (handler instanceof FrozenRegistry) {
+                return (FrozenRegistry) handler;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the registry that was frozen.
+     */
+    public Registry getRegistry() {
+        return registry;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (RegistryMethod.isObjectMethod(method)) {
+            return RegistryMethod.invokeObjectMethod(proxy, method, args, "frozen " + registry);
+        }
+        RegistryMethod registryMethod = RegistryMethod.get(method);
+        if (!shutdown) {
+            if (registryMethod == RegistryMethod.GET_SERVICE_BY_ID) {
+                Object service = servicesById.get(args[0]);
+                if (service != null && ((Class<?>) args[1]).isInstance(service)) {
+                    return service;
+                }
+            } else if (registryMethod == RegistryMethod.GET_SERVICE) {
+                Object service = servicesByInterface.get(args[0]);
+                if (service != null) {
+                    return service;
+                }
+            } else if (registryMethod == RegistryMethod.CONTAINS_SERVICE_BY_ID) {
+                Object service = servicesById.get(args[0]);
+                if (service != null && ((Class<?>) args[1]).isInstance(service)) {
+                    return Boolean.TRUE;
+                }
+            } else if (registryMethod == RegistryMethod.CONTAINS_SERVICE) {
+                if (servicesByInterface.containsKey(args[0])) {
+                    return Boolean.TRUE;
+                }
+            } else if (registryMethod == RegistryMethod.SHUTDOWN) {
+                shutdown = true;
+            }
+        }
+        return RegistryMethod.invoke(registry, method, args);
+    }
+}
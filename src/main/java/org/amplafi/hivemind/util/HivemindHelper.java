@@ -16,11 +16,19 @@ package org.amplafi.hivemind.util;
 
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.hivemind.ClassResolver;
@@ -31,6 +39,7 @@ import org.apache.hivemind.Resource;
 import org.apache.hivemind.impl.DefaultClassResolver;
 import org.apache.hivemind.impl.DefaultErrorHandler;
 import org.apache.hivemind.impl.RegistryBuilder;
+import org.apache.hivemind.parse.ModuleDescriptor;
 import org.apache.hivemind.util.URLResource;
 
 /**
@@ -39,15 +48,46 @@ import org.apache.hivemind.util.URLResource;
  * @author andyhot
  */
 public final class HivemindHelper {
+    /**
+     * system property: comma separated hivemind files whose shared registries are built in the background
+     * as soon as this class is loaded.
+     */
+    public static final String PREWARM_PROPERTY = "amplafi.hivemind.prewarmRegistries";
+
+    /**
+     * system property: "true" to share parsed descriptors between registry builds, see
+     * {@link #setShareDescriptors(boolean)}.
+     */
+    public static final String SHARE_DESCRIPTORS_PROPERTY = "amplafi.hivemind.shareDescriptors";
+
     private final static HivemindHelper INSTANCE = new HivemindHelper();
 
-    private Map<String, Registry> registries;
+    /**
+     * shared registries. A registry is built once by whichever thread asks for it first; other threads
+     * asking for the same registry wait for that build, threads asking for other registries do not.
+     */
+    private final RegistryPool registries;
+
+    /**
+     * builds registries in the background; created on first use.
+     */
+    private ExecutorService prewarmExecutor;
+
+    private volatile boolean shareDescriptors = Boolean.getBoolean(SHARE_DESCRIPTORS_PROPERTY);
 
     /**
      * Allow only one instance.
      */
     private HivemindHelper() {
-        registries = new HashMap<String, Registry>();
+        registries = new RegistryPool();
+        String prewarm = System.getProperty(PREWARM_PROPERTY);
+        if (prewarm != null) {
+            for (String file : prewarm.split(",")) {
+                if (file.trim().length() > 0) {
+                    prewarmRegistry(file.trim(), null, false);
+                }
+            }
+        }
     }
 
     /**
@@ -86,9 +126,33 @@ public final class HivemindHelper {
 
     public Registry buildFrameworkRegistry(String skipPattern, boolean skipFilesystem,
             String... files) throws Exception {
+        return buildFrameworkRegistry(createProvider(shareDescriptors, files), skipPattern, skipFilesystem);
+    }
 
-        ClassResolver resolver = getClassResolver();
+    /**
+     * Builds a framework registry that is rebuilt whenever one of its descriptor files changes. For
+     * development and soak tests: descriptors inside jars are not watched. The descriptors are always shared
+     * (see {@link #setShareDescriptors(boolean)}), so a rebuild only parses the descriptors that changed.
+     *
+     * @param skipPattern
+     * @param skipFilesystem
+     * @param files
+     *            The path to the hivemind xml configuration files to parse.
+     * @return The constructed registry.
+     * @throws Exception
+     *             When file can't be found or parsed.
+     * @see ReloadingRegistry
+     */
+    public Registry buildReloadingRegistry(final String skipPattern, final boolean skipFilesystem,
+            final String... files) throws Exception {
+        return ReloadingRegistry.create(new ReloadingRegistry.Source() {
+            public Registry build(Collection<URL> descriptorURLs) {
+                return buildFrameworkRegistry(createProvider(true, files), skipPattern, skipFilesystem, descriptorURLs, true);
+            }
+        });
+    }
 
+    private CustomModuleDescriptorProvider createProvider(boolean share, String... files) {
         List<Resource> descriptorResources = new ArrayList<Resource>();
         for (String file : files) {
             Resource resource = getResource(file);
@@ -96,11 +160,86 @@ public final class HivemindHelper {
             descriptorResources.add(resource);
         }
 
-        ModuleDescriptorProvider provider = new CustomModuleDescriptorProvider(
-                resolver, descriptorResources);
+        CustomModuleDescriptorProvider provider = new CustomModuleDescriptorProvider(
+                getClassResolver(), descriptorResources);
+        provider.setShareDescriptors(share);
+        return provider;
+    }
+
+    /**
+     * Off by default. When on, each descriptor is parsed once per class loader and reused by every registry
+     * built here afterwards: worthwhile when many registries are built (tests, partitions). The shared
+     * descriptors keep the class resolver and error handler of the build that parsed them and keep their
+     * class loader reachable until {@link SharedModuleDescriptors#clear()}, so do not turn this on where class
+     * loaders are discarded (redeployed web applications).
+     *
+     * @param shareDescriptors
+     * @see SharedModuleDescriptors
+     */
+    public void setShareDescriptors(boolean shareDescriptors) {
+        this.shareDescriptors = shareDescriptors;
+    }
+
+    public boolean isShareDescriptors() {
+        return shareDescriptors;
+    }
 
+    /**
+     * Builds a registry containing only the modules (found on the classpath or in files) needed by
+     * rootServiceIds. Much faster to build and smaller than a full framework registry.
+     *
+     * @param rootServiceIds qualified ids of the services (or ids of the modules) that will be used.
+     * @param files additional hivemind xml configuration files.
+     * @return the constructed registry.
+     * @see ModuleDescriptorPruner
+     */
+    public Registry buildPrunedRegistry(Collection<String> rootServiceIds, String... files) {
+        CustomModuleDescriptorProvider provider = new CustomModuleDescriptorProvider(getClassResolver());
+        for (String file : files) {
+            provider.addResource(getResource(file));
+        }
+        provider.setShareDescriptors(shareDescriptors);
+        provider.setPruneRoots(rootServiceIds);
+
+        StartupProfiler.Span span = StartupProfiler.start(StartupProfiler.REGISTRY, "pruned " + rootServiceIds);
+        try {
+            RegistryBuilder builder = new RegistryBuilder();
+            builder.addModuleDescriptorProvider(provider);
+            Registry registry = builder.constructRegistry(Locale.getDefault());
+            provider.release();
+            return registry;
+        } finally {
+            StartupProfiler.end(span);
+            StartupProfiler.report();
+        }
+    }
 
-        return buildFrameworkRegistry(provider, skipPattern, skipFilesystem);
+    /**
+     * Builds a registry as partitions (grouped by module id prefix) that are each built when first used, so that
+     * a process using a small part of a large set of modules only constructs that part. A partition that would
+     * construct its own copy of another partition's singleton services fails to build.
+     *
+     * @param prefixes module id prefixes, one per partition; modules matching none are in a default partition.
+     * @param files additional hivemind xml configuration files.
+     * @return the partitioned registry.
+     * @see PartitionedRegistry
+     */
+    public Registry buildPartitionedRegistry(Collection<String> prefixes, final String... files) {
+        CustomModuleDescriptorProvider provider = new CustomModuleDescriptorProvider(getClassResolver());
+        for (String file : files) {
+            provider.addResource(getResource(file));
+        }
+        // the partitions parse the same descriptors again: worth sharing them.
+        provider.setShareDescriptors(shareDescriptors);
+        List<ModuleDescriptor> moduleDescriptors = new ArrayList<ModuleDescriptor>(
+            provider.getModuleDescriptors(new DefaultErrorHandler()));
+        Map<ModuleDescriptor, List<ModuleDescriptor>> subModules = provider.getSubModules();
+        provider.release();
+        return PartitionedRegistry.create(moduleDescriptors, subModules, prefixes, new PartitionedRegistry.PartitionBuilder() {
+            public Registry build(Collection<String> moduleIds) {
+                return buildPrunedRegistry(moduleIds, files);
+            }
+        });
     }
 
     /**
@@ -123,31 +262,120 @@ public final class HivemindHelper {
      * @param shared
      *            If false, a new registry is always created. Otherwise a stored
      *            one is searched. If not found, a new one is created and also
-     *            stored for later use.
+     *            stored for later use
+     *            (until evicted, see {@link RegistryPool}).
      * @return the registry existing or a newly created one.
      * @throws Exception
      */
-    public synchronized Registry getRegistry(String file, boolean shared) throws Exception {
+    public Registry getRegistry(String file, boolean shared) throws Exception {
             return getRegistry(file, shared, null, false);
     }
 
-    public synchronized Registry getRegistry(String file, boolean shared,
+    public Registry getRegistry(String file, boolean shared,
             String skipPattern, boolean skipFiles ) throws Exception {
-        Registry registry = null;
+        if (!shared) {
+            return buildFrameworkRegistry(skipPattern, skipFiles, file);
+        }
         String registryKey = file + skipPattern + skipFiles;
-        if (shared) {
-            registry = registries.get(registryKey);
+        FutureTask<Registry> registryTask = getRegistryTask(registryKey, file, skipPattern, skipFiles);
+        // no-op if the registry is already built or being built by another thread.
+        registryTask.run();
+        try {
+            return registryTask.get();
+        } catch (ExecutionException e) {
+            // so the next caller tries again.
+            registries.remove(registryKey, registryTask);
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else {
+                throw (Error) cause;
+            }
         }
+    }
 
-        if (registry == null) {
-            registry = buildFrameworkRegistry(skipPattern, skipFiles, file);
+    /**
+     * Start building a shared registry in the background.
+     * @param file
+     * @param skipPattern
+     * @param skipFiles
+     * @return the registry once built; {@link #getRegistry(String, boolean, String, boolean)} returns the same
+     * registry (waiting for it if needed).
+     */
+    public Future<Registry> prewarmRegistry(String file, String skipPattern, boolean skipFiles) {
+        String registryKey = file + skipPattern + skipFiles;
+        FutureTask<Registry> registryTask = getRegistryTask(registryKey, file, skipPattern, skipFiles);
+        if (!registryTask.isDone()) {
+            getPrewarmExecutor().execute(registryTask);
+        }
+        return registryTask;
+    }
 
-            if (shared) {
-                registries.put(registryKey, registry);
+    private FutureTask<Registry> getRegistryTask(String registryKey, final String file,
+            final String skipPattern, final boolean skipFiles) {
+        return registries.getRegistryTask(registryKey, new Callable<Registry>() {
+            public Registry call() throws Exception {
+                return buildFrameworkRegistry(skipPattern, skipFiles, file);
             }
+        });
+    }
+
+    /**
+     * @return the shared registries, including their hit/miss statistics and size estimates.
+     */
+    public RegistryPool getRegistryPool() {
+        return registries;
+    }
+
+    private synchronized ExecutorService getPrewarmExecutor() {
+        if (prewarmExecutor == null) {
+            // hivemind's class resolver uses the context class loader of the building thread.
+            final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+            prewarmExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "hivemind-registry-prewarm-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setContextClassLoader(contextClassLoader);
+                    return thread;
+                }
+            });
         }
+        return prewarmExecutor;
+    }
 
-        return registry;
+    /**
+     * A view of the shared registry for file whose service lookups a test can override without building a
+     * registry. The services themselves (singletons included) are shared with the shared registry.
+     *
+     * @param file
+     *            The hivemind descriptor
+     * @return a lookup override view of the shared registry; shutting it down leaves the shared registry running.
+     * @throws Exception
+     * @see LookupOverrideRegistry
+     */
+    public Registry getLookupOverrideRegistry(String file) throws Exception {
+        return LookupOverrideRegistry.overlay(getRegistry(file, true));
+    }
+
+    /**
+     * @param registry a started registry.
+     * @return a view of registry answering service lookups from immutable tables built now.
+     * @see FrozenRegistry
+     */
+    public Registry freezeRegistry(Registry registry) {
+        return FrozenRegistry.freeze(registry);
+    }
+
+    /**
+     * @param file
+     *            The hivemind descriptor
+     * @return a frozen view of the shared registry for file.
+     * @throws Exception
+     * @see #freezeRegistry(Registry)
+     */
+    public Registry getFrozenRegistry(String file) throws Exception {
+        return freezeRegistry(getRegistry(file, true));
     }
 
     protected ClassResolver getClassResolver() {
@@ -178,25 +406,57 @@ public final class HivemindHelper {
      * Shutdown and clear all stored hivemind registries.
      */
     public void cleanUpRegistries() {
-        for (Registry registry : registries.values()) {
-            registry.shutdown();
-        }
         registries.clear();
     }
 
     protected Registry buildFrameworkRegistry(ModuleDescriptorProvider customProvider,
             String skipPattern, boolean skipFilesystem) {
+        return buildFrameworkRegistry(customProvider, skipPattern, skipFilesystem, null);
+    }
+
+    /**
+     * @param customProvider
+     * @param skipPattern
+     * @param skipFilesystem
+     * @param descriptorURLs if not null, filled with the urls of the descriptors the registry was built from.
+     * @return the registry
+     */
+    protected Registry buildFrameworkRegistry(ModuleDescriptorProvider customProvider,
+            String skipPattern, boolean skipFilesystem, Collection<URL> descriptorURLs) {
+        return buildFrameworkRegistry(customProvider, skipPattern, skipFilesystem, descriptorURLs, shareDescriptors);
+    }
+
+    private Registry buildFrameworkRegistry(ModuleDescriptorProvider customProvider,
+            String skipPattern, boolean skipFilesystem, Collection<URL> descriptorURLs, boolean share) {
         ClassResolver resolver = getClassResolver();
 
         RegistryBuilder builder = new RegistryBuilder(/*new QuietErrorHandler()*/);
 
         CustomModuleDescriptorProvider provider = new CustomModuleDescriptorProvider(
                 resolver, skipPattern, skipFilesystem, false);
+        provider.setShareDescriptors(share);
 
         builder.addModuleDescriptorProvider(provider);
         builder.addModuleDescriptorProvider(customProvider);
 
-        return builder.constructRegistry(Locale.getDefault());
+        StartupProfiler.Span span = StartupProfiler.start(StartupProfiler.REGISTRY, String.valueOf(customProvider));
+        try {
+            Registry registry = builder.constructRegistry(Locale.getDefault());
+            if (descriptorURLs != null) {
+                descriptorURLs.addAll(provider.getDescriptorURLs());
+                if (customProvider instanceof CustomModuleDescriptorProvider) {
+                    descriptorURLs.addAll(((CustomModuleDescriptorProvider) customProvider).getDescriptorURLs());
+                }
+            }
+            provider.release();
+            if (customProvider instanceof CustomModuleDescriptorProvider) {
+                ((CustomModuleDescriptorProvider) customProvider).release();
+            }
+            return registry;
+        } finally {
+            StartupProfiler.end(span);
+            StartupProfiler.report();
+        }
     }
 
     @SuppressWarnings("unused")
@@ -17,59 +17,137 @@ package org.amplafi.hivemind.util;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServlet;
 
 import org.apache.hivemind.Registry;
+import org.apache.hivemind.ShutdownCoordinator;
+import org.apache.hivemind.events.RegistryShutdownListener;
 
 /**
  * An {@link InvocationHandler} that makes sure that the {@link Registry Hivemind Registry}
  * is available.
  *
+ * The registry is looked up in the servlet context on first use and cached; it is looked up again after
+ * {@link #invalidate()}, which is called when the cached registry shuts down (a redeploy). Calls are made
+ * directly rather than through reflection. {@link #getFrozenInstance(ServletConfig)} answers service lookups
+ * from a {@link FrozenRegistry} of the registry, frozen once per registry.
+ *
  * @author Patrick Moore
  */
 public class HivemindRegistryManagement implements InvocationHandler {
     private static final String REGISTRY_KEY_PREFIX = "org.apache.tapestry.Registry:";
     private static final String TAPESTRY_SERVLET_NAME = "amplafi";
+    private static final String REGISTRY_KEY = REGISTRY_KEY_PREFIX+TAPESTRY_SERVLET_NAME;
+    private static final String SHUTDOWN_COORDINATOR_ID = "hivemind.ShutdownCoordinator";
     private ServletContext context;
-    private Registry registry;
+    private boolean frozen;
+    private final AtomicReference<Registry> registry = new AtomicReference<Registry>();
 
     public static Registry getInstance(HttpServlet servlet) {
         return getInstance(servlet.getServletConfig());
     }
 
     public static Registry getInstance(ServletConfig servletConfig) {
+        return getInstance(servletConfig, false);
+    }
+
+    /**
+     * Like {@link #getInstance(ServletConfig)} but service lookups are answered from a {@link FrozenRegistry},
+     * built when the registry is first used (so after startup) and again after a redeploy.
+     * @param servletConfig
+     * @return the registry
+     */
+    public static Registry getFrozenInstance(ServletConfig servletConfig) {
+        return getInstance(servletConfig, true);
+    }
+
+    private static Registry getInstance(ServletConfig servletConfig, boolean frozen) {
         HivemindRegistryManagement inst = new HivemindRegistryManagement();
         inst.context = servletConfig.getServletContext();
+        inst.frozen = frozen;
         return (Registry) Proxy.newProxyInstance(Registry.class.getClassLoader(),
                 new Class[] {Registry.class}, inst);
     }
 
     /**
-     * @throws IllegalStateException
+     * Look the registry up in the servlet context and cache it.
+     * @throws IllegalStateException if there is no registry.
      */
     protected void initRegistry() throws IllegalStateException{
-        registry = (Registry) this.context.getAttribute(REGISTRY_KEY_PREFIX+TAPESTRY_SERVLET_NAME);
-        if ( registry == null ) {
+        lookupRegistry();
+    }
+
+    private synchronized Registry lookupRegistry() throws IllegalStateException {
+        Registry found = (Registry) this.context.getAttribute(REGISTRY_KEY);
+        if ( found == null ) {
+            registry.set(null);
             throw new IllegalStateException("No registry found named '"+
-                    REGISTRY_KEY_PREFIX+TAPESTRY_SERVLET_NAME+"'");
+                    REGISTRY_KEY+"'");
+        }
+        final Registry current = frozen ? FrozenRegistry.freeze(found) : found;
+        registry.set(current);
+        ShutdownCoordinator shutdownCoordinator = (ShutdownCoordinator) found.getService(SHUTDOWN_COORDINATOR_ID, ShutdownCoordinator.class);
+        shutdownCoordinator.addRegistryShutdownListener(new RegistryShutdownListener() {
+            public void registryDidShutdown() {
+                // a registry found since is kept.
+                registry.compareAndSet(current, null);
+            }
+        });
+        return current;
+    }
+
+    /**
+     * @return the cached registry, looked up first if there is none.
+     * @throws IllegalStateException if there is no registry.
+     */
+    protected Registry getRegistry() throws IllegalStateException {
+        Registry current = registry.get();
+        if ( current == null ) {
+            synchronized (this) {
+                current = registry.get();
+                if ( current == null ) {
+                    current = lookupRegistry();
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Forget the cached registry (for example when the application is redeployed);
+     * the next call looks it up again.
+     */
+    public void invalidate() {
+        registry.set(null);
+    }
+
+    /**
+     * @param registry a registry returned by {@link #getInstance(ServletConfig)}; other registries are ignored.
+     */
+    public static void invalidate(Registry registry) {
+        if ( registry != null && Proxy.isProxyClass(registry.getClass())
+            && Proxy.getInvocationHandler(registry) instanceof HivemindRegistryManagement) {
+            ((HivemindRegistryManagement) Proxy.getInvocationHandler(registry)).invalidate();
         }
     }
 
-    @SuppressWarnings("unused")
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-        initRegistry();
-        return method.invoke(registry, args);
+        // Object's methods are the registry's.
+        return RegistryMethod.invoke(getRegistry(), method, args);
     }
+
     public static boolean isRegistryAvailable(Registry registry) {
         if ( registry == null) {
             return false;
-        } else if ( Proxy.isProxyClass(registry.getClass())) {
+        } else if ( Proxy.isProxyClass(registry.getClass())
+            && Proxy.getInvocationHandler(registry) instanceof HivemindRegistryManagement) {
             HivemindRegistryManagement reg = (HivemindRegistryManagement) Proxy.getInvocationHandler(registry);
             try {
-                reg.initRegistry();
+                reg.getRegistry();
                 return true;
             } catch (IllegalStateException e) {
                 return false;
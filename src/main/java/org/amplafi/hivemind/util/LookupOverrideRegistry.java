@@ -0,0 +1,137 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hivemind.ApplicationRuntimeException;
+import org.apache.hivemind.Registry;
+
+/**
+ * A view of a fully built template {@link Registry} that can override service lookups. It is not a per-test fork
+ * or an isolated copy: nothing is instantiated again, everything (descriptors, proxies, services) is shared with
+ * the template and only lookups made through the view see its overrides. In particular:
+ * <ul>
+ * <li>singleton (and primitive) services are the template's instances, so state a test leaves in them is seen
+ * by the template and by every other view,</li>
+ * <li>services already wired into other template services are not replaced (use
+ * {@link org.amplafi.hivemind.factory.mock.MockBuilderFactory} overrides for those),</li>
+ * <li>configurations are the template's.</li>
+ * </ul>
+ * Shutting down a view only discards its overrides; it does not call anything on the template, which other
+ * views (and threads) are using. Tests that need isolated state need their own registry.
+ *
+ * <pre>
+ * Registry registry = HivemindHelper.instance().getLookupOverrideRegistry("test-hivemodule.xml");
+ * LookupOverrideRegistry.getLookupOverrideRegistry(registry).overrideService(MailService.class, new FakeMailService());
+ * ...
+ * registry.shutdown(); // template is untouched
+ * </pre>
+ */
+public class LookupOverrideRegistry implements InvocationHandler {
+    private final Registry template;
+
+    private final Map<String, Object> servicesById = new ConcurrentHashMap<String, Object>();
+
+    private final Map<Class<?>, Object> servicesByInterface = new ConcurrentHashMap<Class<?>, Object>();
+
+    private volatile boolean shutdown;
+
+    private LookupOverrideRegistry(Registry template) {
+        this.template = template;
+    }
+
+    /**
+     * @param template
+     * @return a view of template with no overrides yet.
+     */
+    public static Registry overlay(Registry template) {
+        return (Registry) Proxy.newProxyInstance(Registry.class.getClassLoader(),
+            new Class[] { Registry.class }, new LookupOverrideRegistry(template));
+    }
+
+    /**
+     * @param registry
+     * @return the {@link LookupOverrideRegistry} behind registry or null if registry is not one.
+     */
+    public static LookupOverrideRegistry getLookupOverrideRegistry(Registry registry) {
+        if (registry != null && Proxy.isProxyClass(registry.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(registry);
+            if (handler instanceof LookupOverrideRegistry) {
+                return (LookupOverrideRegistry) handler;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param <T>
+     * @param serviceId qualified service id.
+     * @param serviceInterface
+     * @param service returned by this view instead of the template's service.
+     */
+    public <T> void overrideService(String serviceId, Class<T> serviceInterface, T service) {
+        servicesById.put(serviceId, serviceInterface.cast(service));
+    }
+
+    /**
+     * @param <T>
+     * @param serviceInterface
+     * @param service returned by this view (when the service is looked up by interface) instead of the
+     * template's service.
+     */
+    public <T> void overrideService(Class<T> serviceInterface, T service) {
+        servicesByInterface.put(serviceInterface, serviceInterface.cast(service));
+    }
+
+    /**
+     * Forget all overrides.
+     */
+    public void reset() {
+        servicesById.clear();
+        servicesByInterface.clear();
+    }
+
+    public Registry getTemplate() {
+        return template;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (RegistryMethod.isObjectMethod(method)) {
+            return RegistryMethod.invokeObjectMethod(proxy, method, args, "lookup overrides of " + template);
+        }
+        String name = method.getName();
+        if ("shutdown".equals(name)) {
+            shutdown = true;
+            reset();
+            return null;
+        } else if (shutdown) {
+            throw new ApplicationRuntimeException("Lookup override registry has been shutdown.");
+        } else if ("getService".equals(name)) {
+            Object service = args.length == 2 ? servicesById.get(args[0]) : servicesByInterface.get(args[0]);
+            if (service != null) {
+                return service;
+            }
+        } else if ("containsService".equals(name)) {
+            if (args.length == 2 ? servicesById.containsKey(args[0]) : servicesByInterface.containsKey(args[0])) {
+                return Boolean.TRUE;
+            }
+        }
+        return RegistryMethod.invoke(template, method, args);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ListIterator;
+
+import org.apache.hivemind.Element;
+import org.apache.hivemind.impl.AttributeImpl;
+import org.apache.hivemind.impl.ElementImpl;
+import org.apache.hivemind.parse.AbstractServiceDescriptor;
+import org.apache.hivemind.parse.ConfigurationPointDescriptor;
+import org.apache.hivemind.parse.ContributionDescriptor;
+import org.apache.hivemind.parse.CreateInstanceDescriptor;
+import org.apache.hivemind.parse.ImplementationDescriptor;
+import org.apache.hivemind.parse.InterceptorDescriptor;
+import org.apache.hivemind.parse.InvokeFactoryDescriptor;
+import org.apache.hivemind.parse.ModuleDescriptor;
+import org.apache.hivemind.parse.ServicePointDescriptor;
+
+/**
+ * Shrinks a freshly parsed {@link ModuleDescriptor}: the ids, class names and service models that every
+ * descriptor repeats (and that the registry keeps for its lifetime) are interned, as are the element and attribute
+ * names of factory parameters and contributions, and the descriptor's lists are trimmed to size. Attribute values
+ * and element content are not interned: they are mostly unique and would only fill the string table.
+ *
+ * Element trees and locations are kept: configurations are built from them lazily and errors report them.
+ */
+public class ModuleDescriptorCompactor {
+    private ModuleDescriptorCompactor() {
+    }
+
+    /**
+     * @param moduleDescriptor compacted in place.
+     */
+    public static void compact(ModuleDescriptor moduleDescriptor) {
+        moduleDescriptor.setModuleId(intern(moduleDescriptor.getModuleId()));
+        moduleDescriptor.setPackageName(intern(moduleDescriptor.getPackageName()));
+        moduleDescriptor.setVersion(intern(moduleDescriptor.getVersion()));
+        for (ServicePointDescriptor servicePoint : ModuleDescriptorCompactor.<ServicePointDescriptor>list(moduleDescriptor.getServicePoints())) {
+            servicePoint.setId(intern(servicePoint.getId()));
+            servicePoint.setInterfaceClassName(intern(servicePoint.getInterfaceClassName()));
+            compactService(servicePoint);
+        }
+        for (ImplementationDescriptor implementation : ModuleDescriptorCompactor.<ImplementationDescriptor>list(moduleDescriptor.getImplementations())) {
+            implementation.setServiceId(intern(implementation.getServiceId()));
+            compactService(implementation);
+        }
+        for (ConfigurationPointDescriptor configurationPoint : ModuleDescriptorCompactor.<ConfigurationPointDescriptor>list(moduleDescriptor.getConfigurationPoints())) {
+            configurationPoint.setId(intern(configurationPoint.getId()));
+        }
+        for (ContributionDescriptor contribution : ModuleDescriptorCompactor.<ContributionDescriptor>list(moduleDescriptor.getContributions())) {
+            contribution.setConfigurationId(intern(contribution.getConfigurationId()));
+            compactElements(contribution.getElements());
+        }
+        trim(moduleDescriptor.getServicePoints());
+        trim(moduleDescriptor.getImplementations());
+        trim(moduleDescriptor.getConfigurationPoints());
+        trim(moduleDescriptor.getContributions());
+        trim(moduleDescriptor.getDependencies());
+        trim(moduleDescriptor.getSubModules());
+    }
+
+    private static void compactService(AbstractServiceDescriptor service) {
+        if (service.getInstanceBuilder() instanceof InvokeFactoryDescriptor) {
+            InvokeFactoryDescriptor invokeFactory = (InvokeFactoryDescriptor) service.getInstanceBuilder();
+            invokeFactory.setFactoryServiceId(intern(invokeFactory.getFactoryServiceId()));
+            invokeFactory.setServiceModel(intern(invokeFactory.getServiceModel()));
+            compactElements(invokeFactory.getParameters());
+        } else if (service.getInstanceBuilder() instanceof CreateInstanceDescriptor) {
+            CreateInstanceDescriptor createInstance = (CreateInstanceDescriptor) service.getInstanceBuilder();
+            createInstance.setInstanceClassName(intern(createInstance.getInstanceClassName()));
+            createInstance.setServiceModel(intern(createInstance.getServiceModel()));
+        }
+        for (InterceptorDescriptor interceptor : ModuleDescriptorCompactor.<InterceptorDescriptor>list(service.getInterceptors())) {
+            interceptor.setServiceId(intern(interceptor.getServiceId()));
+            compactElements(interceptor.getParameters());
+        }
+        trim(service.getInterceptors());
+    }
+
+    private static void compactElements(List<?> elements) {
+        for (Element element : ModuleDescriptorCompactor.<Element>list(elements)) {
+            if (element instanceof ElementImpl) {
+                ElementImpl elementImpl = (ElementImpl) element;
+                elementImpl.setElementName(intern(elementImpl.getElementName()));
+                compactAttributes(elementImpl.getAttributes());
+            }
+            compactElements(element.getElements());
+        }
+        trim(elements);
+    }
+
+    /**
+     * attributes are immutable so an attribute with a name to intern is replaced.
+     */
+    private static void compactAttributes(List<?> attributes) {
+        if (attributes instanceof ArrayList) {
+            for (ListIterator<Object> iterator = ModuleDescriptorCompactor.<Object>list(attributes).listIterator(); iterator.hasNext();) {
+                Object attribute = iterator.next();
+                if (attribute instanceof AttributeImpl) {
+                    String name = ((AttributeImpl) attribute).getName();
+                    String internedName = intern(name);
+                    if (internedName != name) {
+                        iterator.set(new AttributeImpl(internedName, ((AttributeImpl) attribute).getValue()));
+                    }
+                }
+            }
+            trim(attributes);
+        }
+    }
+
+    private static String intern(String value) {
+        return value == null ? null : value.intern();
+    }
+
+    /**
+     * lists handed out unmodifiable are left alone.
+     */
+    private static void trim(List<?> list) {
+        if (list instanceof ArrayList) {
+            ((ArrayList<?>) list).trimToSize();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> list(List<?> list) {
+        return list == null ? new ArrayList<T>() : (List<T>) list;
+    }
+}
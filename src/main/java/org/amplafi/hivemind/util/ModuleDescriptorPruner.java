@@ -0,0 +1,256 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hivemind.Attribute;
+import org.apache.hivemind.Element;
+import org.apache.hivemind.parse.AbstractServiceDescriptor;
+import org.apache.hivemind.parse.ConfigurationPointDescriptor;
+import org.apache.hivemind.parse.ContributionDescriptor;
+import org.apache.hivemind.parse.DependencyDescriptor;
+import org.apache.hivemind.parse.ImplementationDescriptor;
+import org.apache.hivemind.parse.InstanceBuilder;
+import org.apache.hivemind.parse.InterceptorDescriptor;
+import org.apache.hivemind.parse.InvokeFactoryDescriptor;
+import org.apache.hivemind.parse.ModuleDescriptor;
+import org.apache.hivemind.parse.ServicePointDescriptor;
+
+/**
+ * Reduces a list of {@link ModuleDescriptor}s to the modules needed by a set of root services (or modules).
+ *
+ * A module needs:
+ * <ul>
+ * <li>its sub-modules and declared dependencies,</li>
+ * <li>the owners of the configuration points it contributes to and the services it implements,</li>
+ * <li>the owners of services and configurations it refers to: any attribute value or element content of a
+ * factory parameter, interceptor or contribution that (after stripping a "service:" style prefix and
+ * qualifying with the module id) names a known service or configuration point,</li>
+ * <li>and all the modules that contribute to its configuration points or implement or intercept its services.</li>
+ * </ul>
+ * References hivemind cannot see (for example autowiring by type) are not found: name those services as roots too.
+ *
+ * The core {@link #HIVEMIND_MODULE_ID} module is always a root: the registry cannot start without hivemind.Startup
+ * and hivemind.ServiceModels, and the modules contributing to its configuration points (startup tasks, symbol
+ * defaults ...) are needed by every registry.
+ */
+public class ModuleDescriptorPruner {
+    public static final String HIVEMIND_MODULE_ID = "hivemind";
+
+    private static final Log LOG = LogFactory.getLog(ModuleDescriptorPruner.class);
+
+    /**
+     * module id to the descriptors with that id.
+     */
+    private final Map<String, List<ModuleDescriptor>> modules = new HashMap<String, List<ModuleDescriptor>>();
+
+    /**
+     * qualified service and configuration point id to the id of the module declaring it.
+     */
+    private final Map<String, String> owners = new HashMap<String, String>();
+
+    /**
+     * module id to the ids of the modules it needs.
+     */
+    private final Map<String, Set<String>> needs = new HashMap<String, Set<String>>();
+
+    private final List<ModuleDescriptor> moduleDescriptors;
+
+    /**
+     * @param moduleDescriptors all the available modules
+     * @param subModules each descriptor's sub-module descriptors
+     */
+    public ModuleDescriptorPruner(List<ModuleDescriptor> moduleDescriptors, Map<ModuleDescriptor, List<ModuleDescriptor>> subModules) {
+        this.moduleDescriptors = moduleDescriptors;
+        for (ModuleDescriptor moduleDescriptor : moduleDescriptors) {
+            String moduleId = moduleDescriptor.getModuleId();
+            getList(modules, moduleId).add(moduleDescriptor);
+            for (ServicePointDescriptor servicePoint : ModuleDescriptorPruner.<ServicePointDescriptor>list(moduleDescriptor.getServicePoints())) {
+                owners.put(qualify(moduleId, servicePoint.getId()), moduleId);
+            }
+            for (ConfigurationPointDescriptor configurationPoint : ModuleDescriptorPruner.<ConfigurationPointDescriptor>list(moduleDescriptor.getConfigurationPoints())) {
+                owners.put(qualify(moduleId, configurationPoint.getId()), moduleId);
+            }
+        }
+        for (ModuleDescriptor moduleDescriptor : moduleDescriptors) {
+            String moduleId = moduleDescriptor.getModuleId();
+            Set<String> needed = getNeeds(moduleId);
+            List<ModuleDescriptor> children = subModules.get(moduleDescriptor);
+            if (children != null) {
+                for (ModuleDescriptor child : children) {
+                    needed.add(child.getModuleId());
+                }
+            }
+            for (DependencyDescriptor dependency : ModuleDescriptorPruner.<DependencyDescriptor>list(moduleDescriptor.getDependencies())) {
+                needed.add(dependency.getModuleId());
+            }
+            for (ServicePointDescriptor servicePoint : ModuleDescriptorPruner.<ServicePointDescriptor>list(moduleDescriptor.getServicePoints())) {
+                addReferences(moduleId, moduleId, servicePoint);
+            }
+            for (ImplementationDescriptor implementation : ModuleDescriptorPruner.<ImplementationDescriptor>list(moduleDescriptor.getImplementations())) {
+                String owner = addReference(moduleId, implementation.getServiceId());
+                addReferences(moduleId, owner, implementation);
+            }
+            for (ContributionDescriptor contribution : ModuleDescriptorPruner.<ContributionDescriptor>list(moduleDescriptor.getContributions())) {
+                String owner = addReference(moduleId, contribution.getConfigurationId());
+                if (owner != null) {
+                    // whoever uses the configuration needs this contribution.
+                    getNeeds(owner).add(moduleId);
+                }
+                addReferences(moduleId, ModuleDescriptorPruner.<Element>list(contribution.getElements()));
+            }
+        }
+    }
+
+    /**
+     * @param roots qualified service ids or module ids
+     * @return the descriptors (in their original order) needed by roots and by the {@link #HIVEMIND_MODULE_ID} module.
+     */
+    public List<ModuleDescriptor> prune(Collection<String> roots) {
+        Set<String> reachable = new LinkedHashSet<String>();
+        LinkedList<String> pending = new LinkedList<String>();
+        pending.add(HIVEMIND_MODULE_ID);
+        for (String root : roots) {
+            String moduleId = modules.containsKey(root) ? root : owners.get(root);
+            if (moduleId == null) {
+                LOG.warn("No module declares " + root + "; it is ignored when pruning");
+            } else {
+                pending.add(moduleId);
+            }
+        }
+        while (!pending.isEmpty()) {
+            String moduleId = pending.removeFirst();
+            if (modules.containsKey(moduleId) && reachable.add(moduleId)) {
+                pending.addAll(getNeeds(moduleId));
+            }
+        }
+        List<ModuleDescriptor> pruned = new ArrayList<ModuleDescriptor>();
+        for (ModuleDescriptor moduleDescriptor : moduleDescriptors) {
+            if (reachable.contains(moduleDescriptor.getModuleId())) {
+                pruned.add(moduleDescriptor);
+            }
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Pruned " + moduleDescriptors.size() + " modules to " + reachable + " for roots " + roots);
+        }
+        return pruned;
+    }
+
+    /**
+     * @param moduleId module referring to the service
+     * @param owner module owning the service (if known)
+     * @param service
+     */
+    private void addReferences(String moduleId, String owner, AbstractServiceDescriptor service) {
+        if (owner != null && !owner.equals(moduleId)) {
+            // the service's users need its implementation and interceptors.
+            getNeeds(owner).add(moduleId);
+        }
+        InstanceBuilder instanceBuilder = ProfiledInstanceBuilder.unwrap(service.getInstanceBuilder());
+        if (instanceBuilder instanceof InvokeFactoryDescriptor) {
+            InvokeFactoryDescriptor invokeFactory = (InvokeFactoryDescriptor) instanceBuilder;
+            addReference(moduleId, invokeFactory.getFactoryServiceId());
+            addReferences(moduleId, ModuleDescriptorPruner.<Element>list(invokeFactory.getParameters()));
+        }
+        for (InterceptorDescriptor interceptor : ModuleDescriptorPruner.<InterceptorDescriptor>list(service.getInterceptors())) {
+            addReference(moduleId, interceptor.getServiceId());
+            addReferences(moduleId, ModuleDescriptorPruner.<Element>list(interceptor.getParameters()));
+        }
+    }
+
+    private void addReferences(String moduleId, List<Element> elements) {
+        for (Element element : elements) {
+            for (Attribute attribute : ModuleDescriptorPruner.<Attribute>list(element.getAttributes())) {
+                addReference(moduleId, attribute.getValue());
+            }
+            addReference(moduleId, element.getContent());
+            addReferences(moduleId, ModuleDescriptorPruner.<Element>list(element.getElements()));
+        }
+    }
+
+    /**
+     * @param moduleId
+     * @param value a possible reference to a service or configuration point.
+     * @return the module owning the referenced service or configuration point, null if value is not a reference.
+     */
+    private String addReference(String moduleId, String value) {
+        String id = toQualifiedId(moduleId, value);
+        String owner = id == null ? null : owners.get(id);
+        if (owner != null) {
+            getNeeds(moduleId).add(owner);
+        }
+        return owner;
+    }
+
+    /**
+     * @param moduleId module the value appears in
+     * @param value a possible reference to a service or configuration point.
+     * @return the qualified id value refers to if it is a reference, null if value is empty.
+     */
+    static String toQualifiedId(String moduleId, String value) {
+        if (value == null) {
+            return null;
+        }
+        String id = value.trim();
+        // "service:id", "configuration:id", "object:service:id" ...
+        id = id.substring(id.lastIndexOf(':') + 1);
+        if (id.length() == 0) {
+            return null;
+        }
+        return qualify(moduleId, id);
+    }
+
+    private Set<String> getNeeds(String moduleId) {
+        Set<String> needed = needs.get(moduleId);
+        if (needed == null) {
+            needed = new LinkedHashSet<String>();
+            needs.put(moduleId, needed);
+        }
+        return needed;
+    }
+
+    /**
+     * same rule as hivemind: an id with a '.' is already qualified.
+     */
+    private static String qualify(String moduleId, String id) {
+        return id.indexOf('.') >= 0 ? id : moduleId + "." + id;
+    }
+
+    private static <K, V> List<V> getList(Map<K, List<V>> map, K key) {
+        List<V> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<V>();
+            map.put(key, list);
+        }
+        return list;
+    }
+
+    /**
+     * hivemind's descriptors use raw (possibly null) lists.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> list(List<?> list) {
+        return list == null ? new ArrayList<T>() : (List<T>) list;
+    }
+}
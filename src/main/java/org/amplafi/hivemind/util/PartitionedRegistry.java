@@ -0,0 +1,406 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.hivemind.ApplicationRuntimeException;
+import org.apache.hivemind.Registry;
+import org.apache.hivemind.internal.Visibility;
+import org.apache.hivemind.parse.AbstractServiceDescriptor;
+import org.apache.hivemind.parse.ImplementationDescriptor;
+import org.apache.hivemind.parse.InstanceBuilder;
+import org.apache.hivemind.parse.ModuleDescriptor;
+import org.apache.hivemind.parse.ServicePointDescriptor;
+
+/**
+ * A {@link Registry} made of partitions that are built on first use. Modules are assigned to the partition
+ * with the longest matching module id prefix (a prefix matches the module with that id and the modules whose id
+ * continues with a '.'), modules matching no prefix are in the default partition.
+ * Lookups by id go to the partition of the module owning the id, lookups by interface go to the partition of the
+ * (single) public service point declaring the interface; anything else (symbols, locale) goes to the default
+ * partition. As in hivemind, {@link Registry#getServiceIds(Class)} lists the public service points whose
+ * interface is assignable to the class; it loads the interfaces but builds no partition.
+ *
+ * Each partition is a pruned registry (see {@link ModuleDescriptorPruner}): it also contains the modules its
+ * own modules refer to, which is how references to other partitions are resolved. The services of those modules
+ * are constructed again in each partition that uses them, and a singleton (or primitive) service constructed
+ * twice is two services whose state diverges. So a partition that would contain a singleton or primitive service
+ * point of another partition's module fails to build with an {@link ApplicationRuntimeException} naming those
+ * services: choose prefixes along boundaries where only threaded or pooled services are shared. The
+ * {@link ModuleDescriptorPruner#HIVEMIND_MODULE_ID} module, which every registry has its own copy of, is exempt.
+ */
+public class PartitionedRegistry implements InvocationHandler {
+    /**
+     * Builds a partition.
+     */
+    public interface PartitionBuilder {
+        /**
+         * @param moduleIds the modules in the partition.
+         * @return a registry with those modules and the modules they need.
+         * @throws Exception
+         */
+        Registry build(Collection<String> moduleIds) throws Exception;
+    }
+
+    public static final String DEFAULT_PARTITION = "";
+
+    /**
+     * service models whose services hold no state shared between calls, so each partition may have its own.
+     */
+    private static final Set<String> DUPLICABLE_SERVICE_MODELS = new HashSet<String>(Arrays.asList("threaded", "pooled"));
+
+    private final PartitionBuilder partitionBuilder;
+
+    /**
+     * partition (prefix) to its module ids.
+     */
+    private final Map<String, List<String>> partitionModules = new LinkedHashMap<String, List<String>>();
+
+    private final Map<String, String> modulePartitions = new HashMap<String, String>();
+
+    /**
+     * interface class name to the qualified ids of the public service points declaring it.
+     */
+    private final Map<String, List<String>> serviceIdsByInterface = new LinkedHashMap<String, List<String>>();
+
+    private final ConcurrentMap<String, FutureTask<Registry>> partitions = new ConcurrentHashMap<String, FutureTask<Registry>>();
+
+    /**
+     * finds the modules each partition's registry will contain.
+     */
+    private final ModuleDescriptorPruner pruner;
+
+    private PartitionedRegistry(List<ModuleDescriptor> moduleDescriptors,
+            Map<ModuleDescriptor, List<ModuleDescriptor>> subModules, Collection<String> prefixes,
+            PartitionBuilder partitionBuilder) {
+        this.partitionBuilder = partitionBuilder;
+        this.pruner = new ModuleDescriptorPruner(moduleDescriptors, subModules);
+        partitionModules.put(DEFAULT_PARTITION, new ArrayList<String>());
+        for (String prefix : prefixes) {
+            partitionModules.put(prefix, new ArrayList<String>());
+        }
+        for (ModuleDescriptor moduleDescriptor : moduleDescriptors) {
+            String moduleId = moduleDescriptor.getModuleId();
+            String partition = getPartitionForModule(moduleId, prefixes);
+            if (!modulePartitions.containsKey(moduleId)) {
+                modulePartitions.put(moduleId, partition);
+                partitionModules.get(partition).add(moduleId);
+            }
+            List<?> servicePoints = moduleDescriptor.getServicePoints();
+            if (servicePoints == null) {
+                continue;
+            }
+            for (Object element : servicePoints) {
+                ServicePointDescriptor servicePoint = (ServicePointDescriptor) element;
+                if (servicePoint.getVisibility() == Visibility.PRIVATE) {
+                    // not visible to lookups made through the registry.
+                    continue;
+                }
+                String serviceId = moduleId + "." + servicePoint.getId();
+                String interfaceClassName = servicePoint.getInterfaceClassName();
+                if (interfaceClassName == null) {
+                    interfaceClassName = serviceId;
+                } else if (interfaceClassName.indexOf('.') < 0 && moduleDescriptor.getPackageName() != null) {
+                    interfaceClassName = moduleDescriptor.getPackageName() + "." + interfaceClassName;
+                }
+                List<String> serviceIds = serviceIdsByInterface.get(interfaceClassName);
+                if (serviceIds == null) {
+                    serviceIds = new ArrayList<String>();
+                    serviceIdsByInterface.put(interfaceClassName, serviceIds);
+                }
+                serviceIds.add(serviceId);
+            }
+        }
+    }
+
+    /**
+     * @param moduleDescriptors all the modules (none has sub-modules).
+     * @param prefixes module id prefixes, one per partition.
+     * @param partitionBuilder
+     * @return the partitioned registry; no partition is built yet.
+     */
+    public static Registry create(List<ModuleDescriptor> moduleDescriptors, Collection<String> prefixes,
+            PartitionBuilder partitionBuilder) {
+        return create(moduleDescriptors, Collections.<ModuleDescriptor, List<ModuleDescriptor>>emptyMap(), prefixes,
+            partitionBuilder);
+    }
+
+    /**
+     * @param moduleDescriptors all the modules.
+     * @param subModules each descriptor's sub-module descriptors.
+     * @param prefixes module id prefixes, one per partition.
+     * @param partitionBuilder
+     * @return the partitioned registry; no partition is built yet.
+     */
+    public static Registry create(List<ModuleDescriptor> moduleDescriptors,
+            Map<ModuleDescriptor, List<ModuleDescriptor>> subModules, Collection<String> prefixes,
+            PartitionBuilder partitionBuilder) {
+        return (Registry) Proxy.newProxyInstance(Registry.class.getClassLoader(), new Class[] { Registry.class },
+            new PartitionedRegistry(moduleDescriptors, subModules, prefixes, partitionBuilder));
+    }
+
+    /**
+     * @param registry
+     * @return the {@link PartitionedRegistry} behind registry or null if registry is not partitioned.
+     */
+    public static PartitionedRegistry getPartitionedRegistry(Registry registry) {
+        if (registry != null && Proxy.isProxyClass(registry.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(registry);
+            if (handler instanceof PartitionedRegistry) {
+                return (PartitionedRegistry) handler;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return each partition's prefix and module ids ({@link #DEFAULT_PARTITION} for the modules matching no
+     * prefix).
+     */
+    public Map<String, List<String>> getPartitionModules() {
+        return Collections.unmodifiableMap(partitionModules);
+    }
+
+    /**
+     * @param partition
+     * @return true if the partition has been built (or is being built).
+     */
+    public boolean isBuilt(String partition) {
+        return partitions.containsKey(partition);
+    }
+
+    /**
+     * @param partition a prefix or {@link #DEFAULT_PARTITION}.
+     * @return the partition's registry, built on this thread if no other thread has (or is).
+     */
+    public Registry getPartition(final String partition) {
+        if (!partitionModules.containsKey(partition)) {
+            throw new ApplicationRuntimeException("No registry partition '" + partition + "'");
+        }
+        FutureTask<Registry> task = partitions.get(partition);
+        if (task == null) {
+            partitions.putIfAbsent(partition, new FutureTask<Registry>(new Callable<Registry>() {
+                public Registry call() throws Exception {
+                    checkNoSharedState(partition);
+                    return partitionBuilder.build(partitionModules.get(partition));
+                }
+            }));
+            task = partitions.get(partition);
+        }
+        task.run();
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            // so the next caller tries again.
+            partitions.remove(partition, task);
+            throw new ApplicationRuntimeException("Unable to build registry partition '" + partition + "'", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ApplicationRuntimeException("Interrupted while building registry partition '" + partition + "'", e);
+        }
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (RegistryMethod.isObjectMethod(method)) {
+            return RegistryMethod.invokeObjectMethod(proxy, method, args, "partitioned registry " + partitionModules.keySet());
+        }
+        String name = method.getName();
+        if ("shutdown".equals(name) || "cleanupThread".equals(name)) {
+            for (FutureTask<Registry> task : partitions.values()) {
+                if (task.isDone()) {
+                    try {
+                        RegistryMethod.invoke(task.get(), method, args);
+                    } catch (ExecutionException e) {
+                        // never built.
+                    }
+                }
+            }
+            return null;
+        }
+        Registry partition;
+        if (args != null && args.length > 0 && args[0] instanceof Class) {
+            if ("getServiceIds".equals(name)) {
+                return getServiceIds((Class<?>) args[0]);
+            }
+            List<String> serviceIds = serviceIdsByInterface.get(((Class<?>) args[0]).getName());
+            if ("containsService".equals(name)) {
+                return serviceIds != null && serviceIds.size() == 1;
+            } else if (serviceIds == null || serviceIds.isEmpty()) {
+                // let hivemind report that there is no such service.
+                partition = getPartition(DEFAULT_PARTITION);
+            } else if (serviceIds.size() > 1) {
+                throw new ApplicationRuntimeException("There are multiple service points implementing "
+                    + ((Class<?>) args[0]).getName() + ": " + serviceIds);
+            } else {
+                // getService(Class): by id in the partition, which may contain other implementations.
+                String serviceId = serviceIds.get(0);
+                return getPartition(getPartitionForId(serviceId)).getService(serviceId, (Class<?>) args[0]);
+            }
+        } else if (args != null && args.length > 0 && args[0] instanceof String) {
+            String id = (String) args[0];
+            partition = getPartition("getModuleMessages".equals(name) ? getPartitionForModule(id) : getPartitionForId(id));
+        } else {
+            partition = getPartition(DEFAULT_PARTITION);
+        }
+        return RegistryMethod.invoke(partition, method, args);
+    }
+
+    /**
+     * @param partition
+     * @throws ApplicationRuntimeException if the partition's registry would construct its own copy of singleton
+     * or primitive services of other partitions' modules.
+     */
+    private void checkNoSharedState(String partition) {
+        List<ModuleDescriptor> moduleDescriptors = pruner.prune(partitionModules.get(partition));
+        // qualified service id to its model: the service point's, unless an implementation supplies the builder.
+        Map<String, String> serviceModels = new HashMap<String, String>();
+        for (ModuleDescriptor moduleDescriptor : moduleDescriptors) {
+            for (ServicePointDescriptor servicePoint : PartitionedRegistry.<ServicePointDescriptor>list(moduleDescriptor.getServicePoints())) {
+                String serviceId = moduleDescriptor.getModuleId() + "." + servicePoint.getId();
+                if (!serviceModels.containsKey(serviceId)) {
+                    serviceModels.put(serviceId, getServiceModel(servicePoint));
+                }
+            }
+        }
+        for (ModuleDescriptor moduleDescriptor : moduleDescriptors) {
+            for (ImplementationDescriptor implementation : PartitionedRegistry.<ImplementationDescriptor>list(moduleDescriptor.getImplementations())) {
+                String serviceId = ModuleDescriptorPruner.toQualifiedId(moduleDescriptor.getModuleId(), implementation.getServiceId());
+                if (implementation.getInstanceBuilder() != null) {
+                    serviceModels.put(serviceId, getServiceModel(implementation));
+                }
+            }
+        }
+        List<String> duplicated = new ArrayList<String>();
+        for (ModuleDescriptor moduleDescriptor : moduleDescriptors) {
+            String moduleId = moduleDescriptor.getModuleId();
+            if (partition.equals(getPartitionForModule(moduleId)) || ModuleDescriptorPruner.HIVEMIND_MODULE_ID.equals(moduleId)) {
+                continue;
+            }
+            for (ServicePointDescriptor servicePoint : PartitionedRegistry.<ServicePointDescriptor>list(moduleDescriptor.getServicePoints())) {
+                String serviceId = moduleId + "." + servicePoint.getId();
+                if (!DUPLICABLE_SERVICE_MODELS.contains(serviceModels.get(serviceId)) && !duplicated.contains(serviceId)) {
+                    duplicated.add(serviceId);
+                }
+            }
+        }
+        if (!duplicated.isEmpty()) {
+            throw new ApplicationRuntimeException("Registry partition '" + partition
+                + "' would construct its own copy of services of other partitions: " + duplicated
+                + "; choose prefixes so that these are not shared, or make them threaded or pooled");
+        }
+    }
+
+    /**
+     * @param service
+     * @return the service model of service's instance builder, "singleton" (hivemind's default) if none is set.
+     */
+    private static String getServiceModel(AbstractServiceDescriptor service) {
+        InstanceBuilder instanceBuilder = service.getInstanceBuilder();
+        String serviceModel = instanceBuilder == null ? null : instanceBuilder.getServiceModel();
+        return serviceModel == null ? "singleton" : serviceModel;
+    }
+
+    /**
+     * hivemind's descriptors use raw (possibly null) lists.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> list(List<?> list) {
+        return list == null ? new ArrayList<T>() : (List<T>) list;
+    }
+
+    /**
+     * @param serviceInterface
+     * @return the ids of the public service points whose interface is assignable to serviceInterface.
+     */
+    private List<String> getServiceIds(Class<?> serviceInterface) {
+        List<String> serviceIds = new ArrayList<String>();
+        for (Map.Entry<String, List<String>> entry : serviceIdsByInterface.entrySet()) {
+            if (serviceInterface == Object.class || serviceInterface.getName().equals(entry.getKey())
+                || serviceInterface.isAssignableFrom(loadInterface(entry.getKey(), serviceInterface))) {
+                serviceIds.addAll(entry.getValue());
+            }
+        }
+        return serviceIds;
+    }
+
+    /**
+     * @param interfaceClassName
+     * @param serviceInterface the interface looked up, its class loader is tried if the context class loader
+     * does not have the class.
+     * @return the interface; Object if it cannot be loaded (the partition declaring it will fail to build).
+     */
+    private Class<?> loadInterface(String interfaceClassName, Class<?> serviceInterface) {
+        ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        if (contextClassLoader != null) {
+            try {
+                return Class.forName(interfaceClassName, false, contextClassLoader);
+            } catch (ClassNotFoundException e) {
+                // try the looked up interface's class loader.
+            }
+        }
+        try {
+            return Class.forName(interfaceClassName, false, serviceInterface.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            return Object.class;
+        }
+    }
+
+    /**
+     * @param id qualified service or configuration point id.
+     * @return the partition of the module owning id.
+     */
+    private String getPartitionForId(String id) {
+        for (int dot = id.lastIndexOf('.'); dot > 0; dot = id.lastIndexOf('.', dot - 1)) {
+            String partition = modulePartitions.get(id.substring(0, dot));
+            if (partition != null) {
+                return partition;
+            }
+        }
+        return DEFAULT_PARTITION;
+    }
+
+    private String getPartitionForModule(String moduleId) {
+        String partition = modulePartitions.get(moduleId);
+        return partition == null ? DEFAULT_PARTITION : partition;
+    }
+
+    private static String getPartitionForModule(String moduleId, Collection<String> prefixes) {
+        String partition = DEFAULT_PARTITION;
+        for (String prefix : prefixes) {
+            if (prefix.length() > partition.length() && moduleId.startsWith(prefix)
+                && (moduleId.length() == prefix.length() || prefix.endsWith(".") || moduleId.charAt(prefix.length()) == '.')) {
+                partition = prefix;
+            }
+        }
+        return partition;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.hivemind.Attribute;
+import org.apache.hivemind.Element;
+import org.apache.hivemind.Location;
+import org.apache.hivemind.internal.Module;
+import org.apache.hivemind.internal.ServiceImplementationConstructor;
+import org.apache.hivemind.internal.ServicePoint;
+import org.apache.hivemind.parse.AbstractServiceDescriptor;
+import org.apache.hivemind.parse.ImplementationDescriptor;
+import org.apache.hivemind.parse.InstanceBuilder;
+import org.apache.hivemind.parse.InvokeFactoryDescriptor;
+import org.apache.hivemind.parse.ModuleDescriptor;
+import org.apache.hivemind.parse.ServicePointDescriptor;
+
+/**
+ * Times the construction of a service, whatever factory (hivemind.BuilderFactory, amplafi.factory.appServicesFactory
+ * ...) or create-instance builds it, as a {@link StartupProfiler#SERVICE} span named by the service id.
+ *
+ * Services are constructed lazily through proxies, so a service is seldom constructed while constructing the
+ * services it uses; the span also carries the ids the factory parameters name (the services injected), which
+ * {@link StartupProfiler} turns into dependency edges.
+ */
+final class ProfiledInstanceBuilder implements InstanceBuilder {
+    private final InstanceBuilder instanceBuilder;
+
+    /**
+     * qualified ids the factory parameters name (only some of which are services).
+     */
+    private final List<String> referencedIds;
+
+    private ProfiledInstanceBuilder(InstanceBuilder instanceBuilder, List<String> referencedIds) {
+        this.instanceBuilder = instanceBuilder;
+        this.referencedIds = referencedIds;
+    }
+
+    /**
+     * Profile the construction of every service moduleDescriptors declare or implement. The descriptors are
+     * changed in place; descriptors already profiled (shared descriptors) are left as they are.
+     * @param moduleDescriptors
+     */
+    static void profile(List<ModuleDescriptor> moduleDescriptors) {
+        for (ModuleDescriptor moduleDescriptor : moduleDescriptors) {
+            String moduleId = moduleDescriptor.getModuleId();
+            for (ServicePointDescriptor servicePoint : ProfiledInstanceBuilder.<ServicePointDescriptor>list(moduleDescriptor.getServicePoints())) {
+                profile(moduleId, servicePoint);
+            }
+            for (ImplementationDescriptor implementation : ProfiledInstanceBuilder.<ImplementationDescriptor>list(moduleDescriptor.getImplementations())) {
+                profile(moduleId, implementation);
+            }
+        }
+    }
+
+    /**
+     * @param instanceBuilder
+     * @return the builder profiled, instanceBuilder if it is not profiled.
+     */
+    static InstanceBuilder unwrap(InstanceBuilder instanceBuilder) {
+        return instanceBuilder instanceof ProfiledInstanceBuilder
+            ? ((ProfiledInstanceBuilder) instanceBuilder).instanceBuilder : instanceBuilder;
+    }
+
+    private static void profile(String moduleId, AbstractServiceDescriptor service) {
+        InstanceBuilder instanceBuilder = service.getInstanceBuilder();
+        if (instanceBuilder == null || instanceBuilder instanceof ProfiledInstanceBuilder) {
+            return;
+        }
+        Set<String> referencedIds = new LinkedHashSet<String>();
+        if (instanceBuilder instanceof InvokeFactoryDescriptor) {
+            addReferencedIds(moduleId, ProfiledInstanceBuilder.<Element>list(((InvokeFactoryDescriptor) instanceBuilder).getParameters()),
+                referencedIds);
+        }
+        service.setInstanceBuilder(new ProfiledInstanceBuilder(instanceBuilder, new ArrayList<String>(referencedIds)));
+    }
+
+    private static void addReferencedIds(String moduleId, List<Element> elements, Set<String> referencedIds) {
+        for (Element element : elements) {
+            for (Attribute attribute : ProfiledInstanceBuilder.<Attribute>list(element.getAttributes())) {
+                addReferencedId(moduleId, attribute.getValue(), referencedIds);
+            }
+            addReferencedId(moduleId, element.getContent(), referencedIds);
+            addReferencedIds(moduleId, ProfiledInstanceBuilder.<Element>list(element.getElements()), referencedIds);
+        }
+    }
+
+    private static void addReferencedId(String moduleId, String value, Set<String> referencedIds) {
+        String id = ModuleDescriptorPruner.toQualifiedId(moduleId, value);
+        if (id != null) {
+            referencedIds.add(id);
+        }
+    }
+
+    public String getServiceModel() {
+        return instanceBuilder.getServiceModel();
+    }
+
+    public ServiceImplementationConstructor createConstructor(ServicePoint point, Module contributingModule) {
+        return new ProfiledConstructor(point.getExtensionPointId(), contributingModule,
+            instanceBuilder.createConstructor(point, contributingModule), referencedIds);
+    }
+
+    public Location getLocation() {
+        return instanceBuilder.getLocation();
+    }
+
+    public void setLocation(Location location) {
+        instanceBuilder.setLocation(location);
+    }
+
+    /**
+     * hivemind's descriptors use raw (possibly null) lists.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> list(List<?> list) {
+        return list == null ? new ArrayList<T>() : (List<T>) list;
+    }
+
+    private static class ProfiledConstructor implements ServiceImplementationConstructor {
+        private final String serviceId;
+        private final Module contributingModule;
+        private final ServiceImplementationConstructor constructor;
+        private final List<String> referencedIds;
+
+        ProfiledConstructor(String serviceId, Module contributingModule, ServiceImplementationConstructor constructor,
+            List<String> referencedIds) {
+            this.serviceId = serviceId;
+            this.contributingModule = contributingModule;
+            this.constructor = constructor;
+            this.referencedIds = referencedIds;
+        }
+
+        public Object constructCoreServiceImplementation() {
+            StartupProfiler.Span span = StartupProfiler.start(StartupProfiler.SERVICE, serviceId);
+            try {
+                if (span != null) {
+                    span.addReferencedServices(referencedIds);
+                }
+                return constructor.constructCoreServiceImplementation();
+            } finally {
+                StartupProfiler.end(span);
+            }
+        }
+
+        public Module getContributingModule() {
+            return contributingModule;
+        }
+
+        public Location getLocation() {
+            return constructor.getLocation();
+        }
+
+        @Override
+        public String toString() {
+            return constructor.toString();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hivemind.Location;
+import org.apache.hivemind.Registry;
+
+/**
+ * The {@link Registry} methods, each called directly, for the {@link java.lang.reflect.InvocationHandler}s that
+ * stand in for a registry ({@link FrozenRegistry}, {@link HivemindRegistryManagement}, {@link LookupOverrideRegistry},
+ * {@link PartitionedRegistry}, {@link ReloadingRegistry}): {@link #get(Method)} tells which method a proxy call is,
+ * {@link #invoke(Registry, Method, Object[])} passes the call on to a registry and
+ * {@link #invokeObjectMethod(Object, Method, Object[], Object)} answers Object's methods for the proxy.
+ */
+enum RegistryMethod {
+    CONTAINS_CONFIGURATION("containsConfiguration", String.class) {
+        @Override
+        Object invoke(Registry registry, Object[] args) {
+            return registry.containsConfiguration((String) args[0]);
+        }
+    },
+    GET_CONFIGURATION("getConfiguration", String.class) {
+        @Override
+        Object invoke(Registry registry, Object[] args) {
+            return registry.getConfiguration((String) args[0]);
+        }
+    },
+    IS_CONFIGURATION_MAPPABLE("isConfigurationMappable", String.class) {
+        @Override
+        Object invoke(Registry registry, Object[] args) {
+            return registry.isConfigurationMappable((String) args[0]);
+        }
+    },
+    GET_CONFIGURATION_AS_MAP("getConfigurationAsMap", String.class) {
+        @Override
+        Object invoke(Registry registry, Object[] args) {
+            return registry.getConfigurationAsMap((String) args[0]);
+        }
+    },
+    EXPAND_SYMBOLS("expandSymbols", String.class, Location.class) {
+        @Override
+        Object invoke(Registry registry, Object[] args) {
+            return registry.expandSymbols((String) args[0], (Location) args[1]);
+        }
+    },
+    CONTAINS_SERVICE("containsService", Class.class) {
+        @Override
+        Object invoke(Registry registry, Object[] args) {
+            return registry.containsService((Class<?>) args[0]);
+        }
+    },
+    CONTAINS_SERVICE_BY_ID("containsService", String.class, Class.class) {
+        @Override
+        Object invoke(Registry registry, Object[] args) {
+            return registry.containsService((String) args[0], (Class<?>) args[1]);
+        }
+    },
+    GET_SERVICE("getService", Class.class) {
+        @Override
+        Object invoke(Registry registry, Object[] args) {
+            return registry.getService((Class<?>) args[0]);
+        }
+    },
+    GET_SERVICE_BY_ID("getService", String.class, Class.class) {
+        @Override
+        Object invoke(Registry registry, Object[] args) {
+            return registry.getService((String) args[0], (Class<?>) args[1]);
+        }
+    },
+    GET_SERVICE_IDS("getServiceIds", Class.class) {
+        @Override
+        Object invoke(Registry registry, Object[] args) {
+            return registry.getServiceIds((Class<?>) args[0]);
+        }
+    },
+    GET_LOCALE("getLocale") {
+        @Override
+        Object invoke(Registry registry, Object[] args) {
+            return registry.getLocale();
+        }
+    },
+    GET_MODULE_MESSAGES("getModuleMessages", String.class) {
+        @Override
+        Object invoke(Registry registry, Object[] args) {
+            return registry.getModuleMessages((String) args[0]);
+        }
+    },
+    CLEANUP_THREAD("cleanupThread") {
+        @Override
+        Object invoke(Registry registry, Object[] args) {
+            registry.cleanupThread();
+            return null;
+        }
+    },
+    SHUTDOWN("shutdown") {
+        @Override
+        Object invoke(Registry registry, Object[] args) {
+            registry.shutdown();
+            return null;
+        }
+    };
+
+    private static final Map<Method, RegistryMethod> METHODS = new HashMap<Method, RegistryMethod>();
+    static {
+        for (RegistryMethod registryMethod : values()) {
+            METHODS.put(registryMethod.method, registryMethod);
+        }
+    }
+
+    private final Method method;
+
+    RegistryMethod(String name, Class<?>... parameterTypes) {
+        try {
+            this.method = Registry.class.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    abstract Object invoke(Registry registry, Object[] args);
+
+    /**
+     * @param method
+     * @return the registry method, null if method is not a {@link Registry} method.
+     */
+    static RegistryMethod get(Method method) {
+        return METHODS.get(method);
+    }
+
+    /**
+     * @param registry
+     * @param method a method of {@link Registry} (called directly) or of Object (called through reflection).
+     * @param args
+     * @return what registry returns.
+     * @throws Throwable what registry throws.
+     */
+    static Object invoke(Registry registry, Method method, Object[] args) throws Throwable {
+        RegistryMethod registryMethod = METHODS.get(method);
+        if (registryMethod != null) {
+            return registryMethod.invoke(registry, args);
+        }
+        try {
+            return method.invoke(registry, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @param method
+     * @return true for Object's methods (equals, hashCode and toString are the ones a proxy passes on).
+     */
+    static boolean isObjectMethod(Method method) {
+        return method.getDeclaringClass() == Object.class;
+    }
+
+    /**
+     * @param proxy
+     * @param method one of Object's methods, see {@link #isObjectMethod(Method)}.
+     * @param args
+     * @param description what toString returns.
+     * @return the proxy's identity for equals and hashCode, description for toString.
+     */
+    static Object invokeObjectMethod(Object proxy, Method method, Object[] args, Object description) {
+        String name = method.getName();
+        if ("equals".equals(name)) {
+            return proxy == args[0];
+        } else if ("hashCode".equals(name)) {
+            return System.identityHashCode(proxy);
+        }
+        return String.valueOf(description);
+    }
+}
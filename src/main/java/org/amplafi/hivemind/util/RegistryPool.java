@@ -0,0 +1,219 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hivemind.Registry;
+
+/**
+ * Pool of shared registries used by {@link HivemindHelper}. By default the pool is unbounded. When bounded
+ * (see {@link #MAX_REGISTRIES_PROPERTY}) and there are more than maxRegistries registries, the least recently
+ * used registries are evicted and shut down on a background thread. The pool does not know who still holds an
+ * evicted registry: only bound it when callers do not keep registries (for example tests that get the
+ * registry for each test method).
+ *
+ * The pool is bounded by count only: a registry's memory cannot be measured cheaply, because descriptors are
+ * parsed on other threads and what was allocated is mostly garbage by the time the registry is built.
+ *
+ * Looking up a registry does not lock; eviction (after a registry is built) does.
+ */
+public class RegistryPool {
+    /**
+     * system property: maximum number of shared registries (default: unbounded).
+     */
+    public static final String MAX_REGISTRIES_PROPERTY = "amplafi.hivemind.maxRegistries";
+
+    private static final Log LOG = LogFactory.getLog(RegistryPool.class);
+
+    private final ConcurrentMap<String, PooledRegistry> registries = new ConcurrentHashMap<String, PooledRegistry>();
+
+    private final int maxRegistries;
+
+    /**
+     * orders uses for least recently used.
+     */
+    private final AtomicLong clock = new AtomicLong();
+
+    private final RegistryShutdownCoordinator shutdownCoordinator = new RegistryShutdownCoordinator();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final ExecutorService shutdownExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "hivemind-registry-shutdown");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public RegistryPool() {
+        this(Integer.getInteger(MAX_REGISTRIES_PROPERTY, Integer.MAX_VALUE));
+    }
+
+    public RegistryPool(int maxRegistries) {
+        this.maxRegistries = maxRegistries;
+    }
+
+    /**
+     * @param registryKey
+     * @param builder builds the registry if it is not in the pool.
+     * @return the task that builds (or has built) the registry. It is up to the caller to run it.
+     */
+    public FutureTask<Registry> getRegistryTask(String registryKey, Callable<Registry> builder) {
+        PooledRegistry pooledRegistry = registries.get(registryKey);
+        if (pooledRegistry == null) {
+            PooledRegistry newRegistry = new PooledRegistry(registryKey, builder);
+            pooledRegistry = registries.putIfAbsent(registryKey, newRegistry);
+            if (pooledRegistry == null) {
+                misses.incrementAndGet();
+                pooledRegistry = newRegistry;
+            } else {
+                hits.incrementAndGet();
+            }
+        } else {
+            hits.incrementAndGet();
+        }
+        pooledRegistry.lastUsed = clock.incrementAndGet();
+        return pooledRegistry.task;
+    }
+
+    /**
+     * forget a registry that failed to build.
+     * @param registryKey
+     * @param registryTask
+     */
+    public void remove(String registryKey, FutureTask<Registry> registryTask) {
+        PooledRegistry pooledRegistry = registries.get(registryKey);
+        if (pooledRegistry != null && pooledRegistry.task == registryTask) {
+            registries.remove(registryKey, pooledRegistry);
+        }
+    }
+
+    /**
+     * Shut down all the registries (in parallel) and wait for them to finish, see {@link RegistryShutdownCoordinator}.
+     */
+    public void clear() {
+        List<Registry> built = new ArrayList<Registry>();
+        for (String registryKey : registries.keySet()) {
+            PooledRegistry pooledRegistry = registries.remove(registryKey);
+            if (pooledRegistry != null) {
+                // a registry still being built (by another thread) is waited for so it too is shut down.
+                try {
+                    built.add(pooledRegistry.task.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    // never built so nothing to shut down.
+                }
+            }
+        }
+        shutdownCoordinator.shutdown(built);
+    }
+
+    /**
+     * evict least recently used (built) registries until the pool is within its bounds.
+     * @param built the registry just built, it is never evicted.
+     */
+    private synchronized void evict(PooledRegistry built) {
+        while (true) {
+            int count = 0;
+            PooledRegistry leastRecentlyUsed = null;
+            for (PooledRegistry pooledRegistry : registries.values()) {
+                count++;
+                if (pooledRegistry.task.isDone()) {
+                    if (pooledRegistry != built
+                        && (leastRecentlyUsed == null || pooledRegistry.lastUsed < leastRecentlyUsed.lastUsed)) {
+                        leastRecentlyUsed = pooledRegistry;
+                    }
+                }
+            }
+            if (leastRecentlyUsed == null || count <= maxRegistries) {
+                return;
+            }
+            if (registries.remove(leastRecentlyUsed.registryKey, leastRecentlyUsed)) {
+                evictions.incrementAndGet();
+                final PooledRegistry evicted = leastRecentlyUsed;
+                LOG.debug("Evicting registry " + evicted.registryKey);
+                shutdownExecutor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            evicted.task.get().shutdown();
+                        } catch (Exception e) {
+                            LOG.debug("Ignoring failure to shut down registry " + evicted.registryKey, e);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public int getSize() {
+        return registries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "RegistryPool[size=" + getSize() + "; hits=" + getHits() + "; misses=" + getMisses()
+            + "; evictions=" + getEvictions() + "]";
+    }
+
+    private class PooledRegistry {
+        private final String registryKey;
+        private final FutureTask<Registry> task;
+        private volatile long lastUsed;
+
+        PooledRegistry(String registryKey, Callable<Registry> builder) {
+            this.registryKey = registryKey;
+            this.task = new FutureTask<Registry>(builder) {
+                @Override
+                protected void done() {
+                    if (!isCancelled()) {
+                        lastUsed = clock.incrementAndGet();
+                        evict(PooledRegistry.this);
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hivemind.Registry;
+
+/**
+ * Shuts registries down in parallel, each on its own daemon thread, and waits at most timeoutMillis for all of
+ * them. Registries whose shutdown takes longer than slowMillis are reported; for those still shutting down
+ * when the time is up, the stack of the shutdown thread is logged to show which shutdown listener is stuck,
+ * and the thread is abandoned.
+ *
+ * Used by {@link RegistryPool#clear()} and by {@link ReloadingRegistry} for the registries they own. The registry
+ * of a web application (see {@link HivemindRegistryManagement}) is owned and shut down by the servlet that built
+ * it (Tapestry's ApplicationServlet.destroy()), so a redeploy still shuts it down serially on the container's thread.
+ */
+public class RegistryShutdownCoordinator {
+    /**
+     * system property: milliseconds to wait for registries to shut down.
+     */
+    public static final String TIMEOUT_PROPERTY = "amplafi.hivemind.shutdownTimeout";
+
+    private static final Log LOG = LogFactory.getLog(RegistryShutdownCoordinator.class);
+
+    private final long timeoutMillis;
+
+    private final long slowMillis;
+
+    public RegistryShutdownCoordinator() {
+        this(Long.getLong(TIMEOUT_PROPERTY, 10000L), 1000L);
+    }
+
+    /**
+     * @param timeoutMillis how long to wait for all the registries.
+     * @param slowMillis registries taking longer than this to shut down are reported.
+     */
+    public RegistryShutdownCoordinator(long timeoutMillis, long slowMillis) {
+        this.timeoutMillis = timeoutMillis;
+        this.slowMillis = slowMillis;
+    }
+
+    /**
+     * @param registries
+     * @return the registries that did not finish shutting down in time.
+     */
+    public List<Registry> shutdown(Collection<Registry> registries) {
+        List<ShutdownThread> threads = new ArrayList<ShutdownThread>();
+        for (Registry registry : registries) {
+            ShutdownThread thread = new ShutdownThread(registry, threads.size());
+            thread.start();
+            threads.add(thread);
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        List<Registry> unfinished = new ArrayList<Registry>();
+        for (ShutdownThread thread : threads) {
+            try {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining > 0) {
+                    thread.join(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (thread.isAlive()) {
+                unfinished.add(thread.registry);
+                Exception stuck = new Exception("shutdown thread stack");
+                stuck.setStackTrace(thread.getStackTrace());
+                LOG.warn(thread.registry + " did not shut down within " + timeoutMillis + "ms; abandoning it", stuck);
+            } else if (thread.elapsedMillis > slowMillis) {
+                LOG.info(thread.registry + " took " + thread.elapsedMillis + "ms to shut down");
+            }
+        }
+        return unfinished;
+    }
+
+    private static class ShutdownThread extends Thread {
+        private final Registry registry;
+        private volatile long elapsedMillis;
+
+        ShutdownThread(Registry registry, int index) {
+            super("hivemind-registry-shutdown-" + index);
+            this.registry = registry;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                registry.shutdown();
+            } catch (RuntimeException e) {
+                LOG.warn("Failure shutting down " + registry, e);
+            } finally {
+                elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            }
+        }
+    }
+}
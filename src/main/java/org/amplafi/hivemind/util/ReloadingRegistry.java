@@ -0,0 +1,317 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hivemind.ApplicationRuntimeException;
+import org.apache.hivemind.Registry;
+
+/**
+ * A {@link Registry} that is rebuilt when one of its descriptor files changes (development and soak tests).
+ * The descriptor files (file: urls only, descriptors inside jars are not watched) are watched with a
+ * {@link WatchService}; on a change the changed descriptors are dropped from {@link SharedModuleDescriptors}
+ * and a new registry is built in the background. When the source shares descriptors (as
+ * {@link HivemindHelper#buildReloadingRegistry(String, boolean, String...)} does), unchanged descriptors are not
+ * parsed again, so the rebuild costs little more than constructing the registry's services.
+ *
+ * Once the new registry is built, it replaces the old one behind this proxy and the old one is shut down as soon
+ * as the calls in progress on it (through this proxy) have returned. If the rebuild fails the old registry stays
+ * in use. Services already obtained from the old registry are not replaced: callers that hold on to services
+ * must look them up again.
+ */
+public class ReloadingRegistry implements InvocationHandler {
+    /**
+     * Builds the registry.
+     */
+    public interface Source {
+        /**
+         * @param descriptorURLs filled with the urls of the descriptors the registry was built from.
+         * @return the registry.
+         * @throws Exception
+         */
+        Registry build(Collection<URL> descriptorURLs) throws Exception;
+    }
+
+    private static final Log LOG = LogFactory.getLog(ReloadingRegistry.class);
+
+    /**
+     * how long to wait for more changes before reloading (editors often write a file in several steps).
+     */
+    private static final long QUIET_MILLIS = 200L;
+
+    private final Source source;
+
+    private volatile Generation current;
+
+    private final WatchService watchService;
+
+    /**
+     * watched file to its url.
+     */
+    private final Map<Path, URL> watchedFiles = new ConcurrentHashMap<Path, URL>();
+
+    private final Set<Path> watchedDirectories = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+    private volatile int reloadCount;
+
+    private volatile boolean shutdown;
+
+    private ReloadingRegistry(Source source) throws IOException {
+        this.source = source;
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * @param source
+     * @return a registry that reloads itself when its descriptor files change.
+     * @throws Exception if the first build fails.
+     */
+    public static Registry create(Source source) throws Exception {
+        final ReloadingRegistry reloadingRegistry = new ReloadingRegistry(source);
+        List<URL> descriptorURLs = new ArrayList<URL>();
+        reloadingRegistry.current = new Generation(source.build(descriptorURLs));
+        reloadingRegistry.watch(descriptorURLs);
+        Thread watcher = new Thread("hivemind-registry-reload") {
+            @Override
+            public void run() {
+                reloadingRegistry.watchForChanges();
+            }
+        };
+        watcher.setDaemon(true);
+        // hivemind's class resolver uses the context class loader of the building thread.
+        watcher.setContextClassLoader(Thread.currentThread().getContextClassLoader());
+        watcher.start();
+        return (Registry) Proxy.newProxyInstance(Registry.class.getClassLoader(),
+            new Class[] { Registry.class }, reloadingRegistry);
+    }
+
+    /**
+     * @param registry
+     * @return the {@link ReloadingRegistry} behind registry or null if registry does not reload.
+     */
+    public static ReloadingRegistry getReloadingRegistry(Registry registry) {
+        if (registry != null && Proxy.isProxyClass(registry.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(registry);
+            if (handler instanceof ReloadingRegistry) {
+                return (ReloadingRegistry) handler;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Rebuild now, on this thread.
+     * @param changed the descriptors that changed (they are parsed again).
+     * @return true if the registry was rebuilt, false if the rebuild failed (the current registry is kept).
+     */
+    public synchronized boolean reload(Collection<URL> changed) {
+        if (shutdown) {
+            return false;
+        }
+        for (URL url : changed) {
+            SharedModuleDescriptors.remove(url);
+        }
+        List<URL> descriptorURLs = new ArrayList<URL>();
+        Registry reloaded;
+        try {
+            reloaded = source.build(descriptorURLs);
+        } catch (Exception e) {
+            LOG.warn("Unable to reload registry after changes to " + changed + "; keeping the current registry", e);
+            return false;
+        }
+        Generation old = current;
+        current = new Generation(reloaded);
+        // new descriptors may have been included.
+        watch(descriptorURLs);
+        LOG.info("Reloaded registry after changes to " + changed);
+        old.retire();
+        // counted once the reload is complete (the old registry is shut down unless calls are in progress on it).
+        reloadCount++;
+        return true;
+    }
+
+    /**
+     * @return the registry currently in use.
+     */
+    public Registry getRegistry() {
+        return current.registry;
+    }
+
+    /**
+     * @return how many times the registry has been rebuilt.
+     */
+    public int getReloadCount() {
+        return reloadCount;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (RegistryMethod.isObjectMethod(method)) {
+            return RegistryMethod.invokeObjectMethod(proxy, method, args, "reloading " + current.registry);
+        }
+        if ("shutdown".equals(method.getName())) {
+            shutdown();
+            return null;
+        }
+        Generation generation;
+        do {
+            generation = current;
+        } while (!generation.enter());
+        try {
+            return RegistryMethod.invoke(generation.registry, method, args);
+        } finally {
+            generation.exit();
+        }
+    }
+
+    private synchronized void shutdown() {
+        if (shutdown) {
+            throw new ApplicationRuntimeException("Registry has been shutdown.");
+        }
+        shutdown = true;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            LOG.debug("Closing watch service", e);
+        }
+        current.registry.shutdown();
+    }
+
+    private void watch(Collection<URL> descriptorURLs) {
+        for (URL url : descriptorURLs) {
+            if (!"file".equals(url.getProtocol())) {
+                continue;
+            }
+            Path file;
+            try {
+                file = new File(url.toURI()).toPath().toAbsolutePath();
+            } catch (URISyntaxException e) {
+                continue;
+            }
+            watchedFiles.put(file, url);
+            Path directory = file.getParent();
+            if (directory != null && watchedDirectories.add(directory)) {
+                try {
+                    directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                } catch (IOException e) {
+                    watchedDirectories.remove(directory);
+                    LOG.warn("Unable to watch " + directory + " for descriptor changes", e);
+                } catch (ClosedWatchServiceException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void watchForChanges() {
+        try {
+            while (!shutdown) {
+                Set<URL> changed = new LinkedHashSet<URL>();
+                WatchKey key = watchService.take();
+                // collect everything that changes until things are quiet.
+                while (key != null) {
+                    collectChanges(key, changed);
+                    key = watchService.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                if (!changed.isEmpty()) {
+                    reload(changed);
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // shutdown
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void collectChanges(WatchKey key, Set<URL> changed) {
+        Path directory = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.context() instanceof Path) {
+                URL url = watchedFiles.get(directory.resolve((Path) event.context()));
+                if (url != null) {
+                    changed.add(url);
+                }
+            }
+        }
+        key.reset();
+    }
+
+    /**
+     * A registry and the number of its users: the calls in progress plus one while it is the current registry.
+     * Whoever takes the count to 0 shuts the registry down; once it is 0 no more calls can start.
+     */
+    private static class Generation {
+        private final Registry registry;
+
+        private final AtomicInteger users = new AtomicInteger(1);
+
+        Generation(Registry registry) {
+            this.registry = registry;
+        }
+
+        /**
+         * @return false if the registry has been (or is being) shut down.
+         */
+        boolean enter() {
+            while (true) {
+                int count = users.get();
+                if (count == 0) {
+                    return false;
+                } else if (users.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void exit() {
+            if (users.decrementAndGet() == 0) {
+                new RegistryShutdownCoordinator().shutdown(Collections.singletonList(registry));
+            }
+        }
+
+        /**
+         * no longer the current registry.
+         */
+        void retire() {
+            exit();
+        }
+    }
+}
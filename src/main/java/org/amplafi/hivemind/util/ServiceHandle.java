@@ -0,0 +1,60 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+/**
+ * A service resolved (id qualified, visibility and type checked) once by {@link ServiceHandles}; the service is
+ * then fetched with {@link ServiceHandles#get(ServiceHandle)}, an array read.
+ *
+ * @param <T> the service interface.
+ */
+public final class ServiceHandle<T> {
+    /**
+     * a handle to no service, for caching failed resolutions; {@link ServiceHandles#get(ServiceHandle)} returns
+     * null for it.
+     */
+    public static final ServiceHandle<Object> NONE = new ServiceHandle<Object>(-1, null, Object.class);
+
+    private final int index;
+
+    private final String serviceId;
+
+    private final Class<T> serviceInterface;
+
+    ServiceHandle(int index, String serviceId, Class<T> serviceInterface) {
+        this.index = index;
+        this.serviceId = serviceId;
+        this.serviceInterface = serviceInterface;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the service id as resolved or null if resolved by interface.
+     */
+    public String getServiceId() {
+        return serviceId;
+    }
+
+    public Class<T> getServiceInterface() {
+        return serviceInterface;
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceHandle[" + index + ": " + (serviceId == null ? serviceInterface.getName() : serviceId) + "]";
+    }
+}
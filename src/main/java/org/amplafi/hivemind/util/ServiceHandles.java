@@ -0,0 +1,153 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.hivemind.ApplicationRuntimeException;
+import org.apache.hivemind.internal.Module;
+
+/**
+ * Resolves service ids (as seen from one {@link Module}) into {@link ServiceHandle}s. Resolving goes through
+ * the module once: the id is qualified, visibility and the service interface are checked and the service (proxy)
+ * is stored in a table. Fetching a service with its handle is a read of that table, with no locking.
+ *
+ * Each id (or interface) is resolved once, by the first thread asking for it; threads asking for it meanwhile wait
+ * for that resolution. Resolution failures are thrown (as by {@link Module#getService(String, Class)}) to the
+ * threads waiting for it and not remembered.
+ */
+public class ServiceHandles {
+    private final Module module;
+
+    private final ConcurrentMap<Class<?>, ConcurrentMap<String, FutureTask<ServiceHandle<?>>>> handlesById =
+        new ConcurrentHashMap<Class<?>, ConcurrentMap<String, FutureTask<ServiceHandle<?>>>>();
+
+    private final ConcurrentMap<Class<?>, FutureTask<ServiceHandle<?>>> handlesByInterface =
+        new ConcurrentHashMap<Class<?>, FutureTask<ServiceHandle<?>>>();
+
+    /**
+     * grown by copying; an entry is written before the volatile write that publishes it.
+     */
+    private volatile Object[] services = new Object[16];
+
+    private int count;
+
+    public ServiceHandles(Module module) {
+        this.module = module;
+    }
+
+    /**
+     * @param <T>
+     * @param serviceId id of the service, qualified by the module if not qualified.
+     * @param serviceInterface
+     * @return the handle.
+     * @throws org.apache.hivemind.ApplicationRuntimeException if the service does not exist, is not visible
+     * or does not implement serviceInterface.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> ServiceHandle<T> resolve(final String serviceId, final Class<T> serviceInterface) {
+        ConcurrentMap<String, FutureTask<ServiceHandle<?>>> handles = handlesById.get(serviceInterface);
+        if (handles == null) {
+            handlesById.putIfAbsent(serviceInterface, new ConcurrentHashMap<String, FutureTask<ServiceHandle<?>>>());
+            handles = handlesById.get(serviceInterface);
+        }
+        return (ServiceHandle<T>) resolve(handles, serviceId, new Callable<ServiceHandle<?>>() {
+            public ServiceHandle<?> call() {
+                return add(serviceId, serviceInterface, module.getService(serviceId, serviceInterface));
+            }
+        });
+    }
+
+    /**
+     * @param <T>
+     * @param serviceInterface
+     * @return the handle to the single service implementing serviceInterface.
+     * @throws org.apache.hivemind.ApplicationRuntimeException if there is not exactly one visible service
+     * implementing serviceInterface.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> ServiceHandle<T> resolve(final Class<T> serviceInterface) {
+        return (ServiceHandle<T>) resolve(handlesByInterface, serviceInterface, new Callable<ServiceHandle<?>>() {
+            public ServiceHandle<?> call() {
+                return add(null, serviceInterface, module.getService(serviceInterface));
+            }
+        });
+    }
+
+    /**
+     * @param <K>
+     * @param handles
+     * @param key
+     * @param resolution run by the thread whose task is put in handles first.
+     * @return the handle resolved for key.
+     */
+    private <K> ServiceHandle<?> resolve(ConcurrentMap<K, FutureTask<ServiceHandle<?>>> handles, K key,
+            Callable<ServiceHandle<?>> resolution) {
+        FutureTask<ServiceHandle<?>> task = handles.get(key);
+        if (task == null) {
+            FutureTask<ServiceHandle<?>> created = new FutureTask<ServiceHandle<?>>(resolution);
+            task = handles.putIfAbsent(key, created);
+            if (task == null) {
+                task = created;
+                task.run();
+            }
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            // so the next caller tries again.
+            handles.remove(key, task);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new ApplicationRuntimeException("Unable to resolve " + key, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ApplicationRuntimeException("Interrupted while resolving " + key, e);
+        }
+    }
+
+    /**
+     * @param <T>
+     * @param handle from this {@link ServiceHandles}.
+     * @return the service; null for {@link ServiceHandle#NONE}.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(ServiceHandle<T> handle) {
+        int index = handle.getIndex();
+        return index < 0 ? null : (T) services[index];
+    }
+
+    public Module getModule() {
+        return module;
+    }
+
+    private synchronized <T> ServiceHandle<T> add(String serviceId, Class<T> serviceInterface, Object service) {
+        Object[] table = services;
+        if (count == table.length) {
+            table = Arrays.copyOf(table, table.length * 2);
+        }
+        table[count] = service;
+        // the volatile write publishes the new entry.
+        services = table;
+        return new ServiceHandle<T>(count++, serviceId, serviceInterface);
+    }
+}
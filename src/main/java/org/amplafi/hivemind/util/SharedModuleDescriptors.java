@@ -0,0 +1,156 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.hivemind.ApplicationRuntimeException;
+import org.apache.hivemind.ClassResolver;
+import org.apache.hivemind.parse.ModuleDescriptor;
+
+/**
+ * JVM-wide memo of parsed {@link ModuleDescriptor}s so that each descriptor url is parsed once no matter how many
+ * registries are built from it. Descriptors are kept per {@link ClassLoader} because a descriptor holds on to the
+ * {@link ClassResolver} it was parsed with.
+ *
+ * The descriptors handed out are shared: callers must treat them as read-only (registry construction only
+ * reads them). Descriptors that had parse errors are not kept, so every registry build reports those errors.
+ * A shared descriptor keeps the {@link ClassResolver} and {@link org.apache.hivemind.ErrorHandler} it was parsed
+ * with, so errors found while building a later registry from it go to the first build's error handler.
+ *
+ * Nothing is ever evicted: the descriptors reference their class loader, so weak keys would not help either.
+ * Sharing is therefore opt-in (see {@link CustomModuleDescriptorProvider#setShareDescriptors(boolean)}); call
+ * {@link #clear()} when class loaders are discarded.
+ */
+public class SharedModuleDescriptors {
+    private static final ConcurrentMap<ClassLoader, ConcurrentMap<String, FutureTask<Parsed>>> DESCRIPTORS =
+        new ConcurrentHashMap<ClassLoader, ConcurrentMap<String, FutureTask<Parsed>>>();
+
+    private SharedModuleDescriptors() {
+    }
+
+    /**
+     * @param resolver
+     * @param url
+     * @param parser parses url.
+     * @return the shared descriptor for url, parsing it on this thread if no other thread has (or is). A descriptor
+     * parsed with errors is returned to the caller that parsed it but not shared.
+     */
+    public static ModuleDescriptor get(ClassResolver resolver, URL url, Callable<Parsed> parser) {
+        ConcurrentMap<String, FutureTask<Parsed>> descriptors = getDescriptors(resolver.getClassLoader());
+        String key = url.toString();
+        FutureTask<Parsed> task = new FutureTask<Parsed>(parser);
+        FutureTask<Parsed> existing = descriptors.putIfAbsent(key, task);
+        try {
+            if (existing == null) {
+                task.run();
+                Parsed parsed;
+                try {
+                    parsed = task.get();
+                } catch (ExecutionException e) {
+                    descriptors.remove(key, task);
+                    throw rethrow(e.getCause());
+                }
+                if (!parsed.isShareable()) {
+                    descriptors.remove(key, task);
+                }
+                return parsed.getModuleDescriptor();
+            } else {
+                Parsed parsed;
+                try {
+                    parsed = existing.get();
+                } catch (ExecutionException e) {
+                    parsed = null;
+                }
+                if (parsed == null || !parsed.isShareable()) {
+                    // the other parse failed: parse again so this caller's error handler sees the errors.
+                    parsed = parser.call();
+                }
+                return parsed.getModuleDescriptor();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ApplicationRuntimeException("Interrupted while waiting for " + url + " to be parsed", e);
+        } catch (Exception e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * Forget the descriptor parsed from url (for example because it has changed).
+     * @param url
+     */
+    public static void remove(URL url) {
+        for (ConcurrentMap<String, FutureTask<Parsed>> descriptors : DESCRIPTORS.values()) {
+            descriptors.remove(url.toString());
+        }
+    }
+
+    /**
+     * Forget all the shared descriptors.
+     */
+    public static void clear() {
+        DESCRIPTORS.clear();
+    }
+
+    private static ConcurrentMap<String, FutureTask<Parsed>> getDescriptors(ClassLoader classLoader) {
+        ConcurrentMap<String, FutureTask<Parsed>> descriptors = DESCRIPTORS.get(classLoader);
+        if (descriptors == null) {
+            DESCRIPTORS.putIfAbsent(classLoader, new ConcurrentHashMap<String, FutureTask<Parsed>>());
+            descriptors = DESCRIPTORS.get(classLoader);
+        }
+        return descriptors;
+    }
+
+    private static RuntimeException rethrow(Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        } else {
+            return new ApplicationRuntimeException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * The result of one parse.
+     */
+    public static final class Parsed {
+        private final ModuleDescriptor moduleDescriptor;
+
+        private final boolean shareable;
+
+        /**
+         * @param moduleDescriptor
+         * @param shareable false if the parse reported errors.
+         */
+        public Parsed(ModuleDescriptor moduleDescriptor, boolean shareable) {
+            this.moduleDescriptor = moduleDescriptor;
+            this.shareable = shareable;
+        }
+
+        public ModuleDescriptor getModuleDescriptor() {
+            return moduleDescriptor;
+        }
+
+        public boolean isShareable() {
+            return shareable;
+        }
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Records how long registry construction, descriptor parsing and service construction take, and which services
+ * depend on which (the dependency edges). Spans nest per thread: a service constructed while another is being
+ * constructed is its dependency. Services are mostly injected as proxies and constructed later, so a service span
+ * also names the services its factory parameters refer to (see {@link ProfiledInstanceBuilder}); those that were
+ * constructed are dependencies too. Work handed to other threads (descriptor parsing) names
+ * its parent span explicitly, see {@link #start(String, String, Span)}; the self time of a span with children
+ * running in parallel is not meaningful.
+ *
+ * Off unless the {@link #PROFILE_PROPERTY} system property is "true" (or {@link #setEnabled(boolean)}); when
+ * off {@link #start(String, String)} returns null and {@link #end(Span)} does nothing.
+ *
+ * The report lists the critical path (the chain of the slowest nested spans), the slowest services by their own
+ * (exclusive) time, and can be written as a DOT or JSON graph. {@link #report()} forgets what it reported, and at
+ * most {@link #MAX_ROOTS} top level spans are kept (the oldest are dropped), so profiling a long running
+ * application does not grow without bound.
+ */
+public class StartupProfiler {
+    public static final String PROFILE_PROPERTY = "amplafi.hivemind.profile";
+
+    /**
+     * system property: directory to write startup-profile.dot and startup-profile.json to.
+     */
+    public static final String PROFILE_OUTPUT_PROPERTY = "amplafi.hivemind.profileOutput";
+
+    public static final String REGISTRY = "registry";
+    public static final String DESCRIPTORS = "descriptors";
+    public static final String SERVICE = "service";
+
+    /**
+     * most top level spans kept.
+     */
+    public static final int MAX_ROOTS = 1000;
+
+    private static final Log LOG = LogFactory.getLog(StartupProfiler.class);
+
+    private static volatile boolean enabled = Boolean.getBoolean(PROFILE_PROPERTY);
+
+    private static final ThreadLocal<Span> CURRENT = new ThreadLocal<Span>();
+
+    private static final Queue<Span> ROOTS = new ConcurrentLinkedQueue<Span>();
+
+    /**
+     * size of ROOTS (which is not constant time for a {@link ConcurrentLinkedQueue}).
+     */
+    private static final AtomicInteger ROOT_COUNT = new AtomicInteger();
+
+    private StartupProfiler() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        StartupProfiler.enabled = enabled;
+    }
+
+    /**
+     * @param category
+     * @param name
+     * @return the started span (pass to {@link #end(Span)} in a finally block) or null if profiling is off.
+     */
+    public static Span start(String category, String name) {
+        return start(category, name, null);
+    }
+
+    /**
+     * @param category
+     * @param name
+     * @param parent the parent span, which may have been started on another thread (see {@link #getCurrent()});
+     * null for the span running on this thread.
+     * @return the started span (pass to {@link #end(Span)} in a finally block) or null if profiling is off.
+     */
+    public static Span start(String category, String name, Span parent) {
+        if (!enabled) {
+            return null;
+        }
+        Span previous = CURRENT.get();
+        if (parent == null) {
+            parent = previous;
+        }
+        Span span = new Span(category, name, previous);
+        if (parent == null) {
+            ROOTS.add(span);
+            if (ROOT_COUNT.incrementAndGet() > MAX_ROOTS) {
+                removeRoot(ROOTS.peek());
+            }
+        } else {
+            parent.children.add(span);
+        }
+        CURRENT.set(span);
+        return span;
+    }
+
+    /**
+     * @param span may be null.
+     */
+    public static void end(Span span) {
+        if (span != null) {
+            span.endNanos = System.nanoTime();
+            if (span.previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(span.previous);
+            }
+        }
+    }
+
+    /**
+     * @return the span running on this thread, null if none (or profiling is off).
+     */
+    public static Span getCurrent() {
+        return CURRENT.get();
+    }
+
+    /**
+     * forget everything recorded so far.
+     */
+    public static void reset() {
+        for (Span root : ROOTS) {
+            removeRoot(root);
+        }
+    }
+
+    /**
+     * @param topN number of slowest services to list.
+     * @return human readable report.
+     */
+    public static String getReport(int topN) {
+        StringBuilder report = new StringBuilder("Startup profile\nCritical path:\n");
+        for (Span span : getCriticalPath()) {
+            report.append("  ").append(span.getKey()).append(' ').append(millis(span.getInclusiveNanos()))
+                .append("ms (self ").append(millis(span.getSelfNanos())).append("ms)\n");
+        }
+        List<Node> nodes = new ArrayList<Node>(getNodes().values());
+        Collections.sort(nodes, new Comparator<Node>() {
+            public int compare(Node left, Node right) {
+                return left.selfNanos > right.selfNanos ? -1 : left.selfNanos == right.selfNanos ? 0 : 1;
+            }
+        });
+        report.append("Slowest services (self time):\n");
+        int listed = 0;
+        for (Node node : nodes) {
+            if (SERVICE.equals(node.category) && listed++ < topN) {
+                report.append("  ").append(node.name).append(' ').append(millis(node.selfNanos)).append("ms (total ")
+                    .append(millis(node.inclusiveNanos)).append("ms, ").append(node.count).append("x)\n");
+            }
+        }
+        return report.toString();
+    }
+
+    /**
+     * @return starting with the slowest root span, the slowest child of each span.
+     */
+    public static List<Span> getCriticalPath() {
+        List<Span> path = new ArrayList<Span>();
+        Span slowest = slowest(ROOTS);
+        while (slowest != null) {
+            path.add(slowest);
+            slowest = slowest(slowest.children);
+        }
+        return path;
+    }
+
+    public static void writeDot(Writer writer) throws IOException {
+        Map<String, Node> nodes = getNodes();
+        writer.write("digraph startup {\n  node [shape=box];\n");
+        for (Node node : nodes.values()) {
+            writer.write("  \"" + escape(node.getKey()) + "\" [label=\"" + escape(node.name) + "\\n"
+                + millis(node.selfNanos) + "ms / " + millis(node.inclusiveNanos) + "ms\"];\n");
+        }
+        for (Node node : nodes.values()) {
+            for (String dependency : node.dependencies) {
+                writer.write("  \"" + escape(node.getKey()) + "\" -> \"" + escape(dependency) + "\";\n");
+            }
+        }
+        writer.write("}\n");
+        writer.flush();
+    }
+
+    public static void writeJson(Writer writer) throws IOException {
+        Map<String, Node> nodes = getNodes();
+        writer.write("{\"nodes\":[");
+        String separator = "";
+        for (Node node : nodes.values()) {
+            writer.write(separator + "{\"id\":\"" + escape(node.getKey()) + "\",\"category\":\"" + escape(node.category)
+                + "\",\"name\":\"" + escape(node.name) + "\",\"count\":" + node.count
+                + ",\"selfMillis\":" + millis(node.selfNanos) + ",\"inclusiveMillis\":" + millis(node.inclusiveNanos) + "}");
+            separator = ",";
+        }
+        writer.write("],\"edges\":[");
+        separator = "";
+        for (Node node : nodes.values()) {
+            for (String dependency : node.dependencies) {
+                writer.write(separator + "{\"from\":\"" + escape(node.getKey()) + "\",\"to\":\"" + escape(dependency) + "\"}");
+                separator = ",";
+            }
+        }
+        writer.write("],\"criticalPath\":[");
+        separator = "";
+        for (Span span : getCriticalPath()) {
+            writer.write(separator + "\"" + escape(span.getKey()) + "\"");
+            separator = ",";
+        }
+        writer.write("]}\n");
+        writer.flush();
+    }
+
+    /**
+     * If profiling is on, log the report and write the graphs to the {@link #PROFILE_OUTPUT_PROPERTY} directory.
+     * The finished spans reported are then forgotten, spans still running are kept for the next report.
+     */
+    public static void report() {
+        if (!enabled) {
+            return;
+        }
+        List<Span> reported = new ArrayList<Span>();
+        for (Span root : ROOTS) {
+            if (root.endNanos != 0) {
+                reported.add(root);
+            }
+        }
+        LOG.info(getReport(20));
+        String outputDirectory = System.getProperty(PROFILE_OUTPUT_PROPERTY);
+        if (outputDirectory != null) {
+            File directory = new File(outputDirectory);
+            directory.mkdirs();
+            try {
+                Writer writer = new OutputStreamWriter(new FileOutputStream(new File(directory, "startup-profile.dot")), "UTF-8");
+                try {
+                    writeDot(writer);
+                } finally {
+                    writer.close();
+                }
+                writer = new OutputStreamWriter(new FileOutputStream(new File(directory, "startup-profile.json")), "UTF-8");
+                try {
+                    writeJson(writer);
+                } finally {
+                    writer.close();
+                }
+            } catch (IOException e) {
+                LOG.warn("Unable to write startup profile to " + directory, e);
+            }
+        }
+        for (Span root : reported) {
+            removeRoot(root);
+        }
+    }
+
+    private static void removeRoot(Span root) {
+        if (root != null && ROOTS.remove(root)) {
+            ROOT_COUNT.decrementAndGet();
+        }
+    }
+
+    /**
+     * spans merged by category and name.
+     */
+    private static Map<String, Node> getNodes() {
+        Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+        for (Span root : ROOTS) {
+            addNodes(root, nodes);
+        }
+        for (Node node : nodes.values()) {
+            for (String serviceId : node.referencedServices) {
+                String key = SERVICE + ":" + serviceId;
+                // only the services constructed, the others (and values that only look like ids) are not nodes.
+                if (nodes.containsKey(key) && !key.equals(node.getKey())) {
+                    node.dependencies.add(key);
+                }
+            }
+        }
+        return nodes;
+    }
+
+    private static void addNodes(Span span, Map<String, Node> nodes) {
+        if (span.endNanos == 0) {
+            // still running
+            return;
+        }
+        Node node = nodes.get(span.getKey());
+        if (node == null) {
+            node = new Node(span.category, span.name);
+            nodes.put(node.getKey(), node);
+        }
+        node.count++;
+        node.inclusiveNanos += span.getInclusiveNanos();
+        node.selfNanos += span.getSelfNanos();
+        node.referencedServices.addAll(span.referencedServices);
+        for (Span child : span.children) {
+            node.dependencies.add(child.getKey());
+            addNodes(child, nodes);
+        }
+    }
+
+    private static Span slowest(Iterable<Span> spans) {
+        Span slowest = null;
+        for (Span span : spans) {
+            if (span.endNanos != 0 && (slowest == null || span.getInclusiveNanos() > slowest.getInclusiveNanos())) {
+                slowest = span;
+            }
+        }
+        return slowest;
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1000000L;
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /**
+     * One timed piece of work.
+     */
+    public static class Span {
+        private final String category;
+        private final String name;
+        /**
+         * the span running on this thread when this span started.
+         */
+        private final Span previous;
+        private final List<Span> children = new CopyOnWriteArrayList<Span>();
+        /**
+         * qualified ids of the services this span's service is injected with.
+         */
+        private final List<String> referencedServices = new CopyOnWriteArrayList<String>();
+        private final long startNanos = System.nanoTime();
+        private volatile long endNanos;
+
+        Span(String category, String name, Span previous) {
+            this.category = category;
+            this.name = name;
+            this.previous = previous;
+        }
+
+        public String getKey() {
+            return category + ":" + name;
+        }
+
+        void addReferencedServices(Collection<String> serviceIds) {
+            referencedServices.addAll(serviceIds);
+        }
+
+        public long getInclusiveNanos() {
+            return endNanos - startNanos;
+        }
+
+        public long getSelfNanos() {
+            long self = getInclusiveNanos();
+            for (Span child : children) {
+                if (child.endNanos != 0) {
+                    self -= child.getInclusiveNanos();
+                }
+            }
+            // children running in parallel can add up to more than this span.
+            return Math.max(self, 0);
+        }
+
+        @Override
+        public String toString() {
+            return getKey();
+        }
+    }
+
+    private static class Node {
+        private final String category;
+        private final String name;
+        private final Set<String> dependencies = new LinkedHashSet<String>();
+        private final Set<String> referencedServices = new LinkedHashSet<String>();
+        private int count;
+        private long inclusiveNanos;
+        private long selfNanos;
+
+        Node(String category, String name) {
+            this.category = category;
+            this.name = name;
+        }
+
+        String getKey() {
+            return category + ":" + name;
+        }
+    }
+}
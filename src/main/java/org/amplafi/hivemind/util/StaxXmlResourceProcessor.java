@@ -0,0 +1,143 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+import java.io.InputStream;
+import java.net.URL;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.hivemind.ApplicationRuntimeException;
+import org.apache.hivemind.ClassResolver;
+import org.apache.hivemind.ErrorHandler;
+import org.apache.hivemind.Resource;
+import org.apache.hivemind.parse.DescriptorParser;
+import org.apache.hivemind.parse.ModuleDescriptor;
+import org.apache.hivemind.parse.XmlResourceProcessor;
+import org.xml.sax.Locator;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * {@link XmlResourceProcessor} that reads descriptors with a StAX {@link XMLStreamReader} and pushes the events
+ * straight into HiveMind's {@link DescriptorParser}. Compared to going through a SAX parser: no SAX parser
+ * per processor, character data is handed over from the reader's own buffer rather than copied into strings,
+ * coalesced text means fewer events, and one attribute list is reused for every element.
+ *
+ * Like {@link XmlResourceProcessor}, an instance must only be used by one thread at a time.
+ */
+public class StaxXmlResourceProcessor extends XmlResourceProcessor {
+    /**
+     * one per processor: {@link XMLInputFactory} implementations are not required to be thread safe.
+     */
+    private XMLInputFactory inputFactory;
+
+    private DescriptorParser contentHandler;
+
+    private final AttributesImpl attributes = new AttributesImpl();
+
+    public StaxXmlResourceProcessor(ClassResolver resolver, ErrorHandler errorHandler) {
+        super(resolver, errorHandler);
+    }
+
+    @Override
+    public ModuleDescriptor processResource(Resource resource) {
+        URL url = resource.getResourceURL();
+        if (url == null) {
+            throw new ApplicationRuntimeException("Unable to locate " + resource + ".", resource, null, null);
+        }
+        if (contentHandler == null) {
+            contentHandler = new DescriptorParser(_errorHandler);
+            inputFactory = XMLInputFactory.newInstance();
+            // match the (non-namespace aware) SAX parser hivemind uses.
+            inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+            inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+            inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        }
+        try {
+            contentHandler.initialize(resource, _resolver);
+            InputStream stream = url.openStream();
+            try {
+                XMLStreamReader reader = inputFactory.createXMLStreamReader(url.toString(), stream);
+                try {
+                    parse(reader);
+                } finally {
+                    reader.close();
+                }
+            } finally {
+                stream.close();
+            }
+            return contentHandler.getModuleDescriptor();
+        } catch (ApplicationRuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ApplicationRuntimeException("Unable to read " + resource + ": " + e.getMessage(), resource, null, e);
+        } finally {
+            contentHandler.resetParser();
+            attributes.clear();
+        }
+    }
+
+    private void parse(final XMLStreamReader reader) throws Exception {
+        contentHandler.setDocumentLocator(new Locator() {
+            public String getPublicId() {
+                return reader.getLocation().getPublicId();
+            }
+            public String getSystemId() {
+                return reader.getLocation().getSystemId();
+            }
+            public int getLineNumber() {
+                return reader.getLocation().getLineNumber();
+            }
+            public int getColumnNumber() {
+                return reader.getLocation().getColumnNumber();
+            }
+        });
+        contentHandler.startDocument();
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                String qName = getQName(reader);
+                attributes.clear();
+                for (int i = 0; i < reader.getAttributeCount(); i++) {
+                    String prefix = reader.getAttributePrefix(i);
+                    String attributeName = prefix == null || prefix.length() == 0
+                        ? reader.getAttributeLocalName(i) : prefix + ":" + reader.getAttributeLocalName(i);
+                    attributes.addAttribute("", attributeName, attributeName, "CDATA", reader.getAttributeValue(i));
+                }
+                contentHandler.startElement("", qName, qName, attributes);
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                qName = getQName(reader);
+                contentHandler.endElement("", qName, qName);
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.SPACE:
+                contentHandler.characters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                break;
+            default:
+                // comments, processing instructions and the like are of no interest to the descriptor.
+                break;
+            }
+        }
+        contentHandler.endDocument();
+    }
+
+    private String getQName(XMLStreamReader reader) {
+        String prefix = reader.getPrefix();
+        return prefix == null || prefix.length() == 0 ? reader.getLocalName() : prefix + ":" + reader.getLocalName();
+    }
+}
@@ -17,6 +17,8 @@ package org.amplafi.hivemind.factory.mock;
 import java.lang.reflect.Proxy;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.amplafi.hivemind.factory.mock.MockBuilderFactory;
 import org.amplafi.hivemind.factory.mock.MockBuilderFactoryImpl;
@@ -122,6 +124,203 @@ public class TestMockBuilderFactory {
         assertSame(switcher.getRealService(), realCreatedService);
         assertNotSame(switcher.getUnderlyingService(), realCreatedService);
     }
+
+    /**
+     * with lazy real services the real service is only constructed when first used or when
+     * {@link MockBuilderFactoryImpl#createDeferredServices()} is called.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testLazyRealServices() {
+        Log log = LogFactory.getLog(this.getClass());
+        MockBuilderFactoryImpl factory = new MockBuilderFactoryImpl(false);
+        factory.setLog(log);
+        factory.setLazyRealServices(true);
+        Module invokingModule = getModule(ServiceImplementationFactory.class);
+        expect(invokingModule.getServicePoint(isA(String.class))).andStubReturn(createMock(ServicePoint.class));
+        replay(invokingModule);
+
+        final AtomicInteger constructed = new AtomicInteger();
+        final SomeService realCreatedService = createMock(SomeService.class);
+        ServiceImplementationFactory rootService = createMock(ServiceImplementationFactory.class);
+        expect(rootService.createCoreServiceImplementation(isA(ServiceImplementationFactoryParameters.class))).
+            andAnswer(new IAnswer<Object>() {
+                public Object answer() throws Throwable {
+                    constructed.incrementAndGet();
+                    return realCreatedService;
+                }
+            }).anyTimes();
+        replay(rootService, realCreatedService);
+        InterceptorStack stack = new InterceptorStackImpl(log, getServicePoint(), rootService);
+        factory.createInterceptor(stack, invokingModule, createMock(List.class));
+        ServiceImplementationFactory intercepted = (ServiceImplementationFactory) stack.peek();
+
+        MockSwitcher firstUse = (MockSwitcher) Proxy.getInvocationHandler(
+            intercepted.createCoreServiceImplementation(getFactoryParameters(invokingModule, "firstUse")));
+        MockSwitcher deferred = (MockSwitcher) Proxy.getInvocationHandler(
+            intercepted.createCoreServiceImplementation(getFactoryParameters(invokingModule, "deferred")));
+        assertEquals(constructed.get(), 0, "real services constructed before being needed");
+
+        assertSame(firstUse.getUnderlyingService(), realCreatedService);
+        assertEquals(constructed.get(), 1);
+
+        factory.createDeferredServices();
+        assertEquals(constructed.get(), 2, "only the service not used yet should have been constructed");
+        assertSame(deferred.getRealService(), realCreatedService);
+        factory.createDeferredServices();
+        assertEquals(constructed.get(), 2);
+    }
+
+    @SuppressWarnings("unchecked")
+    private ServiceImplementationFactoryParameters getFactoryParameters(Module invokingModule, String serviceId) {
+        List factoryParametersList = new ArrayList();
+        factoryParametersList.add(createMock(List.class));
+        ServiceImplementationFactoryParameters factoryParameters = createMock(ServiceImplementationFactoryParameters.class);
+        expect(factoryParameters.getInvokingModule()).andReturn(invokingModule).anyTimes();
+        expect(factoryParameters.getFirstParameter()).andReturn(factoryParametersList.get(0)).anyTimes();
+        expect(factoryParameters.getParameters()).andReturn(factoryParametersList).anyTimes();
+        expect(factoryParameters.getServiceInterface()).andReturn(SomeService.class).anyTimes();
+        // only asked for once.
+        expect(factoryParameters.getServiceId()).andReturn(serviceId);
+        replay(factoryParameters);
+        return factoryParameters;
+    }
+
+    /**
+     * a mock only handed out while a service was constructed ( and not touched since the last reset ) must still
+     * be replayed by {@link MockBuilderFactoryImpl#replay()}.
+     */
+    @Test
+    public void testReplayMocksHandedOutBeforeReset() {
+        MockBuilderFactoryImpl factory = new MockBuilderFactoryImpl(false);
+        factory.setLog(LogFactory.getLog(this.getClass()));
+        // as ModuleInterceptor does when the service being constructed needs a Runnable.
+        Runnable injected = factory.getInjectedMock(Runnable.class);
+        factory.reset();
+        factory.replay();
+        boolean replayed;
+        try {
+            injected.run();
+            replayed = false;
+        } catch(AssertionError e) {
+            // unexpected call: so the mock is in the replay state.
+            replayed = true;
+        }
+        assertTrue(replayed, "mock injected at construction was not replayed");
+        factory.reset();
+        // reset back to recording.
+        injected.run();
+    }
+
+    /**
+     * mocks the test has already replayed itself are left alone by {@link MockBuilderFactoryImpl#replay()}
+     * and still verified by {@link MockBuilderFactoryImpl#verify()}.
+     */
+    @Test
+    public void testReplayMocksAlreadyReplayed() {
+        MockBuilderFactoryImpl factory = new MockBuilderFactoryImpl(false);
+        factory.setLog(LogFactory.getLog(this.getClass()));
+        Runnable mock = factory.getImplementation(Runnable.class);
+        mock.run();
+        factory.replay(Runnable.class);
+        factory.replay();
+        boolean verified;
+        try {
+            factory.verify();
+            verified = false;
+        } catch(AssertionError e) {
+            // the expected call to run() is missing.
+            verified = true;
+        }
+        assertTrue(verified, "mock replayed by the test was not verified");
+        mock.run();
+        factory.verify();
+    }
+
+    /**
+     * after a reset only the mocks injected into services and the mocks handed out since are replayed; mocks
+     * still being recorded are not verified.
+     */
+    @Test
+    public void testResetForgetsMocksNotInjected() {
+        MockBuilderFactoryImpl factory = new MockBuilderFactoryImpl(false);
+        factory.setLog(LogFactory.getLog(this.getClass()));
+        Runnable handedOut = factory.getImplementation(Runnable.class);
+        factory.reset();
+        factory.replay();
+        // still recording: the expected call is not checked.
+        handedOut.run();
+        factory.verify();
+    }
+
+    /**
+     * changes to the override sets made by other threads must never leave a stale snapshot behind.
+     */
+    @Test
+    public void testOverrideSnapshotWithConcurrentChanges() throws Exception {
+        final MockBuilderFactoryImpl factory = new MockBuilderFactoryImpl(true);
+        Class<?>[] interfaces = { Runnable.class, Comparable.class, CharSequence.class, Iterable.class };
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[interfaces.length];
+        for(int i = 0; i < threads.length; i++) {
+            final Class<?> own = interfaces[i];
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for(int j = 0; j < 1000; j++) {
+                            factory.getMockOverride().add(own);
+                            assertTrue(factory.isBeingMocked(own), own+" added but not mocked");
+                            factory.getMockOverride().remove(own);
+                            assertFalse(factory.isBeingMocked(own), own+" removed but still mocked");
+                        }
+                    } catch(Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for(Thread thread: threads) {
+            thread.join();
+        }
+        assertNull(failure.get(), String.valueOf(failure.get()));
+    }
+
+    /**
+     * when not sharing mocks, another thread changing its own override sets leaves this thread's snapshot alone.
+     */
+    @Test
+    public void testOverrideSnapshotPerThread() throws Exception {
+        final MockBuilderFactoryImpl factory = new MockBuilderFactoryImpl(false);
+        factory.setMockOverride(Runnable.class);
+        Object snapshot = factory.getOverrideSnapshot();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    // replaces the sets inherited from the creating thread.
+                    factory.setMockOverride(Comparable.class);
+                    factory.getMockOverride().add(CharSequence.class);
+                    assertTrue(factory.isBeingMocked(CharSequence.class));
+                    assertFalse(factory.isBeingMocked(Runnable.class));
+                } catch(Throwable e) {
+                    failure.set(e);
+                }
+            }
+        };
+        other.start();
+        other.join();
+        assertNull(failure.get(), String.valueOf(failure.get()));
+        assertSame(factory.getOverrideSnapshot(), snapshot);
+        assertTrue(factory.isBeingMocked(Runnable.class));
+        assertFalse(factory.isBeingMocked(Comparable.class));
+
+        factory.getMockOverride().add(Comparable.class);
+        assertNotSame(factory.getOverrideSnapshot(), snapshot);
+        assertTrue(factory.isBeingMocked(Comparable.class));
+    }
     /**
      * @return
      */
@@ -0,0 +1,84 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package org.amplafi.hivemind.factory.mock;
+
+import org.apache.commons.logging.LogFactory;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * Test for {@link NoOpStub}.
+ */
+public class TestNoOpStub {
+
+    @Test
+    public void testDefaultValues() {
+        StubbedService stub = NoOpStub.newStub(StubbedService.class, false);
+        assertNull(stub.getName());
+        assertEquals(stub.getCount(), 0);
+        assertFalse(stub.isEnabled());
+        stub.doSomething();
+        assertTrue(NoOpStub.isStub(stub));
+        assertEquals(NoOpStub.getStub(stub).getTotalCallCount(), 0);
+        assertTrue(stub.equals(stub));
+        assertFalse(stub.equals(NoOpStub.newStub(StubbedService.class, false)));
+    }
+
+    @Test
+    public void testCallCounting() {
+        StubbedService stub = NoOpStub.newStub(StubbedService.class, true);
+        stub.doSomething();
+        stub.doSomething();
+        stub.getCount();
+        NoOpStub handler = NoOpStub.getStub(stub);
+        assertEquals(handler.getCallCount("doSomething"), 2);
+        assertEquals(handler.getCallCount("getName"), 0);
+        assertEquals(handler.getTotalCallCount(), 3);
+    }
+
+    @Test
+    public void testNotStub() {
+        assertFalse(NoOpStub.isStub(null));
+        assertFalse(NoOpStub.isStub("a string"));
+    }
+
+    /**
+     * in stub mode the factory hands out stubs until the test asks for the implementation to program it.
+     */
+    @Test
+    public void testStubMode() {
+        MockBuilderFactoryImpl factory = new MockBuilderFactoryImpl(false);
+        factory.setLog(LogFactory.getLog(this.getClass()));
+        factory.setStubMode(true);
+        StubbedService stub = factory.getThreadsMock(StubbedService.class);
+        assertTrue(NoOpStub.isStub(stub));
+        assertSame(factory.getThreadsMock(StubbedService.class), stub);
+
+        StubbedService mock = factory.getImplementation(StubbedService.class);
+        assertFalse(NoOpStub.isStub(mock), "getImplementation() should replace the stub");
+        assertSame(factory.getThreadsMock(StubbedService.class), mock);
+        assertTrue(factory.getRealMockInterfaces().contains(StubbedService.class));
+    }
+
+    /**
+     * a fake service interface.
+     */
+    public interface StubbedService {
+        String getName();
+        int getCount();
+        boolean isEnabled();
+        void doSomething();
+    }
+}
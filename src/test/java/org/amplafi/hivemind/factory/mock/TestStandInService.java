@@ -0,0 +1,135 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package org.amplafi.hivemind.factory.mock;
+
+import java.util.Random;
+
+import org.apache.hivemind.ApplicationRuntimeException;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * Test for {@link StandInService}, {@link StandInDefinition} and {@link LatencyDistribution}.
+ */
+public class TestStandInService {
+
+    @Test
+    public void testConvert() {
+        assertEquals(StandInService.convert("true", boolean.class), Boolean.TRUE);
+        assertEquals(StandInService.convert(" 42 ", int.class), Integer.valueOf(42));
+        assertEquals(StandInService.convert("42", Long.class), Long.valueOf(42));
+        assertEquals(StandInService.convert("text", String.class), "text");
+        assertEquals(StandInService.convert("text", CharSequence.class), "text");
+        assertEquals(StandInService.convert("xy", char.class), Character.valueOf('x'));
+        assertEquals(StandInService.convert("LOG_NORMAL", LatencyDistribution.class), LatencyDistribution.LOG_NORMAL);
+        try {
+            StandInService.convert("not a number", int.class);
+            fail("converted 'not a number' to an int");
+        } catch (ApplicationRuntimeException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testGetBehavior() {
+        StandInDefinition definition = new StandInDefinition();
+        assertNull(definition.getBehavior("getCount"));
+        StandInBehavior named = newBehavior("getCount", LatencyDistribution.FIXED, 0, 0);
+        StandInBehavior defaultBehavior = newBehavior(null, LatencyDistribution.FIXED, 0, 0);
+        definition.addBehavior(named);
+        definition.addBehavior(defaultBehavior);
+        assertSame(definition.getBehavior("getCount"), named);
+        assertSame(definition.getBehavior("doSomething"), defaultBehavior);
+    }
+
+    @Test
+    public void testDistributions() {
+        Random random = new Random(1);
+        StandInBehavior fixed = newBehavior(null, LatencyDistribution.FIXED, 40, 0);
+        assertEquals(fixed.getLatency().sampleMillis(fixed, random), 40d, 0d);
+
+        StandInBehavior uniform = newBehavior(null, LatencyDistribution.UNIFORM, 0, 0);
+        uniform.setMinMillis(10);
+        uniform.setMaxMillis(20);
+        for(int i = 0; i < 1000; i++) {
+            double sample = uniform.getLatency().sampleMillis(uniform, random);
+            assertTrue(sample >= 10 && sample <= 20, sample+" not between 10 and 20");
+        }
+
+        // mean-millis is the mean, not the median.
+        StandInBehavior logNormal = newBehavior(null, LatencyDistribution.LOG_NORMAL, 40, 0);
+        logNormal.setSigma(0.6);
+        int samples = 200000;
+        double total = 0;
+        int belowMean = 0;
+        for(int i = 0; i < samples; i++) {
+            double sample = logNormal.getLatency().sampleMillis(logNormal, random);
+            total += sample;
+            if ( sample < 40 ) {
+                belowMean++;
+            }
+        }
+        assertEquals(total / samples, 40d, 1d);
+        // the long tail: more than half the calls are faster than the mean.
+        assertTrue(belowMean > samples / 2);
+    }
+
+    @Test
+    public void testErrorRateAndReturnValue() {
+        StandInDefinition definition = new StandInDefinition();
+        definition.setServiceInterface(StandInTarget.class);
+        StandInBehavior failing = newBehavior("doSomething", LatencyDistribution.FIXED, 0, 0.25);
+        failing.setErrorMessage("backend down");
+        definition.addBehavior(failing);
+        definition.addBehavior(newBehavior("isEnabled", LatencyDistribution.FIXED, 0, 0));
+        definition.getBehavior("isEnabled").setReturnValue("true");
+        StandInTarget standIn = StandInService.newStandIn(StandInTarget.class, definition, true);
+
+        int calls = 20000;
+        int errors = 0;
+        for(int i = 0; i < calls; i++) {
+            try {
+                standIn.doSomething();
+            } catch (ApplicationRuntimeException e) {
+                assertEquals(e.getMessage(), "backend down");
+                errors++;
+            }
+        }
+        assertEquals((double) errors / calls, 0.25, 0.02);
+        assertTrue(standIn.isEnabled());
+        // no behavior: acts as a stub.
+        assertEquals(standIn.getCount(), 0);
+        assertTrue(NoOpStub.isStub(standIn));
+        assertEquals(NoOpStub.getStub(standIn).getCallCount("doSomething"), calls);
+    }
+
+    private StandInBehavior newBehavior(String methodName, LatencyDistribution latency, double meanMillis, double errorRate) {
+        StandInBehavior behavior = new StandInBehavior();
+        behavior.setMethodName(methodName);
+        behavior.setLatency(latency);
+        behavior.setMeanMillis(meanMillis);
+        behavior.setErrorRate(errorRate);
+        return behavior;
+    }
+
+    /**
+     * a fake service interface.
+     */
+    public interface StandInTarget {
+        int getCount();
+        boolean isEnabled();
+        void doSomething();
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.factory.servicessetter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.amplafi.hivemind.annotations.InjectService;
+import org.amplafi.hivemind.util.ServiceHandle;
+import org.amplafi.hivemind.util.ServiceHandles;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hivemind.ApplicationRuntimeException;
+import org.apache.hivemind.internal.Module;
+import static org.testng.Assert.*;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test for {@link ServiceHandles} and the handles {@link ServicesSetterImpl} caches, with a fake {@link Module}.
+ */
+public class TestServiceHandles {
+
+    private final Map<String, Object> services = new HashMap<String, Object>();
+
+    /**
+     * service ids (or interface names) the module was asked for.
+     */
+    private final List<String> lookups = Collections.synchronizedList(new ArrayList<String>());
+
+    private volatile long lookupMillis;
+
+    @BeforeMethod
+    public void setUp() {
+        services.clear();
+        services.put("test.Fake", new FakeServiceImpl());
+        services.put("test.Other", new FakeServiceImpl());
+        lookups.clear();
+        lookupMillis = 0;
+    }
+
+    /**
+     * an id is resolved through the module once, the handle is reused.
+     */
+    @Test
+    public void testResolveOnce() {
+        services.remove("test.Other");
+        ServiceHandles serviceHandles = new ServiceHandles(newModule());
+        ServiceHandle<FakeService> handle = serviceHandles.resolve("test.Fake", FakeService.class);
+        assertSame(serviceHandles.resolve("test.Fake", FakeService.class), handle);
+        assertSame(serviceHandles.get(handle), services.get("test.Fake"));
+        assertSame(serviceHandles.get(serviceHandles.resolve(FakeService.class)), services.get("test.Fake"));
+        assertSame(serviceHandles.resolve(FakeService.class), serviceHandles.resolve(FakeService.class));
+        assertEquals(lookups, Arrays.asList("test.Fake", FakeService.class.getName()));
+        assertNull(serviceHandles.get(ServiceHandle.NONE));
+    }
+
+    /**
+     * a failed resolution is thrown each time it is tried.
+     */
+    @Test
+    public void testFailureNotRemembered() {
+        ServiceHandles serviceHandles = new ServiceHandles(newModule());
+        for (int i = 0; i < 2; i++) {
+            try {
+                serviceHandles.resolve("test.Missing", FakeService.class);
+                fail("resolved a missing service");
+            } catch (ApplicationRuntimeException e) {
+                assertEquals(e.getMessage(), "Service point test.Missing does not exist.");
+            }
+        }
+        assertEquals(lookups.size(), 2);
+    }
+
+    /**
+     * threads resolving the same id at once wait for the one resolution (and use one table slot).
+     */
+    @Test
+    public void testConcurrentResolve() throws Exception {
+        final ServiceHandles serviceHandles = new ServiceHandles(newModule());
+        lookupMillis = 100;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Object> handles = Collections.synchronizedList(new ArrayList<Object>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        handles.add(serviceHandles.resolve("test.Fake", FakeService.class));
+                    } catch (Exception e) {
+                        handles.add(e);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+        assertEquals(handles.size(), threads.size());
+        for (Object handle : handles) {
+            assertSame(handle, handles.get(0));
+        }
+        assertEquals(lookups, Collections.singletonList("test.Fake"));
+        assertEquals(serviceHandles.resolve("test.Other", FakeService.class).toString(), "ServiceHandle[1: test.Other]");
+    }
+
+    /**
+     * a property whose named service does not exist is not looked up by name again; the service by type is wired.
+     */
+    @Test
+    public void testNoServiceByNameCached() {
+        ServicesSetterImpl servicesSetter = new ServicesSetterImpl();
+        servicesSetter.setLog(LogFactory.getLog(getClass()));
+        servicesSetter.setModule(newModule());
+        services.remove("test.Other");
+
+        NamedBean bean = new NamedBean();
+        servicesSetter.wire(bean);
+        assertSame(bean.getFake(), services.get("test.Fake"));
+        int lookupCount = lookups.size();
+
+        bean = new NamedBean();
+        servicesSetter.wire(bean);
+        assertSame(bean.getFake(), services.get("test.Fake"));
+        assertEquals(lookups.size(), lookupCount, "looked up again: " + lookups);
+    }
+
+    private Module newModule() {
+        return (Module) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { Module.class },
+            new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) throws InterruptedException {
+                    if (!"getService".equals(method.getName())) {
+                        return null;
+                    }
+                    Thread.sleep(lookupMillis);
+                    if (args.length == 2) {
+                        lookups.add((String) args[0]);
+                        Object service = services.get(args[0]);
+                        if (service == null) {
+                            throw new ApplicationRuntimeException("Service point " + args[0] + " does not exist.");
+                        }
+                        return service;
+                    }
+                    Class<?> serviceInterface = (Class<?>) args[0];
+                    lookups.add(serviceInterface.getName());
+                    List<Object> matches = new ArrayList<Object>();
+                    for (Object service : services.values()) {
+                        if (serviceInterface.isInstance(service)) {
+                            matches.add(service);
+                        }
+                    }
+                    if (matches.size() != 1) {
+                        throw new ApplicationRuntimeException(matches.size() + " services implement "
+                            + serviceInterface.getName() + ".");
+                    }
+                    return matches.get(0);
+                }
+            });
+    }
+
+    /**
+     * names a service that does not exist.
+     */
+    public static class NamedBean {
+        private FakeService fake;
+
+        public FakeService getFake() {
+            return fake;
+        }
+
+        @InjectService("test.Missing")
+        public void setFake(FakeService fake) {
+            this.fake = fake;
+        }
+    }
+}
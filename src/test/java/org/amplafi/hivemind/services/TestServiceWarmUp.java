@@ -0,0 +1,163 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.services;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.hivemind.internal.Module;
+import org.apache.hivemind.internal.ServicePoint;
+import static org.testng.Assert.*;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test for {@link ServiceWarmUpImpl}.
+ */
+public class TestServiceWarmUp {
+
+    /**
+     * "start id" and "end id" for each instantiation, in order.
+     */
+    private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+    private final List<String> warnings = Collections.synchronizedList(new ArrayList<String>());
+
+    @BeforeMethod
+    public void setUp() {
+        events.clear();
+        warnings.clear();
+    }
+
+    /**
+     * a service is only instantiated after the services it depends on.
+     */
+    @Test
+    public void testDependsOnOrder() {
+        ServiceWarmUpImpl warmUp = newWarmUp(4, 10000, null,
+            newWarmUpService("test.c", "test.a, test.b"),
+            newWarmUpService("test.b", "test.a"),
+            newWarmUpService("test.a", null),
+            newWarmUpService("test.d", "test.notWarmedUp"));
+        warmUp.warmUp();
+
+        assertEquals(events.size(), 8, events.toString());
+        assertTrue(events.indexOf("end test.a") < events.indexOf("start test.b"), events.toString());
+        assertTrue(events.indexOf("end test.b") < events.indexOf("start test.c"), events.toString());
+        assertTrue(events.contains("end test.d"), events.toString());
+        assertEquals(warnings, Collections.emptyList());
+    }
+
+    /**
+     * services in (or waiting for) a depends-on cycle are reported and not instantiated, the others are.
+     */
+    @Test
+    public void testCycle() {
+        ServiceWarmUpImpl warmUp = newWarmUp(2, 10000, null,
+            newWarmUpService("test.x", "test.y"),
+            newWarmUpService("test.y", "test.x"),
+            newWarmUpService("test.z", "test.x"),
+            newWarmUpService("test.w", null));
+        warmUp.warmUp();
+
+        assertEquals(events, Arrays.asList("start test.w", "end test.w"));
+        assertEquals(warnings, Arrays.asList(
+            "Warm up services with circular depends-on were not instantiated: [test.x, test.y, test.z]"));
+    }
+
+    /**
+     * after the timeout, a service being instantiated is not interrupted: it finishes in the background.
+     */
+    @Test
+    public void testTimeout() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        ServiceWarmUpImpl warmUp = newWarmUp(1, 50, release,
+            newWarmUpService("test.slow", null));
+        warmUp.warmUp();
+
+        assertEquals(warnings.size(), 1, warnings.toString());
+        assertEquals(events, Arrays.asList("start test.slow"));
+        release.countDown();
+        for (int i = 0; i < 100 && events.size() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(events, Arrays.asList("start test.slow", "end test.slow"));
+    }
+
+    private WarmUpService newWarmUpService(String serviceId, String dependsOn) {
+        WarmUpService warmUpService = new WarmUpService();
+        warmUpService.setServiceId(serviceId);
+        warmUpService.setDependsOn(dependsOn);
+        return warmUpService;
+    }
+
+    /**
+     * @param release if not null, instantiating a service waits for it (uninterruptibly).
+     */
+    private ServiceWarmUpImpl newWarmUp(int threads, long timeoutMillis, final CountDownLatch release,
+        WarmUpService... warmUpServices) {
+        ServiceWarmUpImpl warmUp = new ServiceWarmUpImpl();
+        warmUp.setThreads(threads);
+        warmUp.setTimeoutMillis(timeoutMillis);
+        warmUp.setWarmUpServices(Arrays.asList(warmUpServices));
+        warmUp.setLog(newProxy(Log.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("warn".equals(method.getName())) {
+                    warnings.add(String.valueOf(args[0]));
+                }
+                return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+            }
+        }));
+        warmUp.setModule(newProxy(Module.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                final String serviceId = (String) args[0];
+                return newProxy(ServicePoint.class, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws InterruptedException {
+                        events.add("start " + serviceId);
+                        if (release != null) {
+                            boolean interrupted = false;
+                            while (release.getCount() > 0) {
+                                try {
+                                    release.await(10, TimeUnit.SECONDS);
+                                } catch (InterruptedException e) {
+                                    interrupted = true;
+                                }
+                            }
+                            if (interrupted) {
+                                events.add("interrupted " + serviceId);
+                            }
+                        } else {
+                            Thread.sleep(10);
+                        }
+                        events.add("end " + serviceId);
+                        return null;
+                    }
+                });
+            }
+        }));
+        return warmUp;
+    }
+
+    private <T> T newProxy(Class<T> interfaceClass, InvocationHandler handler) {
+        return interfaceClass.cast(Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { interfaceClass }, handler));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.hivemind.ClassResolver;
+import org.apache.hivemind.Resource;
+import org.apache.hivemind.impl.DefaultClassResolver;
+import org.apache.hivemind.impl.DefaultErrorHandler;
+import org.apache.hivemind.parse.ModuleDescriptor;
+import org.apache.hivemind.parse.XmlResourceProcessor;
+import org.apache.hivemind.util.URLResource;
+
+/**
+ * Compares the memory allocated (and time taken) by hivemind's {@link XmlResourceProcessor},
+ * {@link StaxXmlResourceProcessor} and {@link CachingXmlResourceProcessor} (with a warm cache) reading this
+ * project's descriptors. Not a test; run the main method with the
+ * test class path:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes:... org.amplafi.hivemind.util.DescriptorParsingBenchmark [iterations]
+ * </pre>
+ *
+ * Allocation is measured with the HotSpot specific com.sun.management.ThreadMXBean.
+ */
+public class DescriptorParsingBenchmark {
+    private static final String[] DESCRIPTORS = {
+        "META-INF/hivemodule.xml",
+        "META-INF/amplafi.autowire.xml",
+        "META-INF/amplafi.factory.xml",
+        "META-INF/amplafi.factory.facade.xml",
+        "META-INF/amplafi.init.xml",
+        "META-INF/amplafi.standin.xml",
+        "amplafi.mockfactory.xml",
+    };
+
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        ClassResolver resolver = new DefaultClassResolver();
+        List<Resource> resources = new ArrayList<Resource>();
+        for (String descriptor : DESCRIPTORS) {
+            URL url = resolver.getClassLoader().getResource(descriptor);
+            if (url == null) {
+                throw new IllegalStateException(descriptor + " is not on the class path");
+            }
+            resources.add(new URLResource(url));
+        }
+        XmlResourceProcessor sax = new XmlResourceProcessor(resolver, new DefaultErrorHandler());
+        XmlResourceProcessor stax = new StaxXmlResourceProcessor(resolver, new DefaultErrorHandler());
+        File cacheDirectory = File.createTempFile("descriptorCache", "");
+        cacheDirectory.delete();
+        XmlResourceProcessor cached = new CachingXmlResourceProcessor(resolver, new DefaultErrorHandler(),
+            new DescriptorCache(cacheDirectory));
+        checkSameDescriptors(sax, stax, resources);
+        // the first pass fills the cache, the second replays it.
+        checkSameDescriptors(sax, cached, resources);
+        checkSameDescriptors(sax, cached, resources);
+
+        // warm up all before measuring any.
+        run(sax, resources, iterations / 4);
+        run(stax, resources, iterations / 4);
+        run(cached, resources, iterations / 4);
+        report("sax ", sax, resources, iterations);
+        report("stax", stax, resources, iterations);
+        report("cache", cached, resources, iterations);
+    }
+
+    private static void checkSameDescriptors(XmlResourceProcessor expected, XmlResourceProcessor actual, List<Resource> resources) {
+        for (Resource resource : resources) {
+            String expectedSummary = summarize(expected.processResource(resource));
+            String actualSummary = summarize(actual.processResource(resource));
+            if (!expectedSummary.equals(actualSummary)) {
+                throw new IllegalStateException(resource + ": expected " + expectedSummary + " but was " + actualSummary);
+            }
+        }
+    }
+
+    private static String summarize(ModuleDescriptor moduleDescriptor) {
+        return moduleDescriptor.getModuleId() + "@" + moduleDescriptor.getVersion()
+            + " services=" + size(moduleDescriptor.getServicePoints())
+            + " configurations=" + size(moduleDescriptor.getConfigurationPoints())
+            + " contributions=" + size(moduleDescriptor.getContributions())
+            + " implementations=" + size(moduleDescriptor.getImplementations())
+            + " dependencies=" + size(moduleDescriptor.getDependencies())
+            + " subModules=" + size(moduleDescriptor.getSubModules());
+    }
+
+    private static int size(Collection<?> list) {
+        return list == null ? 0 : list.size();
+    }
+
+    private static void report(String name, XmlResourceProcessor processor, List<Resource> resources, int iterations) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        System.gc();
+        long startBytes = threads.getThreadAllocatedBytes(threadId);
+        long startNanos = System.nanoTime();
+        run(processor, resources, iterations);
+        long nanos = System.nanoTime() - startNanos;
+        long bytes = threads.getThreadAllocatedBytes(threadId) - startBytes;
+        int parses = iterations * resources.size();
+        System.out.println(name + ": " + (bytes / parses) + " bytes/descriptor, " + (nanos / parses / 1000) + " us/descriptor");
+    }
+
+    private static void run(XmlResourceProcessor processor, List<Resource> resources, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            for (Resource resource : resources) {
+                processor.processResource(resource);
+            }
+        }
+    }
+}
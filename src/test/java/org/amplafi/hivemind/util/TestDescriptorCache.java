@@ -0,0 +1,193 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xml.sax.helpers.LocatorImpl;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * Test for {@link DescriptorCache}.
+ */
+public class TestDescriptorCache {
+
+    /**
+     * the events replayed are the events recorded, locations included.
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        File directory = createDirectory();
+        DescriptorCache cache = new DescriptorCache(directory);
+        URL url = new URL("http://example.com/hivemodule.xml");
+        byte[] validator = DescriptorCache.getContentHash("content".getBytes("UTF-8"));
+
+        EventList recorded = new EventList();
+        DescriptorCache.Recorder recorder = new DescriptorCache.Recorder(recorded);
+        record(recorder);
+        cache.store(url, validator, recorder);
+
+        EventList replayed = new EventList();
+        assertTrue(cache.replay(url, validator, replayed));
+        assertEquals(replayed.events, recorded.events);
+
+        // a different validator (the descriptor changed) or url misses.
+        assertFalse(cache.replay(url, DescriptorCache.getContentHash("changed".getBytes("UTF-8")), new EventList()));
+        assertFalse(cache.replay(new URL("http://example.com/other.xml"), validator, new EventList()));
+    }
+
+    /**
+     * a corrupt entry is reported and deleted so that the descriptor is parsed again.
+     */
+    @Test
+    public void testCorruptEntry() throws Exception {
+        File directory = createDirectory();
+        DescriptorCache cache = new DescriptorCache(directory);
+        URL url = new URL("http://example.com/hivemodule.xml");
+        byte[] validator = DescriptorCache.getContentHash("content".getBytes("UTF-8"));
+        DescriptorCache.Recorder recorder = new DescriptorCache.Recorder(new EventList());
+        record(recorder);
+        cache.store(url, validator, recorder);
+
+        File entry = directory.listFiles()[0];
+        RandomAccessFile file = new RandomAccessFile(entry, "rw");
+        try {
+            // garble the end of the record.
+            file.seek(file.length() - 12);
+            file.write(new byte[] { 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9 });
+        } finally {
+            file.close();
+        }
+        try {
+            cache.replay(url, validator, new EventList());
+            fail("corrupt entry replayed");
+        } catch (DescriptorCache.CorruptEntryException e) {
+            // expected
+        }
+        assertFalse(entry.exists(), "corrupt entry not deleted");
+        assertFalse(cache.replay(url, validator, new EventList()));
+    }
+
+    /**
+     * the stamp of a file descriptor changes with the file.
+     */
+    @Test
+    public void testStamp() throws Exception {
+        File descriptor = File.createTempFile("hivemodule", ".xml");
+        descriptor.deleteOnExit();
+        write(descriptor, "<module id=\"a\"/>");
+        URL url = descriptor.toURI().toURL();
+        byte[] stamp = DescriptorCache.getStamp(url);
+        assertNotNull(stamp);
+        assertTrue(Arrays.equals(DescriptorCache.getStamp(url), stamp));
+        write(descriptor, "<module id=\"a\" version=\"1.0\"/>");
+        assertFalse(Arrays.equals(DescriptorCache.getStamp(url), stamp));
+
+        assertNull(DescriptorCache.getStamp(new URL("http://example.com/hivemodule.xml")));
+    }
+
+    private void record(DescriptorCache.Recorder recorder) throws SAXException {
+        LocatorImpl locator = new LocatorImpl();
+        recorder.setDocumentLocator(locator);
+        recorder.startDocument();
+        locator.setLineNumber(1);
+        locator.setColumnNumber(30);
+        AttributesImpl attributes = new AttributesImpl();
+        attributes.addAttribute("", "id", "id", "CDATA", "amplafi.test");
+        attributes.addAttribute("", "version", "version", "CDATA", "1.0.0");
+        recorder.startElement("", "module", "module", attributes);
+        locator.setLineNumber(2);
+        recorder.startElement("", "service-point", "service-point", new AttributesImpl());
+        char[] text = "  some text \u00e9 ".toCharArray();
+        recorder.characters(text, 0, text.length);
+        recorder.endElement("", "service-point", "service-point");
+        locator.setLineNumber(3);
+        // repeated names are written as references.
+        AttributesImpl repeated = new AttributesImpl();
+        repeated.addAttribute("", "id", "id", "CDATA", "1.0.0");
+        recorder.startElement("", "service-point", "service-point", repeated);
+        recorder.endElement("", "service-point", "service-point");
+        recorder.endElement("", "module", "module");
+        recorder.endDocument();
+    }
+
+    private File createDirectory() throws IOException {
+        File directory = File.createTempFile("descriptorCache", "");
+        directory.delete();
+        directory.mkdirs();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    private void write(File file, String content) throws IOException {
+        // make sure the modification time moves on as well as the size.
+        long lastModified = file.lastModified();
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content.getBytes("UTF-8"));
+        } finally {
+            output.close();
+        }
+        file.setLastModified(lastModified + 2000);
+    }
+
+    /**
+     * describes each event received, with its location.
+     */
+    private static class EventList extends DefaultHandler {
+        private final List<String> events = new ArrayList<String>();
+        private Locator locator;
+
+        @Override
+        public void setDocumentLocator(Locator locator) {
+            this.locator = locator;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            StringBuilder event = new StringBuilder("start ").append(qName);
+            for (int i = 0; i < attributes.getLength(); i++) {
+                event.append(' ').append(attributes.getQName(i)).append('=').append(attributes.getValue(i));
+            }
+            add(event.toString());
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            add("characters '" + new String(ch, start, length) + "'");
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            add("end " + qName);
+        }
+
+        private void add(String event) {
+            events.add(event + " @" + locator.getLineNumber() + ":" + locator.getColumnNumber());
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hivemind.ApplicationRuntimeException;
+import org.apache.hivemind.Registry;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * Test for {@link FrozenRegistry}: frozen lookups answer what the registry answers.
+ */
+public class TestFrozenRegistry {
+
+    private final AtomicInteger registryLookups = new AtomicInteger();
+
+    /**
+     * the same instances, whether from the tables or from the registry (superinterfaces, wrong types).
+     */
+    @Test
+    public void testSameServices() {
+        Map<String, Object> services = newServices();
+        Registry registry = newRegistry(services);
+        Registry frozen = FrozenRegistry.freeze(registry);
+        assertSame(FrozenRegistry.getFrozenRegistry(frozen).getRegistry(), registry);
+
+        registryLookups.set(0);
+        for (String serviceId : services.keySet()) {
+            assertSame(frozen.getService(serviceId, Object.class), registry.getService(serviceId, Object.class));
+        }
+        assertSame(frozen.getService(RunnableFuture.class), registry.getService(RunnableFuture.class));
+        assertTrue(frozen.containsService(RunnableFuture.class));
+        assertTrue(frozen.containsService("test.Task", Runnable.class));
+        // answered by the tables.
+        assertEquals(registryLookups.get(), services.size() + 1);
+
+        // a superinterface of the declared interface is not in the table: the registry answers.
+        assertSame(frozen.getService(Runnable.class), registry.getService(Runnable.class));
+        assertEquals(registryLookups.get(), services.size() + 3);
+    }
+
+    /**
+     * the errors are the registry's.
+     */
+    @Test
+    public void testSameErrors() {
+        Registry registry = newRegistry(newServices());
+        Registry frozen = FrozenRegistry.freeze(registry);
+
+        assertEquals(getError(frozen, "test.Missing", Object.class), getError(registry, "test.Missing", Object.class));
+        // wrong type.
+        assertEquals(getError(frozen, "test.Task", Callable.class), getError(registry, "test.Task", Callable.class));
+        // two services declare Callable.
+        assertEquals(getError(frozen, null, Callable.class), getError(registry, null, Callable.class));
+        assertFalse(frozen.containsService(Callable.class));
+        assertFalse(frozen.containsService("test.Missing", Object.class));
+
+        frozen.shutdown();
+        assertEquals(getError(frozen, "test.Task", Object.class), "Registry has been shutdown.");
+    }
+
+    private String getError(Registry registry, String serviceId, Class<?> serviceInterface) {
+        try {
+            if (serviceId == null) {
+                registry.getService(serviceInterface);
+            } else {
+                registry.getService(serviceId, serviceInterface);
+            }
+            fail("no error from " + registry);
+            return null;
+        } catch (ApplicationRuntimeException e) {
+            return e.getMessage();
+        }
+    }
+
+    private Map<String, Object> newServices() {
+        Map<String, Object> services = new LinkedHashMap<String, Object>();
+        services.put("test.Task", new FutureTask<Object>(new Runnable() {
+            public void run() {
+            }
+        }, null));
+        services.put("test.FirstLoader", new Loader());
+        services.put("test.SecondLoader", new Loader());
+        return services;
+    }
+
+    /**
+     * @param services service id to service; each service's direct interfaces are its declared interfaces.
+     * @return a stand-in for a started registry that reports errors as hivemind does.
+     */
+    private Registry newRegistry(final Map<String, Object> services) {
+        return (Registry) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { Registry.class },
+            new InvocationHandler() {
+                private boolean shutdown;
+
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if ("shutdown".equals(name)) {
+                        shutdown = true;
+                        return null;
+                    } else if (shutdown) {
+                        throw new ApplicationRuntimeException("Registry has been shutdown.");
+                    } else if ("getServiceIds".equals(name)) {
+                        return new ArrayList<String>(services.keySet());
+                    } else if ("getService".equals(name) || "containsService".equals(name)) {
+                        registryLookups.incrementAndGet();
+                        boolean contains = "containsService".equals(name);
+                        Class<?> serviceInterface = (Class<?>) args[args.length - 1];
+                        if (args.length == 2) {
+                            Object service = services.get(args[0]);
+                            if (service == null) {
+                                if (contains) {
+                                    return false;
+                                }
+                                throw new ApplicationRuntimeException("Service point " + args[0] + " does not exist.");
+                            } else if (!serviceInterface.isInstance(service)) {
+                                if (contains) {
+                                    return false;
+                                }
+                                throw new ApplicationRuntimeException("Service " + args[0] + " does not implement "
+                                    + serviceInterface.getName() + ".");
+                            }
+                            return contains ? Boolean.TRUE : service;
+                        }
+                        List<Object> matches = new ArrayList<Object>();
+                        for (Object service : services.values()) {
+                            for (Class<?> declared : service.getClass().getInterfaces()) {
+                                if (serviceInterface.isAssignableFrom(declared) && !matches.contains(service)) {
+                                    matches.add(service);
+                                }
+                            }
+                        }
+                        if (contains) {
+                            return matches.size() == 1;
+                        } else if (matches.size() != 1) {
+                            throw new ApplicationRuntimeException(matches.size() + " services implement "
+                                + serviceInterface.getName() + ".");
+                        }
+                        return matches.get(0);
+                    }
+                    return null;
+                }
+            });
+    }
+
+    /**
+     * a service declaring Callable.
+     */
+    public static class Loader implements Callable<Object> {
+        public Object call() {
+            return null;
+        }
+    }
+}
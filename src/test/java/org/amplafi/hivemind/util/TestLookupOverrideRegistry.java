@@ -0,0 +1,124 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hivemind.ApplicationRuntimeException;
+import org.apache.hivemind.Registry;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * Test for {@link LookupOverrideRegistry}: what a view shares with its template and what it does not.
+ */
+public class TestLookupOverrideRegistry {
+
+    /**
+     * overrides are seen only through the view that made them.
+     */
+    @Test
+    public void testOverridesAreIsolated() {
+        Counter singleton = new Counter();
+        Registry template = newTemplate(singleton);
+        Registry registry = LookupOverrideRegistry.overlay(template);
+        Registry other = LookupOverrideRegistry.overlay(template);
+        Counter override = new Counter();
+        LookupOverrideRegistry.getLookupOverrideRegistry(registry).overrideService("test.Counter", Counter.class, override);
+
+        assertSame(registry.getService("test.Counter", Counter.class), override);
+        assertSame(other.getService("test.Counter", Counter.class), singleton);
+        assertSame(template.getService("test.Counter", Counter.class), singleton);
+        // not overridden by interface.
+        assertSame(registry.getService(Counter.class), singleton);
+        assertNull(LookupOverrideRegistry.getLookupOverrideRegistry(template));
+    }
+
+    /**
+     * the services that are not overridden are the template's instances: their state is shared.
+     */
+    @Test
+    public void testSingletonsAreShared() {
+        Counter singleton = new Counter();
+        Registry template = newTemplate(singleton);
+        Registry registry = LookupOverrideRegistry.overlay(template);
+        ((Counter) registry.getService("test.Counter", Counter.class)).increment();
+        registry.shutdown();
+
+        // what the view left behind is seen through the template and the next view.
+        assertEquals(((Counter) template.getService("test.Counter", Counter.class)).getCount(), 1);
+        assertEquals(((Counter) LookupOverrideRegistry.overlay(template).getService(Counter.class)).getCount(), 1);
+    }
+
+    /**
+     * shutting down a view leaves the template alone: other views are using it.
+     */
+    @Test
+    public void testShutdown() {
+        List<String> calls = new ArrayList<String>();
+        Registry template = newTemplate(new Counter(), calls);
+        Registry registry = LookupOverrideRegistry.overlay(template);
+        registry.shutdown();
+        assertEquals(calls, Collections.emptyList());
+        try {
+            registry.getService(Counter.class);
+            fail("shutdown view still answers");
+        } catch (ApplicationRuntimeException e) {
+            // expected
+        }
+        assertNotNull(template.getService(Counter.class));
+    }
+
+    private Registry newTemplate(Counter counter) {
+        return newTemplate(counter, new ArrayList<String>());
+    }
+
+    /**
+     * @param counter the template's only service, "test.Counter".
+     * @param calls the names of the other methods called on the template.
+     * @return a stand-in for a built registry.
+     */
+    private Registry newTemplate(final Counter counter, final List<String> calls) {
+        return (Registry) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { Registry.class },
+            new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if ("getService".equals(method.getName())) {
+                        return counter;
+                    }
+                    calls.add(method.getName());
+                    return null;
+                }
+            });
+    }
+
+    /**
+     * a service with state.
+     */
+    public static class Counter {
+        private int count;
+
+        public void increment() {
+            count++;
+        }
+
+        public int getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hivemind.impl.AttributeImpl;
+import org.apache.hivemind.impl.DefaultClassResolver;
+import org.apache.hivemind.impl.DefaultErrorHandler;
+import org.apache.hivemind.impl.ElementImpl;
+import org.apache.hivemind.parse.ConfigurationPointDescriptor;
+import org.apache.hivemind.parse.ContributionDescriptor;
+import org.apache.hivemind.parse.ImplementationDescriptor;
+import org.apache.hivemind.parse.InterceptorDescriptor;
+import org.apache.hivemind.parse.InvokeFactoryDescriptor;
+import org.apache.hivemind.parse.ModuleDescriptor;
+import org.apache.hivemind.parse.ServicePointDescriptor;
+import static org.testng.Assert.*;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test for {@link ModuleDescriptorPruner}.
+ */
+public class TestModuleDescriptorPruner {
+
+    private final List<ModuleDescriptor> moduleDescriptors = new ArrayList<ModuleDescriptor>();
+
+    private final Map<ModuleDescriptor, List<ModuleDescriptor>> subModules = new HashMap<ModuleDescriptor, List<ModuleDescriptor>>();
+
+    @BeforeMethod
+    public void setUp() {
+        moduleDescriptors.clear();
+        subModules.clear();
+    }
+
+    /**
+     * a module needs its sub-modules, not the other way round.
+     */
+    @Test
+    public void testSubModules() {
+        ModuleDescriptor parent = newModule("parent");
+        addServicePoint(parent, "service");
+        ModuleDescriptor child = newModule("child");
+        addServicePoint(child, "service");
+        subModules.put(parent, Arrays.asList(child));
+
+        assertEquals(prune("parent.service"), Arrays.asList("parent", "child"));
+        assertEquals(prune("child.service"), Arrays.asList("child"));
+    }
+
+    /**
+     * a contribution needs the configuration point's module and the users of the configuration need the
+     * contribution.
+     */
+    @Test
+    public void testContributions() {
+        ModuleDescriptor owner = newModule("owner");
+        addConfigurationPoint(owner, "Settings");
+        addServicePoint(owner, "service");
+        ModuleDescriptor contributor = newModule("contributor");
+        addServicePoint(contributor, "service");
+        ContributionDescriptor contribution = new ContributionDescriptor();
+        contribution.setConfigurationId("owner.Settings");
+        contribution.addElement(newElement("setting", "value", "some text"));
+        contributor.addContribution(contribution);
+
+        assertEquals(prune("contributor.service"), Arrays.asList("owner", "contributor"));
+        assertEquals(prune("owner.service"), Arrays.asList("owner", "contributor"));
+    }
+
+    /**
+     * a service's users need the module implementing it, which needs the service point's module and the
+     * factory it invokes.
+     */
+    @Test
+    public void testImplementations() {
+        ModuleDescriptor api = newModule("api");
+        addServicePoint(api, "Service");
+        ModuleDescriptor factories = newModule("factories");
+        addServicePoint(factories, "ServiceFactory");
+        ModuleDescriptor implementor = newModule("implementor");
+        ImplementationDescriptor implementation = new ImplementationDescriptor();
+        implementation.setServiceId("api.Service");
+        InvokeFactoryDescriptor invokeFactory = new InvokeFactoryDescriptor();
+        invokeFactory.setFactoryServiceId("factories.ServiceFactory");
+        implementation.setInstanceBuilder(invokeFactory);
+        implementor.addImplementation(implementation);
+
+        assertEquals(prune("api.Service"), Arrays.asList("api", "factories", "implementor"));
+        assertEquals(prune("implementor"), Arrays.asList("api", "factories", "implementor"));
+        assertEquals(prune("factories.ServiceFactory"), Arrays.asList("factories"));
+    }
+
+    /**
+     * a service needs its interceptors' factories and the services named by their parameters; the service's
+     * users need the module adding an interceptor.
+     */
+    @Test
+    public void testInterceptors() {
+        ModuleDescriptor api = newModule("api");
+        addServicePoint(api, "Service");
+        ModuleDescriptor logging = newModule("logging");
+        addServicePoint(logging, "LoggingInterceptor");
+        ModuleDescriptor audit = newModule("audit");
+        addServicePoint(audit, "AuditLog");
+        ModuleDescriptor intercepting = newModule("intercepting");
+        ImplementationDescriptor implementation = new ImplementationDescriptor();
+        implementation.setServiceId("api.Service");
+        InterceptorDescriptor interceptor = new InterceptorDescriptor();
+        interceptor.setServiceId("logging.LoggingInterceptor");
+        interceptor.addParameter(newElement("log", "service", "service:audit.AuditLog"));
+        implementation.addInterceptor(interceptor);
+        intercepting.addImplementation(implementation);
+
+        assertEquals(prune("api.Service"), Arrays.asList("api", "logging", "audit", "intercepting"));
+        assertEquals(prune("logging.LoggingInterceptor"), Arrays.asList("logging"));
+    }
+
+    /**
+     * values that only look like references do not make modules needed.
+     */
+    @Test
+    public void testNoInventedReferences() {
+        ModuleDescriptor module = newModule("module");
+        ServicePointDescriptor servicePoint = addServicePoint(module, "Service");
+        InvokeFactoryDescriptor invokeFactory = new InvokeFactoryDescriptor();
+        invokeFactory.setFactoryServiceId("hivemind.BuilderFactory");
+        // "other" is a module id, not a service; "Service" is qualified by module, not other.
+        invokeFactory.addParameter(newElement("construct", "class", "other"));
+        invokeFactory.addParameter(newElement("set", "value", "Service"));
+        invokeFactory.addParameter(newElement("set-object", "property", "object:"));
+        servicePoint.setInstanceBuilder(invokeFactory);
+        ModuleDescriptor other = newModule("other");
+        addServicePoint(other, "Service");
+
+        assertEquals(prune("module.Service"), Arrays.asList("module"));
+        // unknown roots are ignored.
+        assertEquals(prune("missing.Service"), Collections.<String>emptyList());
+    }
+
+    /**
+     * the core hivemind module is always kept, with the modules contributing to its configuration points.
+     */
+    @Test
+    public void testHivemindModuleKept() {
+        ModuleDescriptor hivemind = newModule(ModuleDescriptorPruner.HIVEMIND_MODULE_ID);
+        addServicePoint(hivemind, "Startup");
+        addConfigurationPoint(hivemind, "ServiceModels");
+        ModuleDescriptor models = newModule("models");
+        ContributionDescriptor contribution = new ContributionDescriptor();
+        contribution.setConfigurationId("hivemind.ServiceModels");
+        contribution.addElement(newElement("service-model", "name", "custom"));
+        models.addContribution(contribution);
+        ModuleDescriptor module = newModule("module");
+        addServicePoint(module, "Service");
+        ModuleDescriptor other = newModule("other");
+        addServicePoint(other, "Service");
+
+        assertEquals(prune("module.Service"), Arrays.asList("hivemind", "models", "module"));
+        assertEquals(prune("missing.Service"), Arrays.asList("hivemind", "models"));
+    }
+
+    private List<String> prune(String root) {
+        List<String> moduleIds = new ArrayList<String>();
+        for (ModuleDescriptor moduleDescriptor : new ModuleDescriptorPruner(moduleDescriptors, subModules).prune(Arrays.asList(root))) {
+            moduleIds.add(moduleDescriptor.getModuleId());
+        }
+        return moduleIds;
+    }
+
+    private ModuleDescriptor newModule(String moduleId) {
+        ModuleDescriptor moduleDescriptor = new ModuleDescriptor(new DefaultClassResolver(), new DefaultErrorHandler());
+        moduleDescriptor.setModuleId(moduleId);
+        moduleDescriptors.add(moduleDescriptor);
+        return moduleDescriptor;
+    }
+
+    private ServicePointDescriptor addServicePoint(ModuleDescriptor moduleDescriptor, String id) {
+        ServicePointDescriptor servicePoint = new ServicePointDescriptor();
+        servicePoint.setId(id);
+        servicePoint.setInterfaceClassName(Runnable.class.getName());
+        moduleDescriptor.addServicePoint(servicePoint);
+        return servicePoint;
+    }
+
+    private void addConfigurationPoint(ModuleDescriptor moduleDescriptor, String id) {
+        ConfigurationPointDescriptor configurationPoint = new ConfigurationPointDescriptor();
+        configurationPoint.setId(id);
+        moduleDescriptor.addConfigurationPoint(configurationPoint);
+    }
+
+    private ElementImpl newElement(String name, String attribute, String value) {
+        ElementImpl element = new ElementImpl();
+        element.setElementName(name);
+        element.addAttribute(new AttributeImpl(attribute, value));
+        return element;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RunnableFuture;
+
+import org.apache.hivemind.ApplicationRuntimeException;
+import org.apache.hivemind.Registry;
+import org.apache.hivemind.impl.AttributeImpl;
+import org.apache.hivemind.impl.DefaultClassResolver;
+import org.apache.hivemind.impl.DefaultErrorHandler;
+import org.apache.hivemind.impl.ElementImpl;
+import org.apache.hivemind.internal.Visibility;
+import org.apache.hivemind.parse.InvokeFactoryDescriptor;
+import org.apache.hivemind.parse.ModuleDescriptor;
+import org.apache.hivemind.parse.ServicePointDescriptor;
+import static org.testng.Assert.*;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test for {@link PartitionedRegistry}, with fake partitions.
+ */
+public class TestPartitionedRegistry {
+
+    /**
+     * the module ids of the partitions built, in order.
+     */
+    private final List<Collection<String>> built = new ArrayList<Collection<String>>();
+
+    @BeforeMethod
+    public void setUp() {
+        built.clear();
+    }
+
+    /**
+     * a prefix matches whole module id segments.
+     */
+    @Test
+    public void testPrefixes() {
+        List<ModuleDescriptor> moduleDescriptors = Arrays.asList(newModule("app"), newModule("app.web"),
+            newModule("apple"), newModule("app.web.admin"), newModule("other"));
+        PartitionedRegistry partitionedRegistry = PartitionedRegistry.getPartitionedRegistry(
+            PartitionedRegistry.create(moduleDescriptors, Arrays.asList("app", "app.web"), newPartitionBuilder()));
+
+        assertEquals(partitionedRegistry.getPartitionModules().get("app"), Arrays.asList("app"));
+        assertEquals(partitionedRegistry.getPartitionModules().get("app.web"), Arrays.asList("app.web", "app.web.admin"));
+        assertEquals(partitionedRegistry.getPartitionModules().get(PartitionedRegistry.DEFAULT_PARTITION),
+            Arrays.asList("apple", "other"));
+    }
+
+    /**
+     * as in hivemind: service ids by assignable interface, private service points left out, and no partition
+     * is built to answer.
+     */
+    @Test
+    public void testGetServiceIds() {
+        ModuleDescriptor app = newModule("app");
+        addServicePoint(app, "Task", RunnableFuture.class, Visibility.PUBLIC);
+        addServicePoint(app, "Job", Runnable.class, Visibility.PUBLIC);
+        addServicePoint(app, "Hidden", Runnable.class, Visibility.PRIVATE);
+        ModuleDescriptor other = newModule("other");
+        addServicePoint(other, "Loader", Callable.class, Visibility.PUBLIC);
+        Registry registry = PartitionedRegistry.create(Arrays.asList(app, other), Arrays.asList("app"), newPartitionBuilder());
+
+        assertEquals(registry.getServiceIds(Object.class), Arrays.asList("app.Task", "app.Job", "other.Loader"));
+        assertEquals(registry.getServiceIds(Runnable.class), Arrays.asList("app.Task", "app.Job"));
+        assertEquals(registry.getServiceIds(RunnableFuture.class), Arrays.asList("app.Task"));
+        assertEquals(registry.getServiceIds(Comparable.class), Collections.emptyList());
+        assertEquals(built, Collections.emptyList());
+    }
+
+    /**
+     * private service points are not seen by lookups by interface; the lookup goes to the partition declaring
+     * the service.
+     */
+    @Test
+    public void testLookupByInterface() {
+        ModuleDescriptor app = newModule("app");
+        addServicePoint(app, "Job", Runnable.class, Visibility.PUBLIC);
+        addServicePoint(app, "Hidden", Runnable.class, Visibility.PRIVATE);
+        addServicePoint(app, "HiddenLoader", Callable.class, Visibility.PRIVATE);
+        ModuleDescriptor other = newModule("other");
+        Registry registry = PartitionedRegistry.create(Arrays.asList(app, other), Arrays.asList("app"), newPartitionBuilder());
+
+        assertTrue(registry.containsService(Runnable.class));
+        assertFalse(registry.containsService(Callable.class));
+        assertEquals(built, Collections.emptyList());
+        assertEquals(registry.getService(Runnable.class), "app.Job");
+        assertEquals(built, Collections.singletonList(Arrays.asList("app")));
+    }
+
+    /**
+     * a partition that would construct its own copy of another partition's singleton fails to build; a threaded
+     * service may be constructed in each partition.
+     */
+    @Test
+    public void testSharedServices() {
+        ModuleDescriptor app = newModule("app");
+        addServicePoint(app, "Job", Runnable.class, Visibility.PUBLIC).setInstanceBuilder(newInvokeFactory(null, "other.Loader"));
+        ModuleDescriptor other = newModule("other");
+        addServicePoint(other, "Loader", Callable.class, Visibility.PUBLIC).setInstanceBuilder(newInvokeFactory(null, null));
+        Registry registry = PartitionedRegistry.create(Arrays.asList(app, other), Arrays.asList("app"), newPartitionBuilder());
+        try {
+            registry.getService(Runnable.class);
+            fail("partition sharing a singleton built");
+        } catch (ApplicationRuntimeException e) {
+            assertTrue(e.getCause().getMessage().contains("[other.Loader]"), e.getCause().getMessage());
+        }
+        assertEquals(built, Collections.emptyList());
+
+        other.getServicePoints().clear();
+        addServicePoint(other, "Loader", Callable.class, Visibility.PUBLIC).setInstanceBuilder(newInvokeFactory("threaded", null));
+        registry = PartitionedRegistry.create(Arrays.asList(app, other), Arrays.asList("app"), newPartitionBuilder());
+        assertEquals(registry.getService(Runnable.class), "app.Job");
+        assertEquals(built, Collections.singletonList(Arrays.asList("app")));
+    }
+
+    /**
+     * @param serviceModel
+     * @param serviceId the service injected, null for none.
+     */
+    private InvokeFactoryDescriptor newInvokeFactory(String serviceModel, String serviceId) {
+        InvokeFactoryDescriptor invokeFactory = new InvokeFactoryDescriptor();
+        invokeFactory.setFactoryServiceId("hivemind.BuilderFactory");
+        invokeFactory.setServiceModel(serviceModel);
+        if (serviceId != null) {
+            ElementImpl element = new ElementImpl();
+            element.setElementName("set-service");
+            element.addAttribute(new AttributeImpl("service-id", serviceId));
+            invokeFactory.addParameter(element);
+        }
+        return invokeFactory;
+    }
+
+    private PartitionedRegistry.PartitionBuilder newPartitionBuilder() {
+        return new PartitionedRegistry.PartitionBuilder() {
+            public Registry build(Collection<String> moduleIds) {
+                built.add(new ArrayList<String>(moduleIds));
+                // getService(id, class) answers the id.
+                return (Registry) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { Registry.class },
+                    new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            return args == null ? null : args[0];
+                        }
+                    });
+            }
+        };
+    }
+
+    private ModuleDescriptor newModule(String moduleId) {
+        ModuleDescriptor moduleDescriptor = new ModuleDescriptor(new DefaultClassResolver(), new DefaultErrorHandler());
+        moduleDescriptor.setModuleId(moduleId);
+        return moduleDescriptor;
+    }
+
+    private ServicePointDescriptor addServicePoint(ModuleDescriptor moduleDescriptor, String id, Class<?> serviceInterface,
+            Visibility visibility) {
+        ServicePointDescriptor servicePoint = new ServicePointDescriptor();
+        servicePoint.setId(id);
+        servicePoint.setInterfaceClassName(serviceInterface.getName());
+        servicePoint.setVisibility(visibility);
+        moduleDescriptor.addServicePoint(servicePoint);
+        return servicePoint;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hivemind.ApplicationRuntimeException;
+import org.apache.hivemind.Registry;
+import static org.testng.Assert.*;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test for {@link ReloadingRegistry}, with a fake registry whose only service is the content of its descriptor.
+ */
+public class TestReloadingRegistry {
+
+    private final AtomicInteger builds = new AtomicInteger();
+
+    /**
+     * the registries built, in order.
+     */
+    private final List<FakeRegistry> built = Collections.synchronizedList(new ArrayList<FakeRegistry>());
+
+    @BeforeMethod
+    public void setUp() {
+        builds.set(0);
+        built.clear();
+    }
+
+    /**
+     * editing the descriptor rebuilds the registry; a descriptor that fails to build keeps the current one.
+     */
+    @Test
+    public void testReload() throws Exception {
+        final File descriptor = File.createTempFile("hivemodule", ".xml");
+        descriptor.deleteOnExit();
+        write(descriptor, "first");
+        Registry registry = ReloadingRegistry.create(newSource(descriptor));
+        ReloadingRegistry reloadingRegistry = ReloadingRegistry.getReloadingRegistry(registry);
+        try {
+            assertEquals(registry.getService("test.Content", String.class), "first");
+
+            write(descriptor, "second");
+            waitFor(reloadingRegistry, 2, 1);
+            assertEquals(registry.getService("test.Content", String.class), "second");
+            assertTrue(built.get(0).shutdown, "old registry not shut down");
+
+            write(descriptor, "broken");
+            waitFor(reloadingRegistry, 3, 1);
+            assertEquals(registry.getService("test.Content", String.class), "second");
+            assertFalse(built.get(1).shutdown, "current registry shut down after a failed rebuild");
+        } finally {
+            registry.shutdown();
+        }
+        assertTrue(built.get(1).shutdown);
+    }
+
+    /**
+     * a call in progress on the old registry completes before the old registry is shut down.
+     */
+    @Test
+    public void testCallInProgress() throws Exception {
+        final File descriptor = File.createTempFile("hivemodule", ".xml");
+        descriptor.deleteOnExit();
+        write(descriptor, "first");
+        final Registry registry = ReloadingRegistry.create(newSource(descriptor));
+        try {
+            final FakeRegistry first = built.get(0);
+            first.blockCalls = new CountDownLatch(1);
+            final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+            Thread caller = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        results.add(registry.getService("test.Content", String.class));
+                    } catch (RuntimeException e) {
+                        results.add(e);
+                    }
+                }
+            };
+            caller.start();
+            assertTrue(first.called.await(10, TimeUnit.SECONDS));
+
+            write(descriptor, "second");
+            assertTrue(ReloadingRegistry.getReloadingRegistry(registry).reload(Collections.singleton(descriptor.toURI().toURL())));
+            assertEquals(registry.getService("test.Content", String.class), "second");
+            assertFalse(first.shutdown, "shut down during a call");
+
+            first.blockCalls.countDown();
+            caller.join(10000);
+            assertEquals(results, Collections.singletonList("first"));
+            assertTrue(first.shutdown, "not shut down after the call");
+        } finally {
+            registry.shutdown();
+        }
+    }
+
+    private ReloadingRegistry.Source newSource(final File descriptor) {
+        return new ReloadingRegistry.Source() {
+            public Registry build(Collection<URL> descriptorURLs) throws Exception {
+                builds.incrementAndGet();
+                URL url = descriptor.toURI().toURL();
+                descriptorURLs.add(url);
+                String content = read(descriptor);
+                if ("broken".equals(content)) {
+                    throw new ApplicationRuntimeException("Unable to build a registry from " + url);
+                }
+                FakeRegistry fakeRegistry = new FakeRegistry(content);
+                built.add(fakeRegistry);
+                return (Registry) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { Registry.class },
+                    fakeRegistry);
+            }
+        };
+    }
+
+    /**
+     * wait (at most 10s) until there have been buildCount builds and reloadCount reloads. A failed build does not
+     * reload, so once the build count is reached there is nothing left to wait for.
+     */
+    private void waitFor(ReloadingRegistry reloadingRegistry, int buildCount, int reloadCount) throws InterruptedException {
+        for (int i = 0; i < 1000 && (builds.get() < buildCount || reloadingRegistry.getReloadCount() < reloadCount); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(builds.get(), buildCount, "builds");
+        assertEquals(reloadingRegistry.getReloadCount(), reloadCount, "reloads");
+    }
+
+    private void write(File file, String content) throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content.getBytes("UTF-8"));
+        } finally {
+            output.close();
+        }
+    }
+
+    private String read(File file) throws IOException {
+        InputStream input = file.toURI().toURL().openStream();
+        try {
+            byte[] content = new byte[(int) file.length()];
+            int length = 0;
+            for (int read; length < content.length && (read = input.read(content, length, content.length - length)) > 0;) {
+                length += read;
+            }
+            return new String(content, 0, length, "UTF-8");
+        } finally {
+            input.close();
+        }
+    }
+
+    private static class FakeRegistry implements InvocationHandler {
+        private final String content;
+
+        private final CountDownLatch called = new CountDownLatch(1);
+
+        private volatile CountDownLatch blockCalls;
+
+        private volatile boolean shutdown;
+
+        FakeRegistry(String content) {
+            this.content = content;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws InterruptedException {
+            if ("shutdown".equals(method.getName())) {
+                shutdown = true;
+                return null;
+            } else if (shutdown) {
+                throw new ApplicationRuntimeException("Registry has been shutdown.");
+            }
+            called.countDown();
+            if (blockCalls != null) {
+                blockCalls.await(10, TimeUnit.SECONDS);
+            }
+            return content;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hivemind.ClassResolver;
+import org.apache.hivemind.impl.DefaultClassResolver;
+import org.apache.hivemind.impl.DefaultErrorHandler;
+import org.apache.hivemind.parse.ModuleDescriptor;
+import static org.testng.Assert.*;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test for {@link SharedModuleDescriptors}.
+ */
+public class TestSharedModuleDescriptors {
+
+    private final ClassResolver resolver = new DefaultClassResolver(getClass().getClassLoader());
+
+    private final AtomicInteger parses = new AtomicInteger();
+
+    @BeforeMethod
+    public void setUp() {
+        SharedModuleDescriptors.clear();
+        parses.set(0);
+    }
+
+    /**
+     * a descriptor without errors is parsed once and then shared.
+     */
+    @Test
+    public void testShared() throws Exception {
+        URL url = new URL("file:/test/hivemodule.xml");
+        ModuleDescriptor first = SharedModuleDescriptors.get(resolver, url, newParser(true));
+        assertNotNull(first);
+        assertSame(SharedModuleDescriptors.get(resolver, url, newParser(true)), first);
+        assertEquals(parses.get(), 1);
+    }
+
+    /**
+     * a descriptor parsed with errors is still handed to each caller, but parsed again every time so every build
+     * reports the errors.
+     */
+    @Test
+    public void testErrorsParsedTwice() throws Exception {
+        URL url = new URL("file:/test/broken-hivemodule.xml");
+        ModuleDescriptor first = SharedModuleDescriptors.get(resolver, url, newParser(false));
+        ModuleDescriptor second = SharedModuleDescriptors.get(resolver, url, newParser(false));
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNotSame(second, first);
+        assertEquals(parses.get(), 2);
+    }
+
+    /**
+     * @param shareable false to act as a parse that reported an error.
+     */
+    private Callable<SharedModuleDescriptors.Parsed> newParser(final boolean shareable) {
+        return new Callable<SharedModuleDescriptors.Parsed>() {
+            public SharedModuleDescriptors.Parsed call() {
+                parses.incrementAndGet();
+                ModuleDescriptor moduleDescriptor = new ModuleDescriptor(resolver, new DefaultErrorHandler());
+                moduleDescriptor.setModuleId("test");
+                return new SharedModuleDescriptors.Parsed(moduleDescriptor, shareable);
+            }
+        };
+    }
+}
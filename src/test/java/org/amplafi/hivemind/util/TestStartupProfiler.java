@@ -0,0 +1,57 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.hivemind.util;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test for {@link StartupProfiler}.
+ */
+public class TestStartupProfiler {
+
+    @BeforeMethod
+    public void setUp() {
+        StartupProfiler.reset();
+        StartupProfiler.setEnabled(true);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        StartupProfiler.setEnabled(Boolean.getBoolean(StartupProfiler.PROFILE_PROPERTY));
+        StartupProfiler.reset();
+    }
+
+    /**
+     * a service injected as a proxy is constructed after the service using it: the edge comes from the ids the
+     * factory parameters name. Ids of services not constructed (or of no service) make no edge.
+     */
+    @Test
+    public void testReferencedServiceEdges() throws Exception {
+        StartupProfiler.Span span = StartupProfiler.start(StartupProfiler.SERVICE, "app.Client");
+        span.addReferencedServices(Arrays.asList("app.Server", "app.NeverUsed", "java.lang.String"));
+        StartupProfiler.end(span);
+        StartupProfiler.end(StartupProfiler.start(StartupProfiler.SERVICE, "app.Server"));
+
+        StringWriter json = new StringWriter();
+        StartupProfiler.writeJson(json);
+        assertTrue(json.toString().contains("\"edges\":[{\"from\":\"service:app.Client\",\"to\":\"service:app.Server\"}]"),
+            json.toString());
+    }
+}